@@ -0,0 +1,56 @@
+package dex;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+
+/**
+ * Files of the benchmarks
+ */
+final class BenchFiles {
+
+    private BenchFiles() {}
+
+
+    static File createTempDir(String prefix) throws IOException {
+        File dir = File.createTempFile(prefix, "");
+        if (!dir.delete() || !dir.mkdirs()) throw new IOException("Can not create " + dir);
+        return dir;
+    }
+
+    /**
+     * Returns {@code size} random bytes, the same for each run
+     */
+    static byte[] randomBytes(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * Write the file and set its modification time to the past, so {@link VerificationCache} trusts it
+     */
+    static File write(File file, byte[] data) throws IOException {
+        OutputStream os = new FileOutputStream(file);
+        try {
+            os.write(data);
+        } finally {
+            Utils.closeQuietly(os);
+        }
+        file.setLastModified(System.currentTimeMillis() - 60000);
+        return file;
+    }
+
+    static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,13 @@
+package dex;
+
+
+/**
+ * Class of the plugin, which is loaded by the benchmarks of {@link Dex}
+ */
+public class BenchPlugin implements Versioned {
+
+    @Override
+    public int getVersion() {
+        return 1;
+    }
+}
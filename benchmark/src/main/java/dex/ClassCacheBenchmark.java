@@ -0,0 +1,103 @@
+package dex;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Lookups of the plugin classes in {@link Dex}: the cached instance from one and a few threads,
+ * the miss after unloading, and new instances through the cached constructor and through {@link Class#newInstance()}.
+ * The class loader is the JVM stand-in of DexClassLoader, so the miss does not include reading of the dex.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ClassCacheBenchmark {
+
+    private static final String CLASS_NAME = BenchPlugin.class.getName();
+
+    private File dir;
+    private Dex dex;
+    private Class<?> pluginClass;
+    private PluginHandle<Versioned> handle;
+
+
+    @Setup
+    public void setUp() throws Exception {
+        dir = BenchFiles.createTempDir("cache");
+        FileContext context = new FileContext(dir, false);
+        BenchFiles.write(new File(context.getDir("dex", FileContext.MODE_PRIVATE), "plugin.dex"), new byte[] {0});
+
+        dex = DexRegistry.getInstance().register("benchmark", new Dex.Params(context, "plugin.dex", 1, "md5", "downloaded.dex"));
+        dex.getInstanceClassFromDex(CLASS_NAME);
+        pluginClass = Class.forName(CLASS_NAME);
+        handle = dex.getHandle(Versioned.class, CLASS_NAME);
+    }
+
+    @TearDown
+    public void tearDown() {
+        DexRegistry.getInstance().unregister("benchmark");
+        BenchFiles.deleteRecursively(dir);
+    }
+
+
+    @Benchmark
+    public Versioned hit() throws Exception {
+        return dex.getInstanceClassFromDex(CLASS_NAME);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Versioned hitConcurrent() throws Exception {
+        return dex.getInstanceClassFromDex(CLASS_NAME);
+    }
+
+    /**
+     * One volatile read instead of the lookup of {@link #hitConcurrent()}
+     */
+    @Benchmark
+    @Threads(4)
+    public Versioned handleConcurrent() {
+        return handle.get();
+    }
+
+    /**
+     * The class loader and cache are created again on each call
+     */
+    @Benchmark
+    public Versioned miss() throws Exception {
+        dex.unload();
+        return dex.getInstanceClassFromDex(CLASS_NAME);
+    }
+
+    @Benchmark
+    public Versioned newInstance() throws Exception {
+        return dex.newInstance(CLASS_NAME);
+    }
+
+    /**
+     * The way of {@link Dex} before the constructor was cached
+     */
+    @Benchmark
+    @SuppressWarnings("deprecation")
+    public Object classNewInstance() throws Exception {
+        return pluginClass.newInstance();
+    }
+}
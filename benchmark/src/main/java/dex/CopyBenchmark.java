@@ -0,0 +1,112 @@
+package dex;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Extraction of the dex file from assets: the loop with 1 KB buffer, which {@link Utils#copyAssets} used before,
+ * and {@link AssetExtractor} through the direct buffer and through the memory map.
+ * {@link AssetExtractor} also computes the md5 hash on the way, the files are not synced, like by the old loop.
+ * The load benchmarks read the asset for InMemoryDexClassLoader and hash it, without the file.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CopyBenchmark {
+
+    private static final String ASSET_NAME = "file.dex";
+
+    @Param({"65536", "1048576", "16777216"})
+    public int size;
+
+    private File dir;
+    private FileContext bufferedContext;
+    private FileContext mappedContext;
+    private AssetExtractor extractor;
+    private String target;
+    private String md5;
+
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = BenchFiles.createTempDir("copy");
+        bufferedContext = new FileContext(new File(dir, "buffered"), false);
+        mappedContext = new FileContext(new File(dir, "mapped"), true);
+
+        byte[] data = BenchFiles.randomBytes(size);
+        BenchFiles.write(new File(bufferedContext.getAssetsDir(), ASSET_NAME), data);
+        BenchFiles.write(new File(mappedContext.getAssetsDir(), ASSET_NAME), data);
+
+        extractor = AssetExtractor.getDefault().setFsyncPolicy(AssetExtractor.FsyncPolicy.NONE);
+        target = new File(dir, "target.dex").getPath();
+        md5 = Utils.computeMD5(new File(mappedContext.getAssetsDir(), ASSET_NAME));
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchFiles.deleteRecursively(dir);
+    }
+
+
+    @Benchmark
+    public boolean legacyLoop() throws IOException {
+        InputStream is = null;
+        OutputStream os = null;
+
+        try {
+            is = bufferedContext.getAssets().open(ASSET_NAME);
+            os = new FileOutputStream(target);
+            byte[] buffer = new byte[1024];
+            int length;
+
+            while ((length = is.read(buffer)) > 0) {
+                os.write(buffer, 0, length);
+            }
+            return true;
+        } finally {
+            Utils.closeQuietly(os, is);
+        }
+    }
+
+    @Benchmark
+    public boolean extractBuffered() {
+        return extractor.extract(bufferedContext, ASSET_NAME, target, null);
+    }
+
+    @Benchmark
+    public boolean extractMapped() {
+        return extractor.extract(mappedContext, ASSET_NAME, target, null);
+    }
+
+    @Benchmark
+    public ByteBuffer loadBuffered() throws IOException {
+        return extractor.load(bufferedContext, ASSET_NAME, md5);
+    }
+
+    @Benchmark
+    public ByteBuffer loadMapped() throws IOException {
+        return extractor.load(mappedContext, ASSET_NAME, md5);
+    }
+}
@@ -0,0 +1,69 @@
+package dex;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * {@link Utils#downloadFile} from the loopback server with one and a few connections, with the md5 check.
+ * The network is not measured, only the overhead of the download engine and the disk.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DownloadBenchmark {
+
+    @Param({"1048576", "16777216"})
+    public int size;
+
+    @Param({"1", "4"})
+    public int connections;
+
+    private File dir;
+    private LoopbackServer server;
+    private String url;
+    private String md5;
+    private String target;
+
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = BenchFiles.createTempDir("download");
+        byte[] data = BenchFiles.randomBytes(size);
+        md5 = Utils.computeMD5(BenchFiles.write(new File(dir, "source.dex"), data));
+
+        server = new LoopbackServer(data);
+        url = server.getUrl("file.dex");
+        target = new File(dir, "file.dex").getPath();
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.stop();
+        BenchFiles.deleteRecursively(dir);
+    }
+
+
+    @Benchmark
+    public boolean downloadFile() {
+        if (!Utils.downloadFile(url, target, md5, connections)) throw new IllegalStateException("Download failed");
+        return true;
+    }
+}
@@ -0,0 +1,74 @@
+package dex;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+
+/**
+ * Context of the benchmarks, the directories and assets are in {@code root}
+ */
+class FileContext extends Context {
+
+    private final File root;
+    private final File assets;
+    private final boolean mappedAssets;
+
+
+    /**
+     * @param root - directory of the context
+     * @param mappedAssets - true - assets can be opened by {@link AssetManager#openFd}, like stored without compression
+     */
+    FileContext(File root, boolean mappedAssets) {
+        this.root = root;
+        this.assets = new File(root, "assets");
+        this.mappedAssets = mappedAssets;
+        assets.mkdirs();
+    }
+
+
+    File getAssetsDir() {
+        return assets;
+    }
+
+    @Override
+    public File getDir(String name, int mode) {
+        File dir = new File(root, "app_" + name);
+        dir.mkdirs();
+        return dir;
+    }
+
+    @Override
+    public File getCodeCacheDir() {
+        return getDir("code_cache", MODE_PRIVATE);
+    }
+
+    @Override
+    public AssetManager getAssets() {
+        return new AssetManager() {
+
+            @Override
+            public InputStream open(String fileName) throws IOException {
+                return new FileInputStream(new File(assets, fileName));
+            }
+
+            @Override
+            public AssetFileDescriptor openFd(String fileName) throws IOException {
+                File file = new File(assets, fileName);
+                if (!mappedAssets || !file.exists()) throw new FileNotFoundException(fileName);
+                return new AssetFileDescriptor(file);
+            }
+        };
+    }
+
+    @Override
+    public ClassLoader getClassLoader() {
+        return FileContext.class.getClassLoader();
+    }
+}
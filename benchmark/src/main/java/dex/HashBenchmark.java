@@ -0,0 +1,71 @@
+package dex;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Hashing of the dex file: full read by {@link Utils#computeMD5}, the parallel {@link TreeHash}
+ * and the lookup in {@link VerificationCache}
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HashBenchmark {
+
+    @Param({"65536", "1048576", "16777216"})
+    public int size;
+
+    private File dir;
+    private File file;
+
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = BenchFiles.createTempDir("hash");
+        file = BenchFiles.write(new File(dir, "file.dex"), BenchFiles.randomBytes(size));
+        VerificationCache.getInstance().setEnabled(true).setDirectory(dir);
+        Utils.getMD5(file);
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchFiles.deleteRecursively(dir);
+    }
+
+
+    @Benchmark
+    public String computeMD5() {
+        return Utils.computeMD5(file);
+    }
+
+    @Benchmark
+    public TreeHash treeHash() throws IOException {
+        return TreeHash.compute(file);
+    }
+
+    /**
+     * The file was not changed, so the hash is taken from the cache
+     */
+    @Benchmark
+    public String getMD5Cached() {
+        return Utils.getMD5(file);
+    }
+}
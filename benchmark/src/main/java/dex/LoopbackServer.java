@@ -0,0 +1,76 @@
+package dex;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+
+
+/**
+ * HTTP server on the loopback interface, which serves one file with {@code ETag} and byte ranges
+ */
+class LoopbackServer {
+
+    private static final String ETAG = "\"bench\"";
+
+    private final HttpServer server;
+    private final byte[] data;
+
+
+    LoopbackServer(byte[] data) throws IOException {
+        this.data = data;
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 16);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+
+    String getUrl(String fileName) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/" + fileName;
+    }
+
+    void stop() {
+        server.stop(0);
+    }
+
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            exchange.getResponseHeaders().set("ETag", ETAG);
+            exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+
+            long start = 0;
+            long end = data.length - 1;
+            int code = 200;
+
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+            if (range != null && range.startsWith("bytes=") && (ifRange == null || ETAG.equals(ifRange))) {
+                String[] bounds = range.substring("bytes=".length()).split("-", -1);
+                start = Long.parseLong(bounds[0]);
+                if (!bounds[1].isEmpty()) end = Math.min(end, Long.parseLong(bounds[1]));
+                code = 206;
+                exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + data.length);
+            }
+
+            long length = end - start + 1;
+            if ("HEAD".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Content-Length", String.valueOf(length));
+                exchange.sendResponseHeaders(code, -1);
+                return;
+            }
+
+            exchange.sendResponseHeaders(code, length);
+            OutputStream os = exchange.getResponseBody();
+            os.write(data, (int) start, (int) length);
+            os.close();
+        } finally {
+            exchange.close();
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package android.content;
+
+import android.content.res.AssetManager;
+
+import java.io.File;
+
+
+/**
+ * JVM stand-in for the Android class, only the methods used by dex-worker
+ */
+public abstract class Context {
+
+    public static final int MODE_PRIVATE = 0;
+
+    public abstract File getDir(String name, int mode);
+
+    public abstract File getCodeCacheDir();
+
+    public abstract AssetManager getAssets();
+
+    public abstract ClassLoader getClassLoader();
+}
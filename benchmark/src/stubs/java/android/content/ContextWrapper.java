@@ -0,0 +1,8 @@
+package android.content;
+
+
+/**
+ * JVM stand-in for the Android class
+ */
+public abstract class ContextWrapper extends Context {
+}
@@ -0,0 +1,35 @@
+package android.content.res;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+
+/**
+ * JVM stand-in for the Android class: the whole file, like the asset stored without compression
+ */
+public class AssetFileDescriptor {
+
+    public static final long UNKNOWN_LENGTH = -1;
+
+    private final File file;
+
+    public AssetFileDescriptor(File file) {
+        this.file = file;
+    }
+
+    public FileInputStream createInputStream() throws IOException {
+        return new FileInputStream(file);
+    }
+
+    public long getStartOffset() {
+        return 0;
+    }
+
+    public long getLength() {
+        return file.length();
+    }
+
+    public void close() throws IOException {
+    }
+}
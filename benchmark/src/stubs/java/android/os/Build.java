@@ -0,0 +1,12 @@
+package android.os;
+
+
+/**
+ * JVM stand-in for the Android class
+ */
+public class Build {
+
+    public static class VERSION {
+        public static final int SDK_INT = 28;
+    }
+}
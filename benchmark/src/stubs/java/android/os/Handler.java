@@ -0,0 +1,19 @@
+package android.os;
+
+
+/**
+ * JVM stand-in for the Android class, runs the posted callbacks at once
+ */
+public class Handler {
+
+    public Handler() {
+    }
+
+    public Handler(Looper looper) {
+    }
+
+    public boolean post(Runnable runnable) {
+        runnable.run();
+        return true;
+    }
+}
@@ -0,0 +1,19 @@
+package android.os;
+
+
+/**
+ * JVM stand-in for the Android class, no thread of the benchmark is the main thread
+ */
+public class Looper {
+
+    private static final Looper mainLooper = new Looper();
+    private final Thread thread = new Thread();
+
+    public static Looper getMainLooper() {
+        return mainLooper;
+    }
+
+    public Thread getThread() {
+        return thread;
+    }
+}
@@ -0,0 +1,12 @@
+package android.system;
+
+
+/**
+ * JVM stand-in for the Android class
+ */
+public class ErrnoException extends Exception {
+
+    public ErrnoException(String functionName, int errno) {
+        super(functionName + " failed: errno " + errno);
+    }
+}
@@ -0,0 +1,23 @@
+package android.system;
+
+import java.io.FileDescriptor;
+
+
+/**
+ * JVM stand-in for the Android class: the JVM can not open a directory, so the directory is not synced
+ */
+public class Os {
+
+    private static final int ENOSYS = 38;
+
+    public static FileDescriptor open(String path, int flags, int mode) throws ErrnoException {
+        throw new ErrnoException("open", ENOSYS);
+    }
+
+    public static void fsync(FileDescriptor fd) throws ErrnoException {
+        throw new ErrnoException("fsync", ENOSYS);
+    }
+
+    public static void close(FileDescriptor fd) throws ErrnoException {
+    }
+}
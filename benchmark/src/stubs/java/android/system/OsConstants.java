@@ -0,0 +1,10 @@
+package android.system;
+
+
+/**
+ * JVM stand-in for the Android class
+ */
+public class OsConstants {
+
+    public static final int O_RDONLY = 0;
+}
@@ -0,0 +1,12 @@
+package dalvik.system;
+
+
+/**
+ * JVM stand-in for the Android class, loads the classes through the parent class loader
+ */
+public class DexClassLoader extends ClassLoader {
+
+    public DexClassLoader(String dexPath, String optimizedDirectory, String librarySearchPath, ClassLoader parent) {
+        super(parent);
+    }
+}
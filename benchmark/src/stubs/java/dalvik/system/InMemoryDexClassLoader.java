@@ -0,0 +1,14 @@
+package dalvik.system;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * JVM stand-in for the Android class, loads the classes through the parent class loader
+ */
+public class InMemoryDexClassLoader extends ClassLoader {
+
+    public InMemoryDexClassLoader(ByteBuffer dexBuffer, ClassLoader parent) {
+        super(parent);
+    }
+}
@@ -0,0 +1,414 @@
+package dex;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Extraction of the dex file from assets through file channels.
+ * The asset, which is stored in the apk without compression, is hashed through the memory map and copied
+ * with {@link FileChannel#transferTo}, so its bytes are not copied through the java heap. Other assets
+ * are copied through the reused direct buffer. The target is written to {@code "<path>.tmp"}, preallocated,
+ * synced by {@link FsyncPolicy} and renamed only if the hash is right.
+ * {@link #load} reads the asset into memory instead, for the class loader without a file.
+ */
+public class AssetExtractor {
+
+    private static AssetExtractor defaultExtractor;
+    private final static Object lockObject = new Object();
+
+    private volatile FsyncPolicy fsyncPolicy = FsyncPolicy.DATA;
+    private volatile int bufferSize = 256 * 1024;
+    private final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<>();
+
+    private final AtomicLong extracted = new AtomicLong();
+    private final AtomicLong zeroCopied = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong loaded = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong nanos = new AtomicLong();
+
+
+    /**
+     * When to flush the extracted file to the storage
+     */
+    public enum FsyncPolicy {
+        /**
+         * Leave it to the system, the file can be lost or empty after a power loss
+         */
+        NONE,
+        /**
+         * Sync the content before the rename, sample: {@link FileChannel#force(boolean)} with false
+         */
+        DATA,
+        /**
+         * Sync the content and metadata before the rename
+         */
+        ALL
+    }
+
+
+    /**
+     * Returns the shared extractor, which is used by {@link Utils#copyAssets}
+     * @return instance of AssetExtractor
+     */
+    public static AssetExtractor getDefault() {
+
+        if (defaultExtractor == null) {
+
+            synchronized(lockObject) {
+
+                if (defaultExtractor == null) {
+                    defaultExtractor = new AssetExtractor();
+                }
+            }
+        }
+
+        return defaultExtractor;
+    }
+
+
+    public AssetExtractor setFsyncPolicy(FsyncPolicy fsyncPolicy) {
+        this.fsyncPolicy = fsyncPolicy;
+        return this;
+    }
+
+    /**
+     * Size of the direct buffer per thread, for the assets which can not be copied without the buffer
+     */
+    public AssetExtractor setBufferSize(int bufferSize) {
+        this.bufferSize = Math.max(8 * 1024, bufferSize);
+        return this;
+    }
+
+
+    /**
+     * Extract the asset to the file. Run only in background thread.
+     * If the file already exists and has the hash {@code md5}, it is not copied.
+     * @param context - Context for method getAssets
+     * @param nameAssets - File name with extension. Sample: "file.dex"
+     * @param path - File path. Sample: "/data/user/0/package/project"
+     * @param md5 - expected hash of the extracted file, or null
+     * @return boolean result of operation. Sample: {@code true}
+     */
+    public boolean extract(Context context, String nameAssets, String path, String md5) {
+        Utils.stopIfMainThread();
+
+        File target = new File(path);
+        if (md5 != null && target.exists() && md5.equals(Utils.getMD5(target))) {
+            skipped.incrementAndGet();
+            return true;
+        }
+
+        long startedAt = System.nanoTime();
+        long measuredAt = DexMetrics.start();
+        boolean result = false;
+        File tmp = new File(path + Utils.TMP_SUFFIX);
+
+        try {
+
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            long length = extractMapped(context, nameAssets, tmp, digest);
+            if (length < 0) length = extractBuffered(context, nameAssets, tmp, digest);
+
+            String hash = Utils.toHex(digest.digest());
+            result = (md5 == null || md5.equals(hash)) && Utils.moveFile(tmp, target);
+
+            if (result) {
+                VerificationCache.getInstance().record(target, "MD5", hash);
+                extracted.incrementAndGet();
+                bytes.addAndGet(length);
+                nanos.addAndGet(System.nanoTime() - startedAt);
+                DexMetrics.record(DexMetrics.Stage.ASSET_COPY, measuredAt, length);
+            }
+        } catch (Throwable ignored) {
+            // Nothing
+        } finally {
+            if (!result) tmp.delete();
+        }
+
+        return result;
+    }
+
+    /**
+     * Read the asset into memory without writing it to a file, sample: for InMemoryDexClassLoader.
+     * The asset, which is stored in the apk without compression, is memory mapped, so its bytes are not
+     * copied at all. Gzip payload is decompressed into the heap. Run only in background thread.
+     * @param context - Context for method getAssets
+     * @param nameAssets - File name with extension. Sample: "file.dex"
+     * @param md5 - expected hash of the content, or null
+     * @return buffer with the content of the asset. The heap buffer is not wrapped as read-only, because
+     *          InMemoryDexClassLoader reads its backing array, so callers must not change the content
+     * @throws IOException - if the asset can not be read or has the wrong hash
+     */
+    public ByteBuffer load(Context context, String nameAssets, String md5) throws IOException {
+        Utils.stopIfMainThread();
+
+        long startedAt = System.nanoTime();
+        long measuredAt = DexMetrics.start();
+
+        ByteBuffer buffer = loadMapped(context, nameAssets);
+        if (buffer == null) buffer = loadBuffered(context, nameAssets);
+
+        if (md5 != null) {
+            try {
+                MessageDigest digest = MessageDigest.getInstance("MD5");
+                digest.update(buffer.duplicate());
+                if (!md5.equals(Utils.toHex(digest.digest()))) throw new IOException("Wrong hash of " + nameAssets);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+        }
+
+        loaded.incrementAndGet();
+        bytes.addAndGet(buffer.remaining());
+        nanos.addAndGet(System.nanoTime() - startedAt);
+        DexMetrics.record(DexMetrics.Stage.ASSET_COPY, measuredAt, buffer.remaining());
+        return buffer;
+    }
+
+    /**
+     * Returns the counters of the extractor
+     * @return snapshot of the counters
+     */
+    public Stats getStats() {
+        return new Stats(extracted.get(), zeroCopied.get(), skipped.get(), loaded.get(), bytes.get(), nanos.get());
+    }
+
+
+    /**
+     * Copy the asset, which is stored without compression, with the memory map and {@link FileChannel#transferTo}
+     * @return length of the file, or -1 if the asset is compressed
+     */
+    private long extractMapped(Context context, String nameAssets, File tmp, MessageDigest digest) throws IOException {
+        AssetFileDescriptor descriptor;
+        try {
+            descriptor = context.getAssets().openFd(nameAssets);
+        } catch (FileNotFoundException e) {
+            // Compressed in the apk, or only "<nameAssets>.gz" exists
+            return -1;
+        }
+
+        FileInputStream input = null;
+        RandomAccessFile output = null;
+
+        try {
+
+            long start = descriptor.getStartOffset();
+            long length = descriptor.getLength();
+            if (length == AssetFileDescriptor.UNKNOWN_LENGTH) return -1;
+
+            input = descriptor.createInputStream();
+            FileChannel source = input.getChannel();
+
+            MappedByteBuffer mapped = source.map(FileChannel.MapMode.READ_ONLY, start, length);
+            if (length >= 2 && mapped.get(0) == (byte) 0x1f && mapped.get(1) == (byte) 0x8b) {
+                // Gzip payload stored without compression of the apk
+                return -1;
+            }
+
+            digest.update(mapped);
+
+            output = new RandomAccessFile(tmp, "rw");
+            output.setLength(length);
+            FileChannel target = output.getChannel();
+
+            for (long position = 0; position < length; ) {
+                long count = source.transferTo(start + position, length - position, target);
+
+                // The asset is shorter than its descriptor, the loop would never end
+                if (count <= 0) throw new IOException("Asset " + nameAssets + " ended at " + position + " of " + length + " bytes");
+                position += count;
+            }
+
+            sync(target);
+            zeroCopied.incrementAndGet();
+            return length;
+        } finally {
+            Utils.closeQuietly(output, input);
+            try {
+                descriptor.close();
+            } catch (Throwable ignored) { /* Nothing */ }
+        }
+    }
+
+    /**
+     * Copy the asset through the direct buffer, gzip payload is decompressed on the way
+     * @return length of the file
+     */
+    private long extractBuffered(Context context, String nameAssets, File tmp, MessageDigest digest) throws IOException {
+        InputStream input = null;
+        RandomAccessFile output = null;
+
+        try {
+
+            input = Compression.decodeAsset(Utils.openAssets(context, nameAssets));
+            ReadableByteChannel source = Channels.newChannel(input);
+
+            output = new RandomAccessFile(tmp, "rw");
+            output.setLength(0);
+            FileChannel target = output.getChannel();
+
+            ByteBuffer buffer = getBuffer();
+            long length = 0;
+            while (source.read(buffer) != -1) {
+                buffer.flip();
+
+                ByteBuffer hashed = buffer.duplicate();
+                digest.update(hashed);
+
+                while (buffer.hasRemaining()) {
+                    length += target.write(buffer);
+                }
+                buffer.clear();
+            }
+
+            sync(target);
+            return length;
+        } finally {
+            Utils.closeQuietly(output, input);
+        }
+    }
+
+    /**
+     * Map the asset, which is stored without compression
+     * @return the mapped asset, or null if the asset is compressed
+     */
+    private ByteBuffer loadMapped(Context context, String nameAssets) throws IOException {
+        AssetFileDescriptor descriptor;
+        try {
+            descriptor = context.getAssets().openFd(nameAssets);
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+
+        FileInputStream input = null;
+
+        try {
+
+            long length = descriptor.getLength();
+            if (length == AssetFileDescriptor.UNKNOWN_LENGTH) return null;
+
+            // The mapping stays valid after the descriptor is closed
+            input = descriptor.createInputStream();
+            MappedByteBuffer mapped = input.getChannel().map(FileChannel.MapMode.READ_ONLY, descriptor.getStartOffset(), length);
+            if (length >= 2 && mapped.get(0) == (byte) 0x1f && mapped.get(1) == (byte) 0x8b) return null;
+
+            return mapped;
+        } finally {
+            Utils.closeQuietly(input);
+            try {
+                descriptor.close();
+            } catch (Throwable ignored) { /* Nothing */ }
+        }
+    }
+
+    /**
+     * Read the asset into the heap, gzip payload is decompressed on the way
+     */
+    private ByteBuffer loadBuffered(Context context, String nameAssets) throws IOException {
+        InputStream input = null;
+
+        try {
+
+            input = Compression.decodeAsset(Utils.openAssets(context, nameAssets));
+            byte[] content = new byte[Math.max(8 * 1024, input.available())];
+            int length = 0;
+            int count;
+            while ((count = input.read(content, length, content.length - length)) != -1) {
+                length += count;
+                if (length == content.length) content = Arrays.copyOf(content, content.length * 2);
+            }
+            return ByteBuffer.wrap(content, 0, length);
+        } finally {
+            Utils.closeQuietly(input);
+        }
+    }
+
+    private ByteBuffer getBuffer() {
+        ByteBuffer buffer = buffers.get();
+        if (buffer == null || buffer.capacity() != bufferSize) {
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+            buffers.set(buffer);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    private void sync(FileChannel channel) throws IOException {
+        switch (fsyncPolicy) {
+            case DATA:
+                channel.force(false);
+                break;
+            case ALL:
+                channel.force(true);
+                break;
+            default:
+                break;
+        }
+    }
+
+
+    /**
+     * Snapshot of the counters of {@link AssetExtractor}
+     */
+    public static class Stats {
+
+        public final long extracted;
+
+        /**
+         * Extracted without copying through the java heap
+         */
+        public final long zeroCopied;
+
+        /**
+         * Not copied, because the same file was already installed
+         */
+        public final long skipped;
+
+        /**
+         * Read into memory by {@link #load}, without a file
+         */
+        public final long loaded;
+        public final long bytes;
+        public final long nanos;
+
+        Stats(long extracted, long zeroCopied, long skipped, long loaded, long bytes, long nanos) {
+            this.extracted = extracted;
+            this.zeroCopied = zeroCopied;
+            this.skipped = skipped;
+            this.loaded = loaded;
+            this.bytes = bytes;
+            this.nanos = nanos;
+        }
+
+        /**
+         * Throughput of the extraction in bytes per second
+         */
+        public long getBytesPerSecond() {
+            return nanos == 0 ? 0 : bytes * 1000000000L / nanos;
+        }
+
+        @Override
+        public String toString() {
+            return "Stats{extracted=" + extracted + ", zeroCopied=" + zeroCopied + ", skipped=" + skipped
+                    + ", loaded=" + loaded + ", bytes=" + bytes + ", nanos=" + nanos + ", bytesPerSecond=" + getBytesPerSecond() + "}";
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package dex;
+
+import java.io.FileNotFoundException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+
+/**
+ * Thread-safe cache of the loaded classes and their instances for {@link Dex}.
+ * Concurrent callers of the same class name wait for one load, the lookup of the already loaded
+ * class does not take a lock.
+ * The nullary constructor of each class is resolved once and reused for new instances.
+ */
+final class ClassCache {
+
+    /**
+     * Source of the classes, sample: DexClassLoader
+     */
+    interface ClassSource {
+        Class loadClass(String className) throws ClassNotFoundException, FileNotFoundException;
+    }
+
+    private final ClassSource source;
+    private final ConcurrentHashMap<String, FutureTask<Factory>> factories = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, FutureTask<Versioned>> objects = new ConcurrentHashMap<>();
+
+
+    ClassCache(ClassSource source) {
+        this.source = source;
+    }
+
+
+    /**
+     * Returns the loaded class, loads it once if it is not in cache
+     * @param className - class name with package, sample "com.example.Class"
+     */
+    Class getLoadedClass(String className) throws ClassNotFoundException, FileNotFoundException {
+        return getFactory(className).type;
+    }
+
+    /**
+     * Returns the factory of the class, loads the class once if it is not in cache
+     * @param className - class name with package, sample "com.example.Class"
+     */
+    Factory getFactory(String className) throws ClassNotFoundException, FileNotFoundException {
+        try {
+            return getOnce(factories, className, () -> new Factory(source.loadClass(className)));
+        } catch (IllegalAccessException | InstantiationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Creates a new instance of the class, the cached instance is not changed
+     * @param className - class name with package, sample "com.example.Class"
+     */
+    Versioned newInstance(String className) throws ClassNotFoundException, IllegalAccessException, InstantiationException, FileNotFoundException {
+        return (Versioned) getFactory(className).newInstance();
+    }
+
+    /**
+     * Returns the cached instance of the class, creates it once if it is not in cache
+     * @param className - class name with package, sample "com.example.Class"
+     * @param needNewInstance - true - if need replace old instance, false - use current instance if exist
+     */
+    Versioned getInstance(String className, boolean needNewInstance) throws ClassNotFoundException, IllegalAccessException, InstantiationException, FileNotFoundException {
+        Callable<Versioned> creator = () -> newInstance(className);
+
+        if (needNewInstance) {
+            FutureTask<Versioned> task = new FutureTask<>(creator);
+            objects.put(className, task);
+            task.run();
+            return await(objects, className, task);
+        }
+
+        return getOnce(objects, className, creator);
+    }
+
+    /**
+     * Remove all classes and instances
+     */
+    void clear() {
+        factories.clear();
+        objects.clear();
+    }
+
+
+    /**
+     * Creates instances of one class through its cached nullary constructor.
+     * Access is checked once, when the constructor is resolved.
+     */
+    static final class Factory {
+
+        final Class<?> type;
+        private volatile Constructor<?> constructor;
+
+        Factory(Class<?> type) {
+            this.type = type;
+        }
+
+        Object newInstance() throws IllegalAccessException, InstantiationException {
+            Constructor<?> c = constructor;
+            if (c == null) c = constructor = resolveConstructor(type);
+
+            long startedAt = DexMetrics.start();
+            try {
+                Object instance = c.newInstance();
+                DexMetrics.record(DexMetrics.Stage.INSTANTIATE, startedAt, 0);
+                return instance;
+            } catch (InvocationTargetException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                if (cause instanceof Error) throw (Error) cause;
+                InstantiationException exception = new InstantiationException(type.getName());
+                exception.initCause(cause);
+                throw exception;
+            }
+        }
+
+        private static Constructor<?> resolveConstructor(Class<?> type) throws IllegalAccessException, InstantiationException {
+            int modifiers = type.getModifiers();
+            if (type.isInterface() || type.isArray() || type.isPrimitive() || Modifier.isAbstract(modifiers)) {
+                throw new InstantiationException(type.getName());
+            }
+
+            Constructor<?> c;
+            try {
+                c = type.getDeclaredConstructor();
+            } catch (NoSuchMethodException e) {
+                throw new InstantiationException(type.getName());
+            }
+
+            if (!Modifier.isPublic(modifiers) || !Modifier.isPublic(c.getModifiers())) {
+                throw new IllegalAccessException(type.getName() + " or its nullary constructor is not public");
+            }
+
+            // Skips the access check on each call
+            c.setAccessible(true);
+            return c;
+        }
+    }
+
+
+    /**
+     * Single-flight lookup: the first caller runs {@code loader}, others wait for its result.
+     * Failed result is not cached.
+     */
+    private static <T> T getOnce(ConcurrentHashMap<String, FutureTask<T>> map, String key, Callable<T> loader) throws ClassNotFoundException, IllegalAccessException, InstantiationException, FileNotFoundException {
+        FutureTask<T> task = map.get(key);
+
+        if (task == null) {
+            FutureTask<T> newTask = new FutureTask<>(loader);
+            task = map.putIfAbsent(key, newTask);
+            if (task == null) {
+                task = newTask;
+                newTask.run();
+            }
+        }
+
+        return await(map, key, task);
+    }
+
+    private static <T> T await(ConcurrentHashMap<String, FutureTask<T>> map, String key, FutureTask<T> task) throws ClassNotFoundException, IllegalAccessException, InstantiationException, FileNotFoundException {
+        boolean interrupted = false;
+
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    map.remove(key, task);
+                    throw rethrow(e.getCause());
+                }
+            }
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable cause) throws ClassNotFoundException, IllegalAccessException, InstantiationException, FileNotFoundException {
+        if (cause instanceof ClassNotFoundException) throw (ClassNotFoundException) cause;
+        if (cause instanceof IllegalAccessException) throw (IllegalAccessException) cause;
+        if (cause instanceof InstantiationException) throw (InstantiationException) cause;
+        if (cause instanceof FileNotFoundException) throw (FileNotFoundException) cause;
+        if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+        if (cause instanceof Error) throw (Error) cause;
+        return new IllegalStateException(cause);
+    }
+}
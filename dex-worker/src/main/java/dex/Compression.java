@@ -0,0 +1,111 @@
+package dex;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+
+/**
+ * Decoding of the compressed dex payloads (gzip, deflate), while they are streamed to the file.
+ * The format of the download is taken from {@code Content-Encoding} only, the plain dex is never
+ * decoded by chance. Only the bundled asset is detected by the gzip header.
+ */
+final class Compression {
+
+    /**
+     * Extension of the gzip compressed asset. Sample: "file.dex.gz"
+     */
+    static final String GZIP_SUFFIX = ".gz";
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+
+    private Compression() {}
+
+
+    /**
+     * Returns the stream of the decompressed bytes of the download
+     * @param input - stream of the payload
+     * @param contentEncoding - value of {@code Content-Encoding}, or null if the payload is not compressed
+     * @return decoding stream, see {@link #isDecoding(InputStream)}, or buffered {@code input} if it is not compressed
+     */
+    static InputStream decode(InputStream input, String contentEncoding) throws IOException {
+        return decode(input, contentEncoding, false);
+    }
+
+    /**
+     * Returns the stream of the decompressed bytes of the bundled asset, gzip is detected by the header
+     * @param input - stream of the asset
+     * @return decoding stream, see {@link #isDecoding(InputStream)}, or buffered {@code input} if it is not compressed
+     */
+    static InputStream decodeAsset(InputStream input) throws IOException {
+        return decode(input, null, true);
+    }
+
+    private static InputStream decode(InputStream input, String contentEncoding, boolean sniff) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(input, BUFFER_SIZE);
+
+        buffered.mark(2);
+        int first = buffered.read();
+        int second = buffered.read();
+        buffered.reset();
+
+        if ("gzip".equalsIgnoreCase(contentEncoding) || "x-gzip".equalsIgnoreCase(contentEncoding) || (sniff && isGzip(first, second))) {
+            return new GZIPInputStream(buffered, BUFFER_SIZE);
+        }
+
+        if ("deflate".equalsIgnoreCase(contentEncoding)) {
+            // Servers send both zlib wrapped and raw deflate as "deflate"
+            return new DeflateInputStream(buffered, new Inflater(!isZlib(first, second)));
+        }
+
+        return buffered;
+    }
+
+    /**
+     * Checks if the {@code Content-Encoding} is decoded by {@link #decode(InputStream, String)}
+     */
+    static boolean isSupported(String contentEncoding) {
+        return "gzip".equalsIgnoreCase(contentEncoding) || "x-gzip".equalsIgnoreCase(contentEncoding)
+                || "deflate".equalsIgnoreCase(contentEncoding);
+    }
+
+    /**
+     * Checks if the stream from {@link #decode(InputStream, String)} decompresses the payload
+     */
+    static boolean isDecoding(InputStream input) {
+        return input instanceof InflaterInputStream;
+    }
+
+    private static boolean isGzip(int first, int second) {
+        return first == 0x1f && second == 0x8b;
+    }
+
+    private static boolean isZlib(int first, int second) {
+        return first >= 0 && second >= 0 && (first & 0x0f) == 8 && ((first << 8) | second) % 31 == 0;
+    }
+
+
+    /**
+     * Stream with its own {@link Inflater}, which is ended on {@link #close()}, so the native memory of zlib
+     * is freed at once, not on finalization
+     */
+    private static class DeflateInputStream extends InflaterInputStream {
+
+        DeflateInputStream(InputStream input, Inflater inflater) {
+            super(input, inflater, BUFFER_SIZE);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                inf.end();
+            }
+        }
+    }
+}
@@ -2,26 +2,58 @@ package dex;
 
 import android.content.Context;
 import android.content.ContextWrapper;
+import android.os.Build;
 import android.os.Handler;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-
-import dalvik.system.DexClassLoader;
-
-import java.util.HashMap;
-
-
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Plugin, which is loaded from one dex file.
+ * {@link #getInstance()} returns the default plugin, other plugins are registered in {@link DexRegistry}.
+ * The loaded version of the file is the current {@link Generation}, the new version is swapped in
+ * by {@link #hotSwap} without stopping the callers of the old one.
+ */
 public class Dex {
 
     private static Dex instance;
     private final static Object lockObject = new Object();
 
-    private DexClassLoader dexClassLoader = null;
-    private HashMap<String, Class> classes = new HashMap<>();
-    private HashMap<String, Versioned> objects = new HashMap<>();
-    private boolean prepared = false;
-    private Params params;
+    private final String id;
+    private final DexRegistry registry;
+    private volatile long lastUsed = 0;
+    private volatile Generation generation = null;
+
+    /**
+     * Asset, which is loaded in memory instead of the installed file, see {@link Params#setLoadInMemory(boolean)}
+     */
+    private volatile String memoryAsset = null;
+
+    /**
+     * Guarded by {@code this}. The monitors of Dex and of its {@link DexSlots} are never held together,
+     * so the slots are taken by {@link #getSlots()} before the lock of either of them
+     */
+    private DexSlots slots = null;
+
+    /**
+     * Serializes the activation of the slot with the publication of its generation, so the journal and
+     * the current generation are changed in the same order. Taken before the monitors of Dex and DexSlots
+     */
+    private final Object swapLock = new Object();
+    private volatile long publications = 0;
+    private final AtomicLong generations = new AtomicLong();
+    private volatile boolean prepared = false;
+    private volatile Params params;
+    private volatile PrewarmReport prewarmReport = null;
+    private final ConcurrentHashMap<String, PluginHandle<?>> handles = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, InstancePool<?>> pools = new ConcurrentHashMap<>();
 
 
     /**
@@ -33,7 +65,7 @@ public class Dex {
     }
 
     /**
-     * Singleton for Dex
+     * Singleton for Dex, the plugin {@link DexRegistry#DEFAULT_ID} in {@link DexRegistry}
      * @param params - Required parameters are needed for work
      * @return instance of Dex
      */
@@ -44,7 +76,7 @@ public class Dex {
             synchronized(lockObject) {
 
                 if (instance == null) {
-                    instance = new Dex();
+                    instance = DexRegistry.getInstance().getOrCreate(DexRegistry.DEFAULT_ID);
                 }
             }
 
@@ -53,7 +85,7 @@ public class Dex {
         if (params != null) {
 
             synchronized(lockObject) {
-                instance.params = params;
+                instance.setParams(params);
             }
         }
 
@@ -62,9 +94,20 @@ public class Dex {
 
 
     /**
-     * Private constructor
+     * Use {@link #getInstance()} or {@link DexRegistry#register(String id, Params params)}
      */
-    private Dex() {}
+    Dex(String id, DexRegistry registry) {
+        this.id = id;
+        this.registry = registry;
+    }
+
+
+    /**
+     * Returns id of the plugin in {@link DexRegistry}
+     */
+    public String getId() {
+        return id;
+    }
 
 
     /**
@@ -84,44 +127,352 @@ public class Dex {
         return params;
     }
 
+    void setParams(Params params) {
+        this.params = params;
+
+        // The hashes of all files are cached in the one index in the private directory of the app
+        if (params != null) VerificationCache.getInstance().setDirectory(params.context.getDir("dex", Context.MODE_PRIVATE));
+    }
+
 
     /**
-     * Prepare instance file before start working, if file not exist, then copy from assets
+     * Like {@link #prepareDexFile(DexExecutor.Priority priority, Handler handler, ToDoInterface success, ToDoInterface failure)}
+     * with {@code priority = DexExecutor.Priority.CRITICAL}
+     */
+    public DexExecutor.Task prepareDexFile(Handler handler, ToDoInterface success, ToDoInterface failure) {
+        return prepareDexFile(DexExecutor.Priority.CRITICAL, handler, success, failure);
+    }
+
+    /**
+     * Prepare instance file before start working, if file not exist, then copy from assets.
+     * After success the classes of {@code params.preloadClasses} are prewarmed in background, see {@link #prewarm}
+     * @param priority - Priority of the task in {@link DexExecutor#getDefault()}
      * @param handler - Handler for work with UI thread
      * @param success - Interface to return success result finish work
      * @param failure - Interface to return failure result finish work
+     * @return handle of the task, which can be cancelled
      */
-    public void prepareDexFile(Handler handler, ToDoInterface success, ToDoInterface failure) {
+    public DexExecutor.Task prepareDexFile(DexExecutor.Priority priority, Handler handler, ToDoInterface success, ToDoInterface failure) {
         stopIfEmptyParams();
 
-        Utils.runInNewThread(() -> {
+        return DexExecutor.getDefault().execute(priority, () -> {
 
-            prepared = false;
-            if (Utils.isExists(params.context, params.fileName)) {
-                prepared = true;
+            prepareDexFileSync();
 
-                try {
+            if (handler != null) {
 
-                    if (params.fileVersion > getInstanceClassFromDex("parser.Parser").getVersion()) {
-                        reset();
+                handler.post(() -> {
 
-                        new File(Utils.getFileFullName(params.context, params.fileName)).delete();
-                        if (Utils.copyAssets(params.context, params.fileName, Utils.getFileFullName(params.context, params.fileName))) {
-                            prepared = params.md5AssetsFile.equals(Utils.getMD5(Utils.getFileFullName(params.context, params.fileName)));
-                        }
+                    if (prepared) {
+                        if (success != null) success.todo();
+                    } else {
+                        if (failure != null)  failure.todo();
                     }
-                } catch (Throwable ignored) { }
-            } else {
-                if (Utils.copyAssets(params.context, params.fileName, Utils.getFileFullName(params.context, params.fileName))) {
-                    prepared = params.md5AssetsFile.equals(Utils.getMD5(Utils.getFileFullName(params.context, params.fileName)));
+                });
+            }
+
+            if (prepared && !params.preloadClasses.isEmpty()) prewarm(null, null);
+        });
+    }
+
+
+    /**
+     * Load and instantiate the classes of {@code params.preloadClasses} in background,
+     * so the next {@link #getInstanceClassFromDex(String className)} finds them in cache.
+     * Classes are loaded in the declared order, the class is declared after the classes it depends on.
+     * Classes, which do not implement {@link Versioned}, are only loaded.
+     * @param handler - Handler for work with UI thread, or null
+     * @param callback - Interface to return the timings, or null
+     * @return handle of the task, which can be cancelled
+     */
+    public DexExecutor.Task prewarm(Handler handler, ToDoWithDataCallback<PrewarmReport> callback) {
+        stopIfEmptyParams();
+
+        List<String> classNames = new ArrayList<>(params.preloadClasses);
+        return DexExecutor.getDefault().execute(DexExecutor.Priority.NORMAL, () -> {
+
+            PrewarmReport report = new PrewarmReport();
+            try (Generation current = acquire()) {
+                for (String className : classNames) {
+                    if (Thread.currentThread().isInterrupted()) return;
+                    report.add(prewarmClass(current, className));
                 }
             }
 
+            prewarmReport = report;
+            if (handler != null && callback != null) handler.post(() -> callback.todo(report));
+        });
+    }
+
+    /**
+     * Returns the timings of the last finished {@link #prewarm}
+     * @return report, or null if nothing was prewarmed
+     */
+    public PrewarmReport getPrewarmReport() {
+        return prewarmReport;
+    }
+
+    private static PrewarmReport.Entry prewarmClass(Generation generation, String className) {
+        long startedAt = System.nanoTime();
+        long loadNanos = 0;
+
+        try {
+
+            Class clazz = generation.cache.getLoadedClass(className);
+            loadNanos = System.nanoTime() - startedAt;
+
+            long instantiateNanos = 0;
+            if (Versioned.class.isAssignableFrom(clazz)) {
+                startedAt = System.nanoTime();
+                generation.getInstanceClassFromDex(className);
+                instantiateNanos = System.nanoTime() - startedAt;
+            }
+
+            return new PrewarmReport.Entry(className, loadNanos, instantiateNanos, null);
+        } catch (Throwable throwable) {
+            if (loadNanos == 0) loadNanos = System.nanoTime() - startedAt;
+            return new PrewarmReport.Entry(className, loadNanos, 0, throwable);
+        }
+    }
+
+
+    /**
+     * Prepare instance file (sync), if file not exist or older than {@code params.fileVersion}, then copy from assets.
+     * The installed version is taken from {@link DexMeta}, the dex is not loaded. Run only in background thread.
+     * @return  true - if the file is ready, false otherwise
+     */
+    public boolean prepareDexFileSync() {
+        stopIfEmptyParams();
+
+        // The asset is already loaded in memory, it is not read and hashed again
+        if (isAssetInMemory()) {
+            prepared = true;
+            return true;
+        }
+
+        prepared = false;
+        File file = getInstalledFile();
+        File base = getSlots().getFile(DexSlots.BASE);
+
+        if (file.exists()) {
+            prepared = true;
+
+            try {
+
+                int installed = getInstalledVersionOrLoad(file);
+
+                // The file of unknown version may be a newer download, it is kept
+                if ((installed != DexMeta.UNKNOWN_VERSION && params.fileVersion > installed) || !isInstalledFileValid(file)) {
+                    reset();
+                    prepared = installFromAssets(base);
+                }
+            } catch (Throwable ignored) { }
+        } else {
+            prepared = installFromAssets(base);
+        }
+
+        return prepared;
+    }
+
+
+    /**
+     * Returns metadata of the installed file
+     * @return  metadata, or null if the file is not installed or was changed after the metadata was saved
+     */
+    public DexMeta getInstalledMeta() {
+        stopIfEmptyParams();
+
+        File file = getInstalledFile();
+        DexMeta meta = DexMeta.read(file);
+        return meta != null && meta.matches(file) ? meta : null;
+    }
+
+    /**
+     * Returns version of the installed file from its metadata, the dex is not loaded
+     * @return  version, or {@link DexMeta#UNKNOWN_VERSION}
+     */
+    public int getInstalledVersion() {
+        DexMeta meta = getInstalledMeta();
+        return meta != null ? meta.version : DexMeta.UNKNOWN_VERSION;
+    }
+
+
+    /**
+     * Like {@link #updateOldDex(int version, String md5)}
+     * with unknown {@code version} and {@code md5}
+     */
+    public boolean updateOldDex() {
+        return updateOldDex(DexMeta.UNKNOWN_VERSION, null);
+    }
+
+    /**
+     * Update old instance on new downloaded from server.
+     * The downloaded file is moved to the free slot of {@link #getSlots()}, then the slot is activated by
+     * the atomic update of the journal, so the installed file is never missing and the old version stays
+     * in its slot for {@link #rollback()}.
+     * The loaded generation is not changed, see {@link #hotSwap} to load the new version without a pause.
+     * The file with another md5 is not installed.
+     * @param version - version of the downloaded file, or {@link DexMeta#UNKNOWN_VERSION}
+     * @param md5 - md5 hash of the downloaded file, or null
+     * @return  true - if update finished success, false - if update failed.
+     */
+    public boolean updateOldDex(int version, String md5) {
+        stopIfEmptyParams();
+
+        File from = new File(Utils.getFileFullName(params.context, params.downloadFileName));
+        if (!from.exists() || !isDownloadValid(from, md5)) return false;
+
+        return install(from, version, md5);
+    }
+
+    /**
+     * Move the checked downloaded file to the free slot and activate it, see {@link #updateOldDex(int, String)}
+     */
+    private boolean install(File from, int version, String md5) {
+        DexSlots slots = getSlots();
+
+        int slot = moveToFreeSlot(slots, from, version, md5);
+        if (slot == DexSlots.NONE) return false;
+
+        boolean activated;
+        synchronized(swapLock) {
+            activated = slots.activate(slot);
+
+            // The next generation is loaded from the installed file instead of assets
+            if (activated) memoryAsset = null;
+        }
+
+        slots.release(slot);
+        return activated;
+    }
+
+    /**
+     * Move the checked downloaded file to the free slot with its metadata, the slot is not activated.
+     * The slot stays reserved for the caller, so it is not taken by another install, until
+     * {@link DexSlots#release(int)}.
+     * @return the slot, or {@link DexSlots#NONE} if the file is not moved
+     */
+    private int moveToFreeSlot(DexSlots slots, File from, int version, String md5) {
+        int slot = slots.getFreeSlot();
+        if (slot == DexSlots.NONE) return DexSlots.NONE;
+        File to = slots.getFile(slot);
+
+        // The hashes of the replaced file and of the moved download are not valid for the new paths
+        VerificationCache cache = VerificationCache.getInstance();
+        cache.invalidate(to);
+        DexMeta.delete(to);
+        if (!Utils.moveFile(from, to)) {
+            slots.release(slot);
+            return DexSlots.NONE;
+        }
+        cache.invalidate(from);
+        if (md5 != null) cache.record(to, "MD5", md5);
+        withIntegrity(DexMeta.of(to, version, md5, params.entryClass), to).write(to);
+
+        // The file and its metadata are on the disk before the journal points to them
+        Utils.syncFile(to);
+        Utils.syncDir(to.getParentFile());
+        return slot;
+    }
+
+    /**
+     * Remove the file of the slot, which was not activated, sample: the new version can not be loaded.
+     * Run before the reservation of the slot is released, so the next install does not lose its file
+     */
+    private void retireSlot(DexSlots slots, int slot) {
+        File file = slots.getFile(slot);
+        VerificationCache.getInstance().invalidate(file);
+        DexMeta.delete(file);
+        file.delete();
+    }
+
+    /**
+     * Return to the version, which was installed before the current one, sample: the new version does not work.
+     * Only the journal of {@link #getSlots()} is written, the previous file is still in its slot,
+     * so nothing is downloaded. The file of {@link DexSlots#BASE} removed for the in-memory load
+     * is copied from assets again, if the asset is not loaded in memory now. The previous version is loaded on the next use,
+     * callers, which acquired the current generation, keep working with it until they release it.
+     * @return  true - if rolled back, false - if there is no previous version
+     */
+    public boolean rollback() {
+        stopIfEmptyParams();
+
+        DexSlots slots = getSlots();
+        boolean inMemory = params.loadInMemory && Build.VERSION.SDK_INT >= 26;
+        synchronized(swapLock) {
+
+            synchronized(slots) {
+
+                File base = slots.getFile(DexSlots.BASE);
+                boolean toMissingBase = slots.getPreviousSlot() == DexSlots.BASE && !base.exists();
+                if (toMissingBase) VerificationCache.getInstance().invalidate(base);
+                if (toMissingBase && !inMemory && !copyFromAssets(base)) return false;
+                if (!slots.rollback(inMemory)) return false;
+            }
+
+            // The version from assets was loaded in memory, it is loaded the same way again
+            boolean toAssets = slots.getActiveSlot() == DexSlots.BASE && !slots.getFile(DexSlots.BASE).exists();
+            memoryAsset = toAssets && inMemory ? params.fileName : null;
+
+            publish(null);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the slots of the installed versions of the file
+     * @return  slots of {@code params.fileName}
+     */
+    public DexSlots getSlots() {
+        stopIfEmptyParams();
+
+        File dir = params.context.getDir("dex", Context.MODE_PRIVATE);
+        synchronized(this) {
+            if (slots == null || !slots.isOf(dir, params.fileName, params.slotCount)) {
+                slots = new DexSlots(dir, params.fileName, params.slotCount);
+            }
+            return slots;
+        }
+    }
+
+    /**
+     * Returns the file of the active slot
+     */
+    private File getInstalledFile() {
+        return getSlots().getActiveFile();
+    }
+
+
+    /**
+     * Like {@link #hotSwap(DexExecutor.Priority priority, Handler handler, int version, String md5, ToDoInterface success, ToDoInterface failure)}
+     * with {@code priority = DexExecutor.Priority.NORMAL}
+     */
+    public DexExecutor.Task hotSwap(Handler handler, int version, String md5, ToDoInterface success, ToDoInterface failure) {
+        return hotSwap(DexExecutor.Priority.NORMAL, handler, version, md5, success, failure);
+    }
+
+    /**
+     * Install the file downloaded from server and swap in its new version in background, see {@link #hotSwapSync}
+     * @param priority - Priority of the task in {@link DexExecutor#getDefault()}
+     * @param handler - Handler for work with UI thread
+     * @param version - version of the downloaded file, or {@link DexMeta#UNKNOWN_VERSION}
+     * @param md5 - md5 hash of the downloaded file, or null
+     * @param success - Interface to return success result finish work
+     * @param failure - Interface to return failure result finish work
+     * @return handle of the task, which can be cancelled
+     */
+    public DexExecutor.Task hotSwap(DexExecutor.Priority priority, Handler handler, int version, String md5, ToDoInterface success, ToDoInterface failure) {
+        stopIfEmptyParams();
+
+        return DexExecutor.getDefault().execute(priority, () -> {
+
+            boolean result = hotSwapSync(version, md5);
+
             if (handler != null) {
 
                 handler.post(() -> {
 
-                    if (prepared) {
+                    if (result) {
                         if (success != null) success.todo();
                     } else {
                         if (failure != null)  failure.todo();
@@ -131,50 +482,336 @@ public class Dex {
         });
     }
 
-
     /**
-     * Update old instance on new downloaded from server
-     * @return  true - if update finished success, false - if update failed.
+     * Install the file downloaded from server without stopping the work with the loaded version (sync).
+     * The downloaded file is moved to the free slot of {@link #getSlots()} and loaded from there in the new class loader,
+     * {@code params.entryClass} and {@code params.preloadClasses} are prewarmed, then the slot is activated
+     * and the new {@link Generation} is published at once.
+     * Callers, which acquired the old generation, keep working with it until they release it.
+     * If the new file has another md5, nothing is changed. If it can not be loaded, it is removed from the slot
+     * and the active version is not changed. Run only in background thread.
+     * @param version - version of the downloaded file, or {@link DexMeta#UNKNOWN_VERSION}
+     * @param md5 - md5 hash of the downloaded file, or null
+     * @return  true - if the new version is installed and published, false otherwise
      */
-    public boolean updateOldDex() {
+    public boolean hotSwapSync(int version, String md5) {
         stopIfEmptyParams();
+        Utils.stopIfMainThread();
+
+        File downloaded = new File(Utils.getFileFullName(params.context, params.downloadFileName));
+        if (!downloaded.exists() || !isDownloadValid(downloaded, md5)) return false;
+
+        // The class loader is created from the slot path, so its optimized file is named after the slot.
+        // The reservation of the slot is passed to the generation, so the slot is loaded and prewarmed
+        // without the lock of the slots and is not rewritten by the next download while the generation is used
+        DexSlots slots = getSlots();
+        int slot = moveToFreeSlot(slots, downloaded, version, md5);
+        if (slot == DexSlots.NONE) return false;
+
+        Generation next = new Generation(this, generations.incrementAndGet(), slots.getFile(slot), slot, null, null);
+        PrewarmReport report = new PrewarmReport();
+        boolean activated = false;
+        try {
+
+            if (params.entryClass != null) next.getInstanceClassFromDex(params.entryClass);
 
-        if (new File(Utils.getFileFullName(params.context, params.fileName)).delete()) {
-            File dir = params.context.getDir("dex", Context.MODE_PRIVATE);
-            if(dir.exists()) {
-                File from = new File(dir, params.downloadFileName);
-                File to = new File(dir, params.fileName);
-                if(from.exists()) {
-                    return from.renameTo(to);
+            for (String className : params.preloadClasses) {
+                report.add(prewarmClass(next, className));
+            }
+
+            // It is created now, even if there is no entry class and no preloaded classes
+            next.getClassLoader();
+
+            synchronized(swapLock) {
+                activated = slots.activate(slot);
+                if (activated) {
+                    // The next generation is loaded from the installed file instead of assets
+                    memoryAsset = null;
+                    prewarmReport = report;
+                    publish(next);
                 }
             }
+        } catch (Throwable ignored) {
+            // The new version can not be loaded, the active one is not changed
+        }
+
+        if (!activated) {
+            // The file is removed before the last reference releases the slot
+            retireSlot(slots, slot);
+            next.retire();
+            return false;
+        }
+
+        prepared = true;
+        return true;
+    }
+
+
+    /**
+     * Copy the file from assets and save its metadata, or load the asset in memory,
+     * if {@code params.loadInMemory} is set and supported
+     */
+    private boolean installFromAssets(File file) {
+        if (params.loadInMemory && Build.VERSION.SDK_INT >= 26) return loadFromAssetsInMemory(file);
+
+        if (memoryAsset != null) {
+            memoryAsset = null;
+            publish(null);
         }
+        return copyFromAssets(file) && getSlots().activate(DexSlots.BASE);
+    }
+
+    /**
+     * Copy the file from assets and save its metadata, the slot is not activated
+     */
+    private boolean copyFromAssets(File file) {
+        if (!Utils.copyAssets(params.context, params.fileName, file.getPath(), params.md5AssetsFile)) return false;
 
-        return false;
+        withIntegrity(DexMeta.of(file, params.fileVersion, params.md5AssetsFile, params.entryClass), file).write(file);
+        return true;
     }
 
+    /**
+     * Read and verify the asset, then publish the generation, which loads it by InMemoryDexClassLoader.
+     * Nothing is written, the installed file older than assets is removed.
+     */
+    private boolean loadFromAssetsInMemory(File file) {
+        ByteBuffer content;
+        try {
+            content = AssetExtractor.getDefault().load(params.context, params.fileName, params.md5AssetsFile);
+        } catch (Throwable throwable) {
+            return false;
+        }
+
+        VerificationCache.getInstance().invalidate(file);
+        DexMeta.delete(file);
+        file.delete();
+        if (!getSlots().activate(DexSlots.BASE)) return false;
+
+        Generation next;
+        synchronized(this) {
+            memoryAsset = params.fileName;
+            next = new Generation(this, generations.incrementAndGet(), file, DexSlots.BASE, memoryAsset, content);
+        }
+        publish(next);
+        return true;
+    }
+
+    /**
+     * Check if the current generation is loaded in memory from {@code params.fileName},
+     * or is created from it on the next use
+     */
+    private boolean isAssetInMemory() {
+        if (!params.fileName.equals(memoryAsset) || getSlots().getActiveSlot() != DexSlots.BASE) return false;
+
+        Generation current = generation;
+        return current == null || current.isInMemory(params.fileName);
+    }
 
     /**
-     * Reset var dexClassLoader for new init
+     * Checks the hash of the downloaded file, if it is known
+     */
+    private static boolean isDownloadValid(File file, String md5) {
+        return md5 == null || md5.equals(Utils.getMD5(file));
+    }
+
+    /**
+     * Checks the hash of the installed file with the hash from its metadata, if {@code params.verifyInstalled} is set.
+     * With {@link Integrity#TREE} the tree root is checked, the metadata without it is checked by md5.
+     * The file is hashed only if it was changed since the last check, see {@link VerificationCache}
+     */
+    private boolean isInstalledFileValid(File file) {
+        if (!params.verifyInstalled) return true;
+
+        DexMeta meta = DexMeta.read(file);
+        if (meta == null) return true;
+        if (params.integrity == Integrity.TREE && meta.treeHash != null) return meta.treeHash.equals(Utils.getTreeHash(file));
+        return meta.md5 == null || meta.md5.equals(Utils.getMD5(file));
+    }
+
+    /**
+     * Adds the tree root of the verified file to its metadata with {@link Integrity#TREE}, so the next
+     * check of the installed file is hashed by chunks in parallel
+     */
+    private DexMeta withIntegrity(DexMeta meta, File file) {
+        if (params.integrity != Integrity.TREE) return meta;
+
+        String treeHash = Utils.getTreeHash(file);
+        return meta.withTreeHash(treeHash.isEmpty() ? null : treeHash);
+    }
+
+    /**
+     * Returns the installed version from metadata. The file without metadata or with unknown version
+     * is loaded once to get the version of {@code params.entryClass}, which is saved for the next time.
+     * Without {@code params.entryClass} the version can not be known, the metadata is saved with
+     * {@link DexMeta#UNKNOWN_VERSION} and the installed file is trusted.
+     */
+    private int getInstalledVersionOrLoad(File file) throws ClassNotFoundException, IllegalAccessException, InstantiationException, FileNotFoundException {
+        DexMeta meta = DexMeta.read(file);
+        if (meta != null && !meta.matches(file)) meta = null;
+        if (meta != null && meta.version != DexMeta.UNKNOWN_VERSION) return meta.version;
+
+        String entryClass = meta != null && meta.entryClass != null ? meta.entryClass : params.entryClass;
+        if (entryClass == null) {
+            if (meta == null) DexMeta.of(file, DexMeta.UNKNOWN_VERSION, null, null).write(file);
+            return DexMeta.UNKNOWN_VERSION;
+        }
+
+        int version = getInstanceClassFromDex(entryClass).getVersion();
+        DexMeta.of(file, version, meta != null ? meta.md5 : null, entryClass).withTreeHash(meta != null ? meta.treeHash : null).write(file);
+        return version;
+    }
+
+
+    /**
+     * Reset the loaded generation for new init
      */
     public Dex reset() {
 
         prepared = false;
-        classes.clear();
-        objects.clear();
         resetDexClassLoader();
         return this;
     }
 
 
     /**
-     * Reset var dexClassLoader for new init
+     * Reset the loaded generation for new init, the class loader is created again on the next use.
+     * Callers, which acquired the old generation, keep working with it until they release it.
      */
     public Dex resetDexClassLoader() {
-        dexClassLoader = null;
+        unload();
+        return this;
+    }
+
+
+    /**
+     * Release the class loader and cached instances, the prepared file stays ready.
+     * Everything is loaded again on the next use.
+     */
+    public Dex unload() {
+        release();
+        registry.onUnloaded(this);
         return this;
     }
 
+    /**
+     * Unload without notifying {@link DexRegistry}, used by its eviction
+     */
+    void release() {
+        publish(null);
+    }
+
+    /**
+     * Returns the time of the last use in {@link System#nanoTime()}
+     */
+    long getLastUsed() {
+        return lastUsed;
+    }
+
+    void touch() {
+        lastUsed = System.nanoTime();
+    }
+
+
+    /**
+     * Returns the current generation with one more reference, so it is not released while it is used,
+     * even if the new version is swapped in. Must be closed after use.
+     * The class loader of the generation is created on the first use.
+     * @return  the current generation
+     */
+    public Generation acquire() {
+        for (;;) {
+            Generation current = currentGeneration();
+            if (current.acquire()) return current;
+        }
+    }
+
+    private Generation currentGeneration() {
+
+        Generation current = generation;
+        while (current == null) {
+
+            // The installed slot is reserved before the lock of Dex, see the lock order of slots.
+            // If anything was published meanwhile, the slot could be replaced, so it is reserved again
+            long published = publications;
+            DexSlots slots = getSlots();
+            int slot = slots.acquireActiveSlot();
+
+            synchronized(this) {
+
+                current = generation;
+                if (current == null && published == publications) {
+                    current = new Generation(this, generations.incrementAndGet(), slots.getFile(slot), slot, memoryAsset, null);
+                    generation = current;
+                    slot = DexSlots.BASE;
+                }
+            }
+
+            // Not used by the new generation
+            slots.release(slot);
+        }
+
+        return current;
+    }
+
+    /**
+     * Replace the current generation, the old one is released after its last caller
+     * @param next - the new generation, or null to create it on the next use
+     */
+    private void publish(Generation next) {
+
+        Generation old;
+        synchronized(this) {
+            old = generation;
+            generation = next;
+            publications++;
+        }
+
+        if (old != null) old.retire();
+        for (PluginHandle<?> handle : handles.values()) {
+            handle.invalidate();
+        }
+        for (InstancePool<?> pool : pools.values()) {
+            pool.clear();
+        }
+        if (next != null && next.isLoaded()) registry.onLoaded(this, next.getLoadedBytes());
+    }
+
+    /**
+     * Called by the generation after its class loader was created. Only the current generation
+     * is registered in {@link DexRegistry}, which can unload other plugins to keep the budget.
+     */
+    void onLoaded(Generation loaded) {
+        if (generation == loaded) registry.onLoaded(this, loaded.getLoadedBytes());
+    }
+
+    /**
+     * Called by the generation after its class loader was released with the last reference
+     */
+    void onUnloaded(Generation released) {
+        registry.onReleased(this);
+    }
+
+    /**
+     * Called by the generation after its last reference was released, the file of its slot can be rewritten
+     * @param slot - the reserved slot of the generation
+     */
+    void onReleased(int slot) {
+        DexSlots current;
+        synchronized(this) {
+            current = slots;
+        }
+        if (current != null) current.release(slot);
+    }
+
+    /**
+     * Check if the current generation has its class loader
+     */
+    boolean isLoaded() {
+        Generation current = generation;
+        return current != null && current.isLoaded();
+    }
+
 
     /**
      * Like {@link #getInstanceClassFromDex(String className, boolean needNewInstance)}
@@ -185,7 +822,8 @@ public class Dex {
     }
 
     /**
-     * Singleton for few classes from instance file
+     * Singleton for few classes from instance file.
+     * Thread-safe, concurrent callers of the same class wait for one load.
      * @param className - class name with package, sample "com.example.Class"
      * @param needNewInstance - true - if need replace old instance, false - use current instance if exist
      * @return  Instance of the specified class, by {@code className}
@@ -198,62 +836,86 @@ public class Dex {
      *          or if the instantiation fails for some other reason.
      */
     public Versioned getInstanceClassFromDex(String className, boolean needNewInstance) throws ClassNotFoundException, IllegalAccessException, InstantiationException, FileNotFoundException {
-
-        if (needNewInstance) {
-            classes.remove(className);
-            objects.remove(className);
+        try (Generation current = acquire()) {
+            return current.getInstanceClassFromDex(className, needNewInstance);
         }
+    }
 
-        Class clazz = null;
-        if (classes.containsKey(className)) {
-            clazz = classes.get(className);
-        } else {
-            clazz = getClassFromDex(className);
-            classes.put(className, clazz);
-        }
 
-        Versioned obj = null;
-        if (objects.containsKey(className)) {
-            obj = objects.get(className);
-        } else {
-            obj = (Versioned) clazz.newInstance();
-            objects.put(className, obj);
+    /**
+     * Returns the typed handle of the class from instance file, see {@link PluginHandle}.
+     * The handle follows the swapped versions, so it can be kept instead of calling
+     * {@link #getInstanceClassFromDex(String className)} on each use.
+     * @param type - interface of the class, which is loaded by the application class loader. Sample: {@code IParser.class}
+     * @param className - class name with package, sample "com.example.Class"
+     * @return  the same handle for the same {@code type} and {@code className}
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends Versioned> PluginHandle<T> getHandle(Class<T> type, String className) {
+        String key = type.getName() + '\n' + className;
+
+        PluginHandle<?> handle = handles.get(key);
+        if (handle == null) {
+            PluginHandle<T> newHandle = new PluginHandle<>(this, type, className);
+            handle = handles.putIfAbsent(key, newHandle);
+            if (handle == null) handle = newHandle;
         }
+        return (PluginHandle<T>) handle;
+    }
 
-        return obj;
+
+    /**
+     * Returns the pool of instances of the class from instance file, see {@link InstancePool}.
+     * Each borrower gets its own instance, so the class does not need to be thread-safe.
+     * The pool is cleared when the new version is swapped in.
+     * @param type - interface of the class, which is loaded by the application class loader. Sample: {@code IParser.class}
+     * @param className - class name with package, sample "com.example.Class"
+     * @return  the same pool for the same {@code type} and {@code className}
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends Versioned> InstancePool<T> getPool(Class<T> type, String className) {
+        String key = type.getName() + '\n' + className;
+
+        InstancePool<?> pool = pools.get(key);
+        if (pool == null) {
+            InstancePool<T> newPool = new InstancePool<>(this, type, className);
+            pool = pools.putIfAbsent(key, newPool);
+            if (pool == null) pool = newPool;
+        }
+        return (InstancePool<T>) pool;
     }
 
 
     /**
-     * Load and create class from instance file
+     * Create a new instance of the class from instance file on each call.
+     * The cached instance of {@link #getInstanceClassFromDex(String className)} is not changed,
+     * the class and its constructor are resolved only once.
      * @param className - class name with package, sample "com.example.Class"
-     * @return  Instance of the specified class, by {@code className}
+     * @return  New instance of the specified class, by {@code className}
      * @throws  FileNotFoundException - if the file was not found
      * @throws  ClassNotFoundException - if the class was not found
+     * @throws  IllegalAccessException - if the class or its nullary constructor is not public.
+     * @throws  InstantiationException - if the class is abstract or an interface,
+     *          or has no nullary constructor, or if the constructor throws a checked exception.
      */
-    public Class getClassFromDex(String className) throws ClassNotFoundException, FileNotFoundException {
-        return getDexClassLoader().loadClass(className);
+    public Versioned newInstance(String className) throws ClassNotFoundException, IllegalAccessException, InstantiationException, FileNotFoundException {
+        try (Generation current = acquire()) {
+            return current.newInstance(className);
+        }
     }
 
 
     /**
-     * Singleton for DexClassLoader
-     * @return  Instance of the DexClassLoader
+     * Load and create class from instance file
+     * @param className - class name with package, sample "com.example.Class"
+     * @return  Instance of the specified class, by {@code className}
      * @throws  FileNotFoundException - if the file was not found
+     * @throws  ClassNotFoundException - if the class was not found
      */
-    private DexClassLoader getDexClassLoader() throws FileNotFoundException {
-
-        if (dexClassLoader == null) {
-
-            String fullNameFile = Utils.getFileFullName(params.context, params.fileName);
-            if (!Utils.isExists(fullNameFile)) throw new FileNotFoundException();
-
-            File codeCacheDir = Utils.getCodeCacheDir(params.context);
-            ClassLoader classLoader = params.context.getClassLoader();
-            dexClassLoader = new DexClassLoader(fullNameFile, codeCacheDir.getAbsolutePath(), null, classLoader);
+    public Class getClassFromDex(String className) throws ClassNotFoundException, FileNotFoundException {
+        try (Generation current = acquire()) {
+            return current.getClassFromDex(className);
         }
-
-        return dexClassLoader;
     }
 
     /**
@@ -268,6 +930,21 @@ public class Dex {
     }
 
 
+    /**
+     * How the installed file is verified, see {@link Params#setIntegrity}
+     */
+    public enum Integrity {
+        /**
+         * MD5 of the whole file, read in one thread
+         */
+        MD5,
+        /**
+         * Merkle root of SHA-256 chunks, the chunks are memory mapped and hashed in parallel, see {@link TreeHash}
+         */
+        TREE
+    }
+
+
     public static class Params {
 
         Context context;
@@ -292,6 +969,38 @@ public class Dex {
          */
         String downloadFileName;
 
+        /**
+         * Class with the version of the file, which is loaded only if the version is not in {@link DexMeta}.
+         * Without it the installed file of unknown version is not replaced from assets.
+         * Sample: "com.example.Class"
+         */
+        String entryClass;
+
+        /**
+         * Check the hash of the installed file in {@link #prepareDexFile}, the broken file is copied from assets again
+         */
+        boolean verifyInstalled;
+
+        /**
+         * Hash of the installed file, which is checked with {@code verifyInstalled}
+         */
+        Integrity integrity = Integrity.MD5;
+
+        /**
+         * Classes, which are loaded in background after {@link #prepareDexFile}. Sample: "com.example.Class"
+         */
+        List<String> preloadClasses = new ArrayList<>();
+
+        /**
+         * Load the dex from assets in memory on API 26+, without copying it to the file
+         */
+        boolean loadInMemory;
+
+        /**
+         * Number of slots for the downloaded versions, see {@link DexSlots}
+         */
+        int slotCount = 2;
+
 
         public Params(Context context, String fileName, int fileVersion, String md5AssetsFile, String downloadFileName) {
             this.context = context;
@@ -326,5 +1035,53 @@ public class Dex {
             this.downloadFileName = downloadFileName;
             return this;
         }
+
+        public Params setEntryClass(String entryClass) {
+            this.entryClass = entryClass;
+            return this;
+        }
+
+        public Params setVerifyInstalled(boolean verifyInstalled) {
+            this.verifyInstalled = verifyInstalled;
+            return this;
+        }
+
+        /**
+         * Hash for {@link #setVerifyInstalled}. With {@link Integrity#TREE} the tree root is saved in {@link DexMeta},
+         * when the file is installed, and the large file is checked on all cores. The downloads are still checked
+         * by md5, which is computed while the file is written.
+         */
+        public Params setIntegrity(Integrity integrity) {
+            this.integrity = integrity;
+            return this;
+        }
+
+        /**
+         * Load the dex from assets by InMemoryDexClassLoader on API 26+: the asset is read or memory mapped and
+         * verified by {@link #prepareDexFile}, but not copied to the file. The older devices copy it as before.
+         * The file downloaded by {@link #updateOldDex} or {@link #hotSwap} is loaded from the file.
+         */
+        public Params setLoadInMemory(boolean loadInMemory) {
+            this.loadInMemory = loadInMemory;
+            return this;
+        }
+
+        /**
+         * Number of slots for the downloaded versions, at least 2: the active and the previous one.
+         * More slots keep more downloaded files on disk.
+         */
+        public Params setSlotCount(int slotCount) {
+            this.slotCount = Math.max(2, slotCount);
+            return this;
+        }
+
+        /**
+         * Classes to prewarm after {@link #prepareDexFile}, in the order of loading:
+         * the class is declared after the classes it depends on
+         */
+        public Params setPreloadClasses(String... classNames) {
+            this.preloadClasses = new ArrayList<>(Arrays.asList(classNames));
+            return this;
+        }
     }
 }
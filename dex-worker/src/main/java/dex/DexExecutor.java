@@ -0,0 +1,317 @@
+package dex;
+
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Bounded pool of named threads for the background work of dex-worker.
+ * Waiting tasks are ordered by {@link Priority}, then by submit order. The thread runs
+ * {@link Priority#CRITICAL} tasks with the default thread priority, other tasks with the background one.
+ */
+public class DexExecutor {
+
+    private static volatile DexExecutor defaultExecutor;
+    private final static Object lockObject = new Object();
+
+    /**
+     * Priority of the task, which runs in the current thread
+     */
+    private static final ThreadLocal<Priority> currentPriority = new ThreadLocal<>();
+
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong totalRunNanos = new AtomicLong();
+
+
+    /**
+     * Priority of the task, tasks with a higher priority start first
+     */
+    public enum Priority {
+        /**
+         * Work on the startup path, sample: {@link Dex#prepareDexFile}
+         */
+        CRITICAL,
+        NORMAL,
+        /**
+         * Work nobody is waiting for, sample: background update
+         */
+        BACKGROUND
+    }
+
+
+    /**
+     * Returns the shared executor, which is used by {@link Dex} and {@link Utils}
+     * @return instance of DexExecutor
+     */
+    public static DexExecutor getDefault() {
+
+        if (defaultExecutor == null) {
+
+            synchronized(lockObject) {
+
+                if (defaultExecutor == null) {
+                    int threads = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+                    defaultExecutor = new DexExecutor("dex-worker", threads);
+                }
+            }
+        }
+
+        return defaultExecutor;
+    }
+
+    /**
+     * Replace the shared executor. Tasks, which were submitted to the old one, are finished there.
+     * @param executor - new shared executor
+     */
+    public static void setDefault(DexExecutor executor) {
+        if (executor == null) throw new IllegalArgumentException("executor == null");
+
+        synchronized(lockObject) {
+            defaultExecutor = executor;
+        }
+    }
+
+
+    /**
+     * @param name - prefix of the thread names. Sample: "dex-worker"
+     * @param threads - max number of threads
+     */
+    public DexExecutor(String name, int threads) {
+        executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<>(), new NamedThreadFactory(name, android.os.Process.THREAD_PRIORITY_DEFAULT));
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+
+    /**
+     * Like {@link #execute(Priority priority, Runnable runnable)}
+     * with {@code priority = Priority.NORMAL}
+     */
+    public Task execute(Runnable runnable) {
+        return execute(Priority.NORMAL, runnable);
+    }
+
+    /**
+     * Run the code in one of the pool threads
+     * @param priority - priority of the task
+     * @param runnable - executable code.
+     * @return handle of the task, which can be cancelled
+     */
+    public Task execute(Priority priority, Runnable runnable) {
+        Task task = new Task(priority, runnable);
+        submitted.incrementAndGet();
+        executor.execute(task);
+        return task;
+    }
+
+    /**
+     * Returns the priority of the task, which runs in the current thread, so the nested work,
+     * sample: the ranges of {@link Downloader}, is submitted with the same priority
+     * @return priority of the task, or {@link Priority#NORMAL} outside of the tasks
+     */
+    public static Priority getCurrentPriority() {
+        Priority priority = currentPriority.get();
+        return priority != null ? priority : Priority.NORMAL;
+    }
+
+    /**
+     * Returns the statistics of the executor
+     * @return snapshot of the counters
+     */
+    public Stats getStats() {
+        return new Stats(executor.getQueue().size(), executor.getActiveCount(),
+                submitted.get(), completed.get(), cancelled.get(),
+                totalWaitNanos.get(), maxWaitNanos.get(), totalRunNanos.get());
+    }
+
+    /**
+     * Stop accepting new tasks, the already submitted tasks are finished
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+
+    /**
+     * Handle of the submitted task
+     */
+    public class Task extends FutureTask<Void> implements Comparable<Task> {
+
+        private final Priority priority;
+        private final long order = sequence.getAndIncrement();
+        private final long enqueuedAt = System.nanoTime();
+
+        Task(Priority priority, Runnable runnable) {
+            super(runnable, null);
+            this.priority = priority;
+        }
+
+        public Priority getPriority() {
+            return priority;
+        }
+
+        /**
+         * Cancel the task. Waiting task is removed from the queue, running task is interrupted.
+         * @return false - if the task could not be cancelled, typically because it has already completed
+         */
+        public boolean cancel() {
+            return cancel(true);
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean result = super.cancel(mayInterruptIfRunning);
+            if (result) {
+                cancelled.incrementAndGet();
+                executor.remove(this);
+            }
+            return result;
+        }
+
+        /**
+         * Cancel the task, if no pool thread took it yet. The started task is not interrupted.
+         * @return true - if the task was removed from the queue and will not run
+         */
+        boolean cancelIfWaiting() {
+            if (!executor.remove(this)) return false;
+            if (super.cancel(false)) cancelled.incrementAndGet();
+            return true;
+        }
+
+        /**
+         * Run the task in the current thread, if no pool thread took it yet, sample: the caller waits
+         * for the task and all pool threads are busy. The priority of the current thread is not changed.
+         * @return true - if the task was run, false - if it was started by the pool or cancelled
+         */
+        boolean runIfWaiting() {
+            if (!executor.remove(this)) return false;
+            runMeasured();
+            return true;
+        }
+
+        @Override
+        public void run() {
+            if (isDone()) return;
+
+            android.os.Process.setThreadPriority(priority == Priority.CRITICAL
+                    ? android.os.Process.THREAD_PRIORITY_DEFAULT
+                    : android.os.Process.THREAD_PRIORITY_BACKGROUND);
+            runMeasured();
+        }
+
+        private void runMeasured() {
+            long startedAt = System.nanoTime();
+            long wait = startedAt - enqueuedAt;
+            totalWaitNanos.addAndGet(wait);
+            for (long max = maxWaitNanos.get(); wait > max && !maxWaitNanos.compareAndSet(max, wait); max = maxWaitNanos.get());
+
+            Priority outer = currentPriority.get();
+            currentPriority.set(priority);
+            try {
+                super.run();
+            } finally {
+                currentPriority.set(outer);
+            }
+
+            totalRunNanos.addAndGet(System.nanoTime() - startedAt);
+            completed.incrementAndGet();
+        }
+
+        @Override
+        public int compareTo(Task another) {
+            int result = priority.compareTo(another.priority);
+            if (result != 0) return result;
+            return order < another.order ? -1 : (order == another.order ? 0 : 1);
+        }
+    }
+
+
+    /**
+     * Snapshot of the counters of {@link DexExecutor}
+     */
+    public static class Stats {
+
+        public final int queueDepth;
+        public final int activeThreads;
+        public final long submitted;
+        public final long completed;
+        public final long cancelled;
+        public final long totalWaitNanos;
+        public final long maxWaitNanos;
+        public final long totalRunNanos;
+
+        Stats(int queueDepth, int activeThreads, long submitted, long completed, long cancelled,
+              long totalWaitNanos, long maxWaitNanos, long totalRunNanos) {
+            this.queueDepth = queueDepth;
+            this.activeThreads = activeThreads;
+            this.submitted = submitted;
+            this.completed = completed;
+            this.cancelled = cancelled;
+            this.totalWaitNanos = totalWaitNanos;
+            this.maxWaitNanos = maxWaitNanos;
+            this.totalRunNanos = totalRunNanos;
+        }
+
+        /**
+         * Average time from submit to start of the task
+         */
+        public long getAverageWaitNanos() {
+            return completed == 0 ? 0 : totalWaitNanos / completed;
+        }
+
+        @Override
+        public String toString() {
+            return "Stats{queueDepth=" + queueDepth + ", activeThreads=" + activeThreads
+                    + ", submitted=" + submitted + ", completed=" + completed + ", cancelled=" + cancelled
+                    + ", averageWaitNanos=" + getAverageWaitNanos() + ", maxWaitNanos=" + maxWaitNanos
+                    + ", totalRunNanos=" + totalRunNanos + "}";
+        }
+    }
+
+
+    /**
+     * Creates named daemon threads, with the background priority by default.
+     * The threads of {@link DexExecutor} start with the default one, it is set by each task.
+     */
+    static class NamedThreadFactory implements ThreadFactory {
+
+        private final String name;
+        private final int threadPriority;
+        private final AtomicInteger number = new AtomicInteger(1);
+
+        NamedThreadFactory(String name) {
+            this(name, android.os.Process.THREAD_PRIORITY_BACKGROUND);
+        }
+
+        /**
+         * @param name - prefix of the thread names. Sample: "dex-worker"
+         * @param threadPriority - priority of {@link android.os.Process#setThreadPriority(int)}
+         */
+        NamedThreadFactory(String name, int threadPriority) {
+            this.name = name;
+            this.threadPriority = threadPriority;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(() -> {
+                android.os.Process.setThreadPriority(threadPriority);
+                runnable.run();
+            }, name + "-" + number.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package dex;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.Properties;
+
+
+/**
+ * Metadata of the installed dex file, which is saved next to it in {@code "<file>.meta"}.
+ * Lets to check the installed version without loading the dex.
+ */
+public class DexMeta {
+
+    public static final String META_SUFFIX = ".meta";
+
+    /**
+     * Version is not known, sample: the file was downloaded without version
+     */
+    public static final int UNKNOWN_VERSION = -1;
+
+    private static final String KEY_VERSION = "version";
+    private static final String KEY_MD5 = "md5";
+    private static final String KEY_SIZE = "size";
+    private static final String KEY_MODIFIED = "modified";
+    private static final String KEY_ENTRY_CLASS = "entryClass";
+    private static final String KEY_TREE_HASH = "treeHash";
+
+    public final int version;
+    public final String md5;
+    public final long size;
+    public final long modified;
+    public final String entryClass;
+
+    /**
+     * Root of {@link TreeHash} of the file, or null. Saved with {@link Dex.Integrity#TREE}
+     */
+    public final String treeHash;
+
+
+    public DexMeta(int version, String md5, long size, long modified, String entryClass) {
+        this(version, md5, size, modified, entryClass, null);
+    }
+
+    public DexMeta(int version, String md5, long size, long modified, String entryClass, String treeHash) {
+        this.version = version;
+        this.md5 = md5;
+        this.size = size;
+        this.modified = modified;
+        this.entryClass = entryClass;
+        this.treeHash = treeHash;
+    }
+
+    /**
+     * Metadata of the file as it is now on disk
+     * @param dexFile - the dex file
+     * @param version - version of the file, or {@link #UNKNOWN_VERSION}
+     * @param md5 - md5 hash of the file, or null
+     * @param entryClass - class with the version, or null
+     */
+    public static DexMeta of(File dexFile, int version, String md5, String entryClass) {
+        return new DexMeta(version, md5, dexFile.length(), dexFile.lastModified(), entryClass);
+    }
+
+
+    /**
+     * Returns the same metadata with the tree hash
+     * @param treeHash - root of {@link TreeHash} of the file, or null
+     */
+    public DexMeta withTreeHash(String treeHash) {
+        return new DexMeta(version, md5, size, modified, entryClass, treeHash);
+    }
+
+
+    /**
+     * Checks if the file was not changed since the metadata was saved
+     * @param dexFile - the dex file
+     * @return true - if the size and modification time are the same
+     */
+    public boolean matches(File dexFile) {
+        return dexFile.exists() && dexFile.length() == size && dexFile.lastModified() == modified;
+    }
+
+
+    /**
+     * Read the metadata of the file
+     * @param dexFile - the dex file
+     * @return metadata, or null if it is not saved or broken
+     */
+    public static DexMeta read(File dexFile) {
+        File file = new File(dexFile.getPath() + META_SUFFIX);
+        if (!file.exists()) return null;
+
+        InputStream is = null;
+        try {
+            is = new FileInputStream(file);
+            Properties properties = new Properties();
+            properties.load(is);
+
+            return new DexMeta(
+                    Integer.parseInt(properties.getProperty(KEY_VERSION)),
+                    properties.getProperty(KEY_MD5),
+                    Long.parseLong(properties.getProperty(KEY_SIZE)),
+                    Long.parseLong(properties.getProperty(KEY_MODIFIED)),
+                    properties.getProperty(KEY_ENTRY_CLASS),
+                    properties.getProperty(KEY_TREE_HASH));
+        } catch (Throwable throwable) {
+            return null;
+        } finally {
+            Utils.closeQuietly(is);
+        }
+    }
+
+    /**
+     * Save the metadata of the file, the old metadata is replaced atomically
+     * @param dexFile - the dex file
+     * @return true - if saved
+     */
+    public boolean write(File dexFile) {
+        File file = new File(dexFile.getPath() + META_SUFFIX);
+        File tmp = new File(file.getPath() + Utils.TMP_SUFFIX);
+
+        Properties properties = new Properties();
+        properties.setProperty(KEY_VERSION, String.valueOf(version));
+        if (md5 != null) properties.setProperty(KEY_MD5, md5);
+        properties.setProperty(KEY_SIZE, String.valueOf(size));
+        properties.setProperty(KEY_MODIFIED, String.valueOf(modified));
+        if (entryClass != null) properties.setProperty(KEY_ENTRY_CLASS, entryClass);
+        if (treeHash != null) properties.setProperty(KEY_TREE_HASH, treeHash);
+
+        FileOutputStream os = null;
+        try {
+            os = new FileOutputStream(tmp);
+            properties.store(os, null);
+            os.getFD().sync();
+            os.close();
+            return Utils.moveFile(tmp, file);
+        } catch (Throwable throwable) {
+            tmp.delete();
+            return false;
+        } finally {
+            Utils.closeQuietly(os);
+        }
+    }
+
+    /**
+     * Delete the metadata of the file
+     * @param dexFile - the dex file
+     */
+    public static void delete(File dexFile) {
+        new File(dexFile.getPath() + META_SUFFIX).delete();
+    }
+
+
+    @Override
+    public String toString() {
+        return "DexMeta{version=" + version + ", md5=" + md5 + ", size=" + size
+                + ", modified=" + modified + ", entryClass=" + entryClass + ", treeHash=" + treeHash + "}";
+    }
+}
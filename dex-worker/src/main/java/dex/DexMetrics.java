@@ -0,0 +1,325 @@
+package dex;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Durations and byte counts of the stages of dex-worker: download, hashing, copying of assets,
+ * creation of the class loader, loading of classes, instantiation and the calls of {@link PluginWorker}.
+ * Each stage has lock-free counters and a histogram of durations with power of two buckets.
+ * Disabled by default, then each measured place costs one read of a volatile field.
+ * Sample:
+ * <pre>
+ *     DexMetrics.getInstance().setEnabled(true);
+ *     ...
+ *     Log.d(TAG, DexMetrics.getInstance().getSnapshot().toString());
+ * </pre>
+ */
+public class DexMetrics {
+
+    /**
+     * Start time returned by {@link #start()}, when the metrics are disabled
+     */
+    static final long NOT_STARTED = Long.MIN_VALUE;
+
+    /**
+     * Bucket {@code i} holds the durations in {@code [2^(i-1), 2^i)} nanoseconds, bucket 0 holds 0
+     */
+    private static final int BUCKETS = 64;
+
+    private static DexMetrics instance;
+    private final static Object lockObject = new Object();
+
+    private volatile boolean enabled = false;
+    private volatile Listener listener = null;
+    private final EnumMap<Stage, Recorder> recorders = new EnumMap<>(Stage.class);
+
+
+    public enum Stage {
+        /**
+         * From the request to the response headers of the download
+         */
+        DOWNLOAD_FIRST_BYTE,
+        /**
+         * Whole download, bytes are the size of the downloaded file
+         */
+        DOWNLOAD,
+        /**
+         * Reading of the file for its hash
+         */
+        HASH,
+        /**
+         * Extraction of the file from assets
+         */
+        ASSET_COPY,
+        /**
+         * Construction of DexClassLoader, bytes are the size of the dex file
+         */
+        CLASS_LOADER_INIT,
+        /**
+         * Loading of one class by the class loader of the plugin
+         */
+        LOAD_CLASS,
+        /**
+         * Creation of one instance of the plugin class
+         */
+        INSTANTIATE,
+        /**
+         * From the submit of the input to {@link PluginWorker} to the start of its call
+         */
+        PLUGIN_WAIT,
+        /**
+         * One call of the plugin by {@link PluginWorker}
+         */
+        PLUGIN_CALL
+    }
+
+
+    /**
+     * Receives each measurement, sample: to export it. Called on the measured thread, so it must be fast.
+     */
+    public interface Listener {
+        void onMeasured(Stage stage, long nanos, long bytes);
+    }
+
+
+    /**
+     * Singleton for DexMetrics
+     * @return instance of DexMetrics
+     */
+    public static DexMetrics getInstance() {
+
+        if (instance == null) {
+
+            synchronized(lockObject) {
+
+                if (instance == null) {
+                    instance = new DexMetrics();
+                }
+            }
+        }
+
+        return instance;
+    }
+
+
+    /**
+     * Private constructor
+     */
+    private DexMetrics() {
+        for (Stage stage : Stage.values()) {
+            recorders.put(stage, new Recorder());
+        }
+    }
+
+
+    public DexMetrics setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        return this;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param listener - listener of measurements, or null
+     */
+    public DexMetrics setListener(Listener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+
+    /**
+     * Returns the counters of all stages
+     * @return snapshot of the counters
+     */
+    public Snapshot getSnapshot() {
+        EnumMap<Stage, StageSnapshot> stages = new EnumMap<>(Stage.class);
+        for (Map.Entry<Stage, Recorder> entry : recorders.entrySet()) {
+            stages.put(entry.getKey(), entry.getValue().snapshot(entry.getKey()));
+        }
+        return new Snapshot(stages);
+    }
+
+    /**
+     * Set all counters to zero
+     */
+    public void reset() {
+        for (Recorder recorder : recorders.values()) {
+            recorder.reset();
+        }
+    }
+
+
+    /**
+     * Returns the start time of the measurement
+     * @return {@link System#nanoTime()}, or {@link #NOT_STARTED} if the metrics are disabled
+     */
+    static long start() {
+        return getInstance().enabled ? System.nanoTime() : NOT_STARTED;
+    }
+
+    /**
+     * Record the measurement, which was started by {@link #start()}
+     * @param stage - the measured stage
+     * @param startedAt - result of {@link #start()}
+     * @param bytes - processed bytes, or 0
+     */
+    static void record(Stage stage, long startedAt, long bytes) {
+        if (startedAt == NOT_STARTED) return;
+
+        DexMetrics metrics = getInstance();
+        long nanos = Math.max(0, System.nanoTime() - startedAt);
+        metrics.recorders.get(stage).add(nanos, bytes);
+
+        Listener current = metrics.listener;
+        if (current != null) {
+            try {
+                current.onMeasured(stage, nanos, bytes);
+            } catch (Throwable ignored) { /* Nothing */ }
+        }
+    }
+
+
+    private static int bucket(long nanos) {
+        return nanos <= 0 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos));
+    }
+
+
+    /**
+     * Counters and histogram of one stage, also used by {@link PluginWorker} for its own statistics
+     */
+    static class Recorder {
+
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong totalNanos = new AtomicLong();
+        final AtomicLong maxNanos = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+        void add(long nanos, long processed) {
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            if (processed > 0) bytes.addAndGet(processed);
+            histogram.incrementAndGet(bucket(nanos));
+
+            for (long max = maxNanos.get(); nanos > max && !maxNanos.compareAndSet(max, nanos); max = maxNanos.get()) {
+                // Retry
+            }
+        }
+
+        StageSnapshot snapshot(Stage stage) {
+            long[] buckets = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = histogram.get(i);
+            }
+            return new StageSnapshot(stage, count.get(), totalNanos.get(), maxNanos.get(), bytes.get(), buckets);
+        }
+
+        void reset() {
+            count.set(0);
+            totalNanos.set(0);
+            maxNanos.set(0);
+            bytes.set(0);
+            for (int i = 0; i < BUCKETS; i++) {
+                histogram.set(i, 0);
+            }
+        }
+    }
+
+
+    /**
+     * Snapshot of the counters of {@link DexMetrics}
+     */
+    public static class Snapshot {
+
+        private final EnumMap<Stage, StageSnapshot> stages;
+
+        Snapshot(EnumMap<Stage, StageSnapshot> stages) {
+            this.stages = stages;
+        }
+
+        public StageSnapshot get(Stage stage) {
+            return stages.get(stage);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder("Snapshot{");
+            for (StageSnapshot stage : stages.values()) {
+                if (stage.count == 0) continue;
+                if (builder.length() > "Snapshot{".length()) builder.append(", ");
+                builder.append(stage);
+            }
+            return builder.append('}').toString();
+        }
+    }
+
+
+    /**
+     * Counters of one stage
+     */
+    public static class StageSnapshot {
+
+        public final Stage stage;
+        public final long count;
+        public final long totalNanos;
+        public final long maxNanos;
+        public final long bytes;
+        private final long[] histogram;
+
+        StageSnapshot(Stage stage, long count, long totalNanos, long maxNanos, long bytes, long[] histogram) {
+            this.stage = stage;
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+            this.bytes = bytes;
+            this.histogram = histogram;
+        }
+
+        public long getMeanNanos() {
+            return count == 0 ? 0 : totalNanos / count;
+        }
+
+        /**
+         * Throughput of the stage in bytes per second
+         */
+        public long getBytesPerSecond() {
+            return totalNanos == 0 ? 0 : (long) (bytes * 1e9 / totalNanos);
+        }
+
+        /**
+         * Returns the upper bound of the bucket with the percentile, so the result is at most twice the real value
+         * @param percentile - percentile from 0 to 100. Sample: {@code 99}
+         */
+        public long getPercentileNanos(double percentile) {
+            if (count == 0) return 0;
+
+            long rank = (long) Math.ceil(count * Math.min(100, Math.max(0, percentile)) / 100);
+            long seen = 0;
+            for (int i = 0; i < histogram.length; i++) {
+                seen += histogram[i];
+                if (seen >= rank && histogram[i] > 0) return Math.min(maxNanos, i == 0 ? 0 : (1L << i) - 1);
+            }
+            return maxNanos;
+        }
+
+        /**
+         * Returns a copy of the histogram: bucket {@code i} counts the durations in {@code [2^(i-1), 2^i)} nanoseconds
+         */
+        public long[] getHistogram() {
+            return histogram.clone();
+        }
+
+        @Override
+        public String toString() {
+            return stage + "{count=" + count + ", meanNanos=" + getMeanNanos() + ", p50Nanos=" + getPercentileNanos(50)
+                    + ", p99Nanos=" + getPercentileNanos(99) + ", maxNanos=" + maxNanos + ", bytes=" + bytes + "}";
+        }
+    }
+}
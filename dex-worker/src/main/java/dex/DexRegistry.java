@@ -0,0 +1,257 @@
+package dex;
+
+import android.os.Handler;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Registry of independent plugins. Each plugin is a {@link Dex} with its own {@link Dex.Params},
+ * file and DexClassLoader, the class loader is created on the first use.
+ * When the number of loaded plugins or their size is over the budget, the least recently used
+ * plugins are unloaded: their class loader and cached instances are released and loaded again
+ * on the next use.
+ */
+public class DexRegistry {
+
+    /**
+     * Id of the plugin returned by {@link Dex#getInstance()}
+     */
+    public static final String DEFAULT_ID = "default";
+
+    /**
+     * Number of plugins prepared at the same time by {@link #prepareAll(Handler, ToDoWithDataCallback)}
+     */
+    public static final int DEFAULT_PARALLELISM = 4;
+
+    private static DexRegistry instance;
+    private final static Object lockObject = new Object();
+
+    private final ConcurrentHashMap<String, Dex> plugins = new ConcurrentHashMap<>();
+
+    /**
+     * Loaded plugins and their size in bytes, guarded by {@code this}
+     */
+    private final HashMap<Dex, Long> loaded = new HashMap<>();
+    private long loadedBytes = 0;
+    private int maxLoaded = Integer.MAX_VALUE;
+    private long maxLoadedBytes = Long.MAX_VALUE;
+
+
+    /**
+     * Singleton for DexRegistry
+     * @return instance of DexRegistry
+     */
+    public static DexRegistry getInstance() {
+
+        if (instance == null) {
+
+            synchronized(lockObject) {
+
+                if (instance == null) {
+                    instance = new DexRegistry();
+                }
+            }
+        }
+
+        return instance;
+    }
+
+
+    /**
+     * Private constructor
+     */
+    private DexRegistry() {}
+
+
+    /**
+     * Register the plugin or replace parameters of the registered one.
+     * Nothing is loaded until the plugin is used.
+     * @param id - id of the plugin, sample: "parser"
+     * @param params - parameters of the plugin
+     * @return plugin for the {@code id}
+     */
+    public Dex register(String id, Dex.Params params) {
+        if (id == null || id.isEmpty()) throw new IllegalArgumentException("id is empty");
+
+        Dex dex = getOrCreate(id);
+        if (params != null) dex.setParams(params);
+        return dex;
+    }
+
+    /**
+     * Returns the registered plugin
+     * @param id - id of the plugin, sample: "parser"
+     * @return plugin, or null if the {@code id} is not registered
+     */
+    public Dex get(String id) {
+        return plugins.get(id);
+    }
+
+    /**
+     * Unload and remove the plugin
+     * @param id - id of the plugin, sample: "parser"
+     * @return removed plugin, or null if the {@code id} is not registered
+     */
+    public Dex unregister(String id) {
+        Dex dex = plugins.remove(id);
+        if (dex != null) dex.unload();
+        return dex;
+    }
+
+    /**
+     * Returns ids of the registered plugins
+     */
+    public List<String> getIds() {
+        return new ArrayList<>(plugins.keySet());
+    }
+
+
+    /**
+     * Like {@link #prepareAll(List ids, int parallelism, Handler handler, ToDoWithDataCallback callback)}
+     * with {@code ids = getIds()} and {@code parallelism = DEFAULT_PARALLELISM}
+     */
+    public PrepareBatch prepareAll(Handler handler, ToDoWithDataCallback<PrepareReport> callback) {
+        return prepareAll(getIds(), DEFAULT_PARALLELISM, handler, callback);
+    }
+
+    /**
+     * Prepare the plugins (async) in one parallel pass: copy, verify and prewarm each of them
+     * like {@link Dex#prepareDexFile}, but with one callback for all of them.
+     * The plugins are prepared in {@link DexExecutor#getDefault()} with {@link DexExecutor.Priority#CRITICAL},
+     * so the total time is close to the slowest plugin instead of the sum of them.
+     * @param ids - ids of the registered plugins, sample: {@code Arrays.asList("parser", "render")}
+     * @param parallelism - max number of plugins prepared at the same time. Sample: {@code 4}
+     * @param handler - handler for work with in UI Thread
+     * @param callback - callback with the result of each plugin
+     * @return batch, which can be cancelled
+     */
+    public PrepareBatch prepareAll(List<String> ids, int parallelism, Handler handler, ToDoWithDataCallback<PrepareReport> callback) {
+        PrepareBatch batch = new PrepareBatch(this, ids, handler, callback);
+        batch.start(DexExecutor.Priority.CRITICAL, parallelism);
+        return batch;
+    }
+
+
+    /**
+     * Max number of plugins with the loaded class loader
+     */
+    public DexRegistry setMaxLoaded(int maxLoaded) {
+        List<Dex> evicted;
+        synchronized(this) {
+            this.maxLoaded = Math.max(1, maxLoaded);
+            evicted = evict(null);
+        }
+        release(evicted);
+        return this;
+    }
+
+    /**
+     * Max total size of the dex files of the loaded plugins, in bytes.
+     * The size of the file is used as an estimate of the memory held by its class loader.
+     */
+    public DexRegistry setMaxLoadedBytes(long maxLoadedBytes) {
+        List<Dex> evicted;
+        synchronized(this) {
+            this.maxLoadedBytes = Math.max(0, maxLoadedBytes);
+            evicted = evict(null);
+        }
+        release(evicted);
+        return this;
+    }
+
+    /**
+     * Returns number of plugins with the loaded class loader
+     */
+    public synchronized int getLoadedCount() {
+        return loaded.size();
+    }
+
+    /**
+     * Returns total size of the dex files of the loaded plugins, in bytes
+     */
+    public synchronized long getLoadedBytes() {
+        return loadedBytes;
+    }
+
+
+    Dex getOrCreate(String id) {
+        Dex dex = plugins.get(id);
+        if (dex == null) {
+            Dex newDex = new Dex(id, this);
+            dex = plugins.putIfAbsent(id, newDex);
+            if (dex == null) dex = newDex;
+        }
+        return dex;
+    }
+
+    /**
+     * Called by the plugin after its class loader was created
+     */
+    void onLoaded(Dex dex, long bytes) {
+        List<Dex> evicted;
+        synchronized(this) {
+            Long old = loaded.put(dex, bytes);
+            if (old != null) loadedBytes -= old;
+            loadedBytes += bytes;
+            evicted = evict(dex);
+        }
+        release(evicted);
+    }
+
+    /**
+     * Called by the plugin after its class loader was released
+     */
+    synchronized void onUnloaded(Dex dex) {
+        Long old = loaded.remove(dex);
+        if (old != null) loadedBytes -= old;
+    }
+
+    /**
+     * Called by the plugin after the class loader of the generation was released by its last caller.
+     * The plugin stays registered, if its current generation is loaded, sample: the old version
+     * was released after the hot swap. The current generation is registered after its class loader
+     * is set, so the check under the lock does not drop the newly loaded one.
+     */
+    synchronized void onReleased(Dex dex) {
+        if (dex.isLoaded()) return;
+        onUnloaded(dex);
+    }
+
+    /**
+     * Remove the least recently used plugins from the loaded ones until the budget is met, guarded by {@code this}.
+     * The plugins are released by {@link #release(List)} after the lock, so their generations and pools
+     * are not cleared under the registry lock
+     * @param keep - plugin, which is not unloaded
+     * @return the removed plugins
+     */
+    private List<Dex> evict(Dex keep) {
+        List<Dex> evicted = new ArrayList<>();
+        while (loaded.size() > maxLoaded || (loadedBytes > maxLoadedBytes && loaded.size() > 1)) {
+
+            Dex eldest = null;
+            for (Map.Entry<Dex, Long> entry : loaded.entrySet()) {
+                Dex dex = entry.getKey();
+                if (dex != keep && (eldest == null || dex.getLastUsed() < eldest.getLastUsed())) {
+                    eldest = dex;
+                }
+            }
+
+            if (eldest == null) break;
+
+            loadedBytes -= loaded.remove(eldest);
+            evicted.add(eldest);
+        }
+        return evicted;
+    }
+
+    private static void release(List<Dex> evicted) {
+        for (Dex dex : evicted) {
+            dex.release();
+        }
+    }
+}
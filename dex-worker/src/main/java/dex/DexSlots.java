@@ -0,0 +1,254 @@
+package dex;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.Properties;
+
+
+/**
+ * Slots of the downloaded versions of the plugin in the dex directory, sample for {@code "parser.dex"}:
+ * <pre>
+ *     parser.dex          - the base slot, the file copied from assets
+ *     slot0-parser.dex    - the downloaded versions
+ *     slot1-parser.dex
+ *     parser.dex.journal  - active and previous slot
+ * </pre>
+ * The new version is written to the free slot, which is neither active nor previous, is not reserved
+ * by another install and is not used by a loaded {@link Generation}, so no loaded file is ever changed. Then it is activated by the atomic rename of the new journal over the old one,
+ * so after a crash either the old or the new version is active, never none of them.
+ * {@link #rollback()} activates the previous slot again by the journal only, without download or copy.
+ */
+public class DexSlots {
+
+    public static final String JOURNAL_SUFFIX = ".journal";
+
+    /**
+     * The slot of the file copied from assets
+     */
+    public static final int BASE = -1;
+
+    /**
+     * There is no previous slot
+     */
+    public static final int NONE = -2;
+
+    private static final String SLOT_PREFIX = "slot";
+    private static final String KEY_ACTIVE = "active";
+    private static final String KEY_PREVIOUS = "previous";
+
+    private final File dir;
+    private final String fileName;
+    private final int count;
+
+    /**
+     * Guarded by {@code this}
+     */
+    private int active = BASE;
+    private int previous = NONE;
+
+    /**
+     * Reservations of each slot by {@link #getFreeSlot()} and {@link #acquireActiveSlot()}, one per install
+     * and one per {@link Generation} created from the slot until its last reference is released.
+     * Guarded by {@code this}
+     */
+    private final int[] users;
+
+
+    /**
+     * @param dir - the dex directory
+     * @param fileName - file name with extension. Sample: "file.dex"
+     * @param count - number of slots for the downloaded versions, at least 2
+     */
+    DexSlots(File dir, String fileName, int count) {
+        this.dir = dir;
+        this.fileName = fileName;
+        this.count = Math.max(2, count);
+        this.users = new int[this.count];
+        readJournal();
+    }
+
+
+    /**
+     * Returns the active slot, or {@link #BASE}
+     */
+    public synchronized int getActiveSlot() {
+        return active;
+    }
+
+    /**
+     * Returns the slot, which was active before the active one, {@link #BASE} or {@link #NONE}
+     */
+    public synchronized int getPreviousSlot() {
+        return previous;
+    }
+
+    /**
+     * Check if there is the previous slot and its file exists
+     */
+    public synchronized boolean canRollback() {
+        return previous != NONE && getFile(previous).exists();
+    }
+
+    /**
+     * Returns the file of the slot
+     * @param slot - the slot, or {@link #BASE}
+     */
+    public File getFile(int slot) {
+        return new File(dir, slot == BASE ? fileName : SLOT_PREFIX + slot + "-" + fileName);
+    }
+
+    /**
+     * Returns the file of the active slot
+     */
+    public synchronized File getActiveFile() {
+        return getFile(active);
+    }
+
+    /**
+     * Returns the active slot reserved for the generation, which is created from its file,
+     * so the slot is not rewritten until {@link #release(int)}
+     * @return the slot, or {@link #BASE}, which is never rewritten by an install
+     */
+    synchronized int acquireActiveSlot() {
+        if (active >= 0) users[active]++;
+        return active;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+
+    /**
+     * Check if the slots are of the file
+     */
+    boolean isOf(File dir, String fileName, int count) {
+        return this.dir.equals(dir) && this.fileName.equals(fileName) && this.count == Math.max(2, count);
+    }
+
+    /**
+     * Returns the slot for the new version: the slot, which is neither active nor previous,
+     * or the previous one if all slots are taken. The previous slot is removed from the journal
+     * before it is returned, so {@link #rollback()} never activates the half-written file.
+     * The slot is reserved for the caller, it is not returned again until {@link #release(int)}.
+     * The slot of the retired generation, which is still used by its callers, is never returned
+     * @return the slot, or {@link #NONE} if all slots are reserved or the journal can not be saved
+     */
+    synchronized int getFreeSlot() {
+        for (int i = 0; i < count; i++) {
+            if (i != active && i != previous && users[i] == 0) {
+                users[i]++;
+                return i;
+            }
+        }
+
+        int slot = previous;
+        if (slot < 0 || users[slot] > 0 || !commit(active, NONE)) return NONE;
+        users[slot]++;
+        return slot;
+    }
+
+    /**
+     * Drop the reservation of {@link #getFreeSlot()} or {@link #acquireActiveSlot()}, sample: the slot was activated,
+     * its file was removed or the last reference of its generation was released
+     * @param slot - the slot, or {@link #BASE}, which is never reserved
+     */
+    synchronized void release(int slot) {
+        if (slot >= 0 && slot < count && users[slot] > 0) users[slot]--;
+    }
+
+    /**
+     * Make the slot active, the active one becomes previous
+     * @param slot - the slot, or {@link #BASE}
+     * @return true - if the journal is saved
+     */
+    synchronized boolean activate(int slot) {
+        if (slot == active) return true;
+        return commit(slot, active);
+    }
+
+    /**
+     * Like {@link #rollback(boolean baseInMemory)} with {@code baseInMemory = false}
+     */
+    synchronized boolean rollback() {
+        return rollback(false);
+    }
+
+    /**
+     * Make the previous slot active again, the active one becomes free. Only the journal is written.
+     * @param baseInMemory - true if {@link #BASE} is loaded in memory from assets, so its file is not needed
+     * @return true - if the journal is saved
+     */
+    synchronized boolean rollback(boolean baseInMemory) {
+        if (!canRollback() && !(previous == BASE && baseInMemory)) return false;
+        return commit(previous, NONE);
+    }
+
+
+    private boolean commit(int nextActive, int nextPrevious) {
+        Properties properties = new Properties();
+        properties.setProperty(KEY_ACTIVE, String.valueOf(nextActive));
+        properties.setProperty(KEY_PREVIOUS, String.valueOf(nextPrevious));
+
+        File journal = getJournalFile();
+        File tmp = new File(journal.getPath() + Utils.TMP_SUFFIX);
+
+        FileOutputStream os = null;
+        try {
+            os = new FileOutputStream(tmp);
+            properties.store(os, null);
+            os.getFD().sync();
+            os.close();
+            if (!Utils.moveFile(tmp, journal)) return false;
+            Utils.syncDir(dir);
+        } catch (Throwable throwable) {
+            tmp.delete();
+            return false;
+        } finally {
+            Utils.closeQuietly(os);
+        }
+
+        active = nextActive;
+        previous = nextPrevious;
+        return true;
+    }
+
+    private void readJournal() {
+        File journal = getJournalFile();
+        if (!journal.exists()) return;
+
+        InputStream is = null;
+        try {
+            is = new FileInputStream(journal);
+            Properties properties = new Properties();
+            properties.load(is);
+
+            active = toSlot(Integer.parseInt(properties.getProperty(KEY_ACTIVE)), BASE);
+            previous = toSlot(Integer.parseInt(properties.getProperty(KEY_PREVIOUS)), NONE);
+        } catch (Throwable ignored) {
+            active = BASE;
+            previous = NONE;
+        } finally {
+            Utils.closeQuietly(is);
+        }
+    }
+
+    /**
+     * Returns the slot, or the default one if the slot is out of range, sample: the number of slots was reduced
+     */
+    private int toSlot(int slot, int defaultSlot) {
+        return slot == BASE || slot == NONE || (slot >= 0 && slot < count) ? slot : defaultSlot;
+    }
+
+    private File getJournalFile() {
+        return new File(dir, fileName + JOURNAL_SUFFIX);
+    }
+
+
+    @Override
+    public synchronized String toString() {
+        return "DexSlots{fileName=" + fileName + ", count=" + count + ", active=" + active + ", previous=" + previous + "}";
+    }
+}
@@ -0,0 +1,375 @@
+package dex;
+
+import android.os.Handler;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+
+/**
+ * Download in progress, shared by all callers of the same url and target path. Only one flight writes the file.
+ * The later caller of the same url and path does not start the second transfer into the same file, it subscribes
+ * to the running one and receives the same result. The transfer is cancelled only when all subscribers cancelled.
+ * The caller of the same path with another url gets its own flight, which waits until the running one stopped
+ * writing the file, the same way as the caller after the cancel. The caller of the same url and path with
+ * another md5 is rejected, one of the hashes is wrong.
+ */
+public class DownloadFlight {
+
+    private static final ConcurrentHashMap<String, DownloadFlight> flights = new ConcurrentHashMap<>();
+
+    private final String key;
+    private final String fromUrl;
+    private final String toFullFileName;
+    private final String md5;
+    private final Transfer transfer;
+
+    /**
+     * Flight of the same file, which must end before this one starts, or null
+     */
+    private final DownloadFlight previous;
+    private final CountDownLatch ended = new CountDownLatch(1);
+
+    /**
+     * Guarded by {@code this}
+     */
+    private final List<Subscription> subscriptions = new ArrayList<>();
+    private int active = 0;
+    private boolean closed = false;
+    private DexExecutor.Task task;
+
+
+    /**
+     * Work of the flight, which writes the target file, sample: {@link Downloader}
+     */
+    interface Transfer {
+
+        /**
+         * Write the file (sync)
+         * @return true - if the file with the expected hash is ready
+         */
+        boolean run(String fromUrl, String toFullFileName, String md5);
+
+        /**
+         * Stop the running {@link #run}, it can be called from another thread
+         */
+        void cancel();
+    }
+
+
+    private DownloadFlight(String key, String fromUrl, String toFullFileName, String md5, Transfer transfer, DownloadFlight previous) {
+        this.key = key;
+        this.fromUrl = fromUrl;
+        this.toFullFileName = toFullFileName;
+        this.md5 = md5;
+        this.transfer = transfer;
+        this.previous = previous;
+    }
+
+
+    /**
+     * Download file (async) or subscribe to the same download in progress.
+     * The download runs in {@link DexExecutor#getDefault()} with {@link DexExecutor.Priority#BACKGROUND}.
+     * @param fromUrl - direct link to file download file
+     * @param toFullFileName - path to download and save the file
+     * @param md5 - expected hash of the downloading file, or null
+     * @param handler - handler for work with in UI Thread
+     * @param success - callback for success download
+     * @param failure - callback for failure download
+     * @return subscription, which can be cancelled
+     */
+    public static Subscription subscribe(String fromUrl, String toFullFileName, String md5, Handler handler, ToDoInterface success, ToDoInterface failure) {
+        return subscribe(fromUrl, toFullFileName, md5, of(new Downloader()), handler, success, failure);
+    }
+
+    /**
+     * Like {@link #subscribe(String, String, String, Handler, ToDoInterface, ToDoInterface)},
+     * the new flight runs the {@code transfer}, the joined caller drops it
+     */
+    static Subscription subscribe(String fromUrl, String toFullFileName, String md5, Transfer transfer, Handler handler, ToDoInterface success, ToDoInterface failure) {
+        String key = getKey(toFullFileName);
+
+        for (;;) {
+
+            DownloadFlight flight = flights.get(key);
+            boolean created = false;
+
+            if (flight == null) {
+                DownloadFlight newFlight = new DownloadFlight(key, fromUrl, toFullFileName, md5, transfer, null);
+                flight = flights.putIfAbsent(key, newFlight);
+                if (flight == null) {
+                    flight = newFlight;
+                    created = true;
+                }
+            } else if (flight.isClosed() || !equals(flight.fromUrl, fromUrl)) {
+                // The cancelled transfer or the transfer of another url keeps the part file until it ends,
+                // the new flight waits for it
+                DownloadFlight newFlight = new DownloadFlight(key, fromUrl, toFullFileName, md5, transfer, flight);
+                if (!flights.replace(key, flight, newFlight)) continue;
+                flight = newFlight;
+                created = true;
+            } else if (!flight.accepts(md5)) {
+                Subscription rejected = new Subscription(null, md5, handler, success, failure);
+                rejected.deliver(false);
+                return rejected;
+            }
+
+            Subscription subscription = flight.add(md5, handler, success, failure);
+            if (subscription != null) {
+                if (created) flight.start();
+                return subscription;
+            }
+        }
+    }
+
+    /**
+     * Download file (sync) or wait for the same download in progress. Run only in background thread.
+     * If the flight has not started yet, it runs in the calling thread, so the waiting pool thread
+     * does not wait for a free pool thread.
+     * @param fromUrl - direct link to file download file
+     * @param toFullFileName - path to download and save the file
+     * @param md5 - expected hash of the downloading file, or null
+     * @return boolean result of operation, true - successfully downloaded, false - download error.
+     */
+    public static boolean download(String fromUrl, String toFullFileName, String md5) {
+        return download(fromUrl, toFullFileName, md5, 1);
+    }
+
+    /**
+     * Like {@link #download(String fromUrl, String toFullFileName, String md5)}, the new download
+     * uses {@code connections} parallel connections, if the server supports ranges
+     * @param connections - number of parallel connections. Sample: {@code 1} - download with one connection
+     */
+    public static boolean download(String fromUrl, String toFullFileName, String md5, int connections) {
+        return download(fromUrl, toFullFileName, md5, of(new Downloader().setConnections(connections)));
+    }
+
+    /**
+     * Like {@link #download(String fromUrl, String toFullFileName, String md5)}, the new flight runs the {@code transfer}
+     */
+    static boolean download(String fromUrl, String toFullFileName, String md5, Transfer transfer) {
+        Subscription subscription = subscribe(fromUrl, toFullFileName, md5, transfer, null, null, null);
+        try {
+            if (subscription.flight != null) subscription.flight.runIfWaiting();
+            return subscription.await();
+        } catch (InterruptedException e) {
+            subscription.cancel();
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Check if the file is downloading now
+     * @param fromUrl - direct link to file download file
+     * @param toFullFileName - path to download and save the file
+     */
+    public static boolean isInFlight(String fromUrl, String toFullFileName) {
+        // The flight of the url can wait behind the flight of another url, or be waited for
+        for (DownloadFlight flight = flights.get(getKey(toFullFileName)); flight != null; flight = flight.previous) {
+            if (flight.ended.getCount() > 0 && equals(flight.fromUrl, fromUrl)) return true;
+        }
+        return false;
+    }
+
+
+    private static String getKey(String toFullFileName) {
+        return new File(toFullFileName).getAbsolutePath();
+    }
+
+    private static boolean equals(String first, String second) {
+        return first == null ? second == null : first.equals(second);
+    }
+
+    private static Transfer of(Downloader downloader) {
+        return new Transfer() {
+            @Override
+            public boolean run(String fromUrl, String toFullFileName, String md5) {
+                return downloader.download(fromUrl, toFullFileName, md5);
+            }
+
+            @Override
+            public void cancel() {
+                downloader.cancel();
+            }
+        };
+    }
+
+
+    private synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Check if the caller of the same url can join the flight: the hashes are equal or one of them is unknown
+     */
+    private boolean accepts(String md5) {
+        return md5 == null || this.md5 == null || this.md5.equals(md5);
+    }
+
+    private synchronized Subscription add(String md5, Handler handler, ToDoInterface success, ToDoInterface failure) {
+        if (closed) return null;
+
+        Subscription subscription = new Subscription(this, md5, handler, success, failure);
+        subscriptions.add(subscription);
+        active++;
+        return subscription;
+    }
+
+    private synchronized void start() {
+        task = DexExecutor.getDefault().execute(DexExecutor.Priority.BACKGROUND, () -> {
+            try {
+                if (previous != null) previous.ended.await();
+
+                // Nothing is delivered, if all subscribers cancelled
+                if (!isClosed()) finish(transfer.run(fromUrl, toFullFileName, md5));
+            } catch (InterruptedException e) {
+                finish(false);
+            } finally {
+                end();
+            }
+        });
+    }
+
+    private void runIfWaiting() {
+        DexExecutor.Task waiting;
+        synchronized(this) {
+            waiting = task;
+        }
+        if (waiting != null) waiting.runIfWaiting();
+    }
+
+    /**
+     * The transfer stopped writing the files, the next flight of the same file can start
+     */
+    private void end() {
+        // The next flight was cancelled while it waited, the previous transfer can still write the file
+        DownloadFlight running = previous;
+        while (running != null && running.ended.getCount() == 0) running = running.previous;
+
+        if (running != null) {
+            flights.replace(key, this, running);
+        } else {
+            flights.remove(key, this);
+        }
+        ended.countDown();
+    }
+
+    private void finish(boolean result) {
+        List<Subscription> subscribers;
+        synchronized(this) {
+            if (closed) return;
+            closed = true;
+            subscribers = new ArrayList<>(subscriptions);
+        }
+
+        for (Subscription subscription : subscribers) {
+            if (!subscription.cancelled) subscription.deliver(result && subscription.accepts(md5, toFullFileName));
+        }
+    }
+
+    /**
+     * @return true - if the subscription was active
+     */
+    private boolean cancel(Subscription subscription) {
+        DexExecutor.Task running;
+        synchronized(this) {
+            if (subscription.cancelled) return false;
+
+            subscription.cancelled = true;
+            if (closed) return false;
+            if (--active > 0) return true;
+
+            // The last subscriber left
+            closed = true;
+            running = task;
+        }
+
+        // The flight stays registered until its task ended, so the next caller does not write the same file
+        transfer.cancel();
+        if (running != null && running.cancelIfWaiting()) end();
+        return true;
+    }
+
+
+    /**
+     * Subscription of one caller to {@link DownloadFlight}
+     */
+    public static class Subscription {
+
+        private final DownloadFlight flight;
+        private final String md5;
+        private final Handler handler;
+        private final ToDoInterface success;
+        private final ToDoInterface failure;
+        private volatile boolean cancelled = false;
+        private volatile boolean result = false;
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        Subscription(DownloadFlight flight, String md5, Handler handler, ToDoInterface success, ToDoInterface failure) {
+            this.flight = flight;
+            this.md5 = md5;
+            this.handler = handler;
+            this.success = success;
+            this.failure = failure;
+        }
+
+        /**
+         * Unsubscribe, the callbacks are not called. The download is cancelled, if no one else is subscribed.
+         * @return false - if the download already finished or the subscription was already cancelled
+         */
+        public boolean cancel() {
+            boolean result;
+            if (flight != null) {
+                result = flight.cancel(this);
+            } else {
+                // The rejected subscription, its failure is not delivered after the cancel
+                cancelled = true;
+                result = false;
+            }
+
+            done.countDown();
+            return result;
+        }
+
+        /**
+         * Wait for the result of the download. Run only in background thread.
+         * @return true - if downloaded, false - if the download failed or the subscription was cancelled
+         * @throws InterruptedException - if the thread was interrupted while waiting
+         */
+        public boolean await() throws InterruptedException {
+            done.await();
+            return result && !cancelled;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * Check if the downloaded file has the hash of this subscriber, which can differ from the hash of the download
+         */
+        boolean accepts(String downloadedMd5, String toFullFileName) {
+            return md5 == null || md5.equals(downloadedMd5) || md5.equals(Utils.getMD5(toFullFileName));
+        }
+
+        void deliver(boolean result) {
+            this.result = result;
+            done.countDown();
+            if (cancelled || handler == null) return;
+
+            handler.post(() -> {
+                if (cancelled) return;
+
+                if (result) {
+                    if (success != null) success.todo();
+                } else {
+                    if (failure != null) failure.todo();
+                }
+            });
+        }
+    }
+}
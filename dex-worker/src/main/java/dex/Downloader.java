@@ -0,0 +1,680 @@
+package dex;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+
+/**
+ * Download engine for dex files.
+ * Unfinished bytes are kept in {@code "<file>.part"} and resumed on the next attempt with
+ * {@code Range}/{@code If-Range}. The file can also be fetched as a few parallel byte ranges
+ * into a preallocated part file. If the server does not support ranges, the file is downloaded
+ * from the start with one connection.
+ * The md5 hash is computed while the bytes are written, the file is renamed to the target
+ * only after the hash was checked.
+ * A new transfer accepts gzip/deflate and decompresses it on the way to disk; the compressed
+ * transfer can not be resumed, so it is started again after a failure.
+ */
+public class Downloader {
+
+    static final String PART_SUFFIX = ".part";
+    static final String STATE_SUFFIX = ".state";
+
+    private static final String KEY_VALIDATOR = "validator";
+    private static final String KEY_LENGTH = "length";
+    private static final String KEY_RANGES = "ranges";
+    private static final String KEY_ENCODING = "encoding";
+
+    /**
+     * Smallest range, which is worth a separate connection
+     */
+    private static final long MIN_RANGE_SIZE = 256 * 1024;
+
+    private int connections = 1;
+    private int connectTimeout = 15000;
+    private int readTimeout = 30000;
+    private int bufferSize = 16 * 1024;
+    private volatile boolean cancelled = false;
+    private volatile RateLimiter rateLimiter = null;
+    private volatile DexExecutor.Priority priority = null;
+
+    /**
+     * Opened connections, they are closed by {@link #cancel()} to stop the blocked reads
+     */
+    private final Set<HttpURLConnection> opened = Collections.newSetFromMap(new ConcurrentHashMap<HttpURLConnection, Boolean>());
+
+
+    /**
+     * Number of parallel connections. Sample: {@code 1} - download with one connection
+     */
+    public Downloader setConnections(int connections) {
+        this.connections = Math.max(1, connections);
+        return this;
+    }
+
+    public Downloader setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+        return this;
+    }
+
+    public Downloader setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+        return this;
+    }
+
+    public Downloader setBufferSize(int bufferSize) {
+        this.bufferSize = Math.max(1024, bufferSize);
+        return this;
+    }
+
+    /**
+     * Limit of this download, in addition to {@link RateLimiter#getGlobal()}. Shared by all its connections.
+     * @param rateLimiter - limiter, or null
+     */
+    public Downloader setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+        return this;
+    }
+
+
+    /**
+     * Priority of the parallel ranges in {@link DexExecutor#getDefault()}
+     * @param priority - priority, or null - the priority of the task, which calls {@link #download}
+     */
+    public Downloader setPriority(DexExecutor.Priority priority) {
+        this.priority = priority;
+        return this;
+    }
+
+
+    /**
+     * Stop the running download. The downloaded part stays on disk.
+     * Interrupting the downloading thread has the same effect.
+     */
+    public void cancel() {
+        cancelled = true;
+        for (HttpURLConnection connection : opened) {
+            connection.disconnect();
+        }
+
+        // The throttled reads wait for the tokens, they check the flag after the wake up
+        RateLimiter.getGlobal().wakeUp();
+        RateLimiter limiter = rateLimiter;
+        if (limiter != null) limiter.wakeUp();
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+
+    /**
+     * Like {@link #download(String fromUrl, String toFullFileName, String md5)}
+     * with {@code md5 = null} for downloading without checking md5
+     */
+    public boolean download(String fromUrl, String toFullFileName) {
+        return download(fromUrl, toFullFileName, null);
+    }
+
+    /**
+     * Download file (sync) by url in {@code fromUrl} to file by path in {@code toFullFileName}.
+     * If the download fails, the downloaded part stays on disk and the next call continues it.
+     * @param fromUrl - direct link to file download file
+     * @param toFullFileName - path to download and save the file
+     * @param md5 - expected hash of the downloading file, the file with another hash is deleted
+     * @return boolean result of operation, true - successfully downloaded, false - download error.
+     */
+    public boolean download(String fromUrl, String toFullFileName, String md5) {
+        if (cancelled) return false;
+
+        long startedAt = DexMetrics.start();
+        File target = new File(toFullFileName);
+        File part = new File(toFullFileName + PART_SUFFIX);
+        File stateFile = new File(toFullFileName + PART_SUFFIX + STATE_SUFFIX);
+
+        try {
+
+            if (target.exists()) target.delete();
+
+            URL url = new URL(fromUrl);
+            Properties state = readState(stateFile);
+            if (!part.exists()) state.clear();
+
+            MessageDigest digest = md5 == null ? null : MessageDigest.getInstance("MD5");
+
+            Boolean result = null;
+            if (connections > 1 || state.containsKey(KEY_RANGES)) {
+                result = downloadRanges(url, part, state, stateFile);
+
+                // Ranges are written out of order, so the assembled file is hashed once at the end.
+                // The ranges of the compressed transfer are the ranges of the compressed payload
+                String encoding = state.getProperty(KEY_ENCODING);
+                if (result != null && result) {
+                    if (Compression.isSupported(encoding)) {
+                        result = inflate(part, encoding, digest);
+                        if (!result) {
+                            part.delete();
+                            stateFile.delete();
+                        }
+                    } else if (digest != null) {
+                        updateDigest(digest, part);
+                    }
+                }
+            }
+
+            if (result == null) {
+                result = downloadSingle(url, part, state, stateFile, digest);
+            }
+
+            String hash = result && digest != null ? Utils.toHex(digest.digest()) : null;
+            if (hash != null && !md5.equals(hash)) {
+                part.delete();
+                stateFile.delete();
+                return false;
+            }
+
+            if (result && Utils.moveFile(part, target)) {
+                stateFile.delete();
+                if (hash != null) VerificationCache.getInstance().record(target, "MD5", hash);
+                DexMetrics.record(DexMetrics.Stage.DOWNLOAD, startedAt, target.length());
+                return true;
+            }
+        } catch (Throwable ignored) {
+            // Nothing, the part file is kept for the next attempt
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Download with one connection. Appends to the part file, if it was started with the same validator.
+     * @param digest - digest for the written bytes, or null
+     * @return true - if the part file is complete
+     */
+    private boolean downloadSingle(URL url, File part, Properties state, File stateFile, MessageDigest digest) throws IOException {
+
+        for (int attempt = 0; attempt < 2; attempt++) {
+
+            if (digest != null) digest.reset();
+
+            String validator = state.getProperty(KEY_VALIDATOR);
+            long offset = 0;
+            if (validator != null && !state.containsKey(KEY_RANGES)) {
+                offset = part.length();
+            } else {
+                part.delete();
+                state.clear();
+            }
+
+            long requestedAt = DexMetrics.start();
+            HttpURLConnection connection = open(url, "GET");
+            if (offset > 0) {
+                connection.setRequestProperty("Range", "bytes=" + offset + "-");
+                connection.setRequestProperty("If-Range", validator);
+            } else {
+                connection.setRequestProperty("Accept-Encoding", "gzip, deflate");
+            }
+
+            InputStream input = null;
+            OutputStream output = null;
+
+            try {
+
+                int code = connection.getResponseCode();
+                DexMetrics.record(DexMetrics.Stage.DOWNLOAD_FIRST_BYTE, requestedAt, 0);
+
+                if (code == 416 && offset > 0) {
+                    if (parseTotal(connection.getHeaderField("Content-Range")) == offset) {
+                        if (digest != null) updateDigest(digest, part);
+                        return true;
+                    }
+
+                    // The part does not match the file on server, start again
+                    state.clear();
+                    continue;
+                }
+
+                boolean append = code == HttpURLConnection.HTTP_PARTIAL && offset > 0
+                        && parseStart(connection.getHeaderField("Content-Range")) == offset;
+
+                if (!append) {
+                    if (code != HttpURLConnection.HTTP_OK) throw new IOException("Unexpected response code " + code);
+
+                    offset = 0;
+                    state.clear();
+                    String newValidator = getValidator(connection);
+                    if (newValidator != null) state.setProperty(KEY_VALIDATOR, newValidator);
+                }
+
+                input = new ThrottledInputStream(connection.getInputStream());
+                if (!append) input = Compression.decode(input, connection.getContentEncoding());
+
+                // Decompressed bytes can not be resumed with a range of the compressed payload
+                boolean decoding = Compression.isDecoding(input);
+                if (decoding) state.clear();
+                writeState(stateFile, state);
+
+                // Only the resumed prefix is read back, the rest is hashed on the way to disk
+                if (append && digest != null) updateDigest(digest, part);
+
+                output = new FileOutputStream(part, append);
+                if (digest != null) output = new DigestOutputStream(output, digest);
+
+                byte[] data = new byte[bufferSize];
+                int count;
+                while ((count = input.read(data)) != -1) {
+                    stopIfCancelled();
+                    output.write(data, 0, count);
+                }
+                output.flush();
+
+                long contentLength = parseLength(connection.getHeaderField("Content-Length"));
+                if (!decoding && contentLength >= 0 && part.length() != offset + contentLength) throw new IOException("Connection closed before the end of file");
+
+                return true;
+            } finally {
+                Utils.closeQuietly(output, input);
+                close(connection);
+            }
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Download with a few parallel connections into the preallocated part file.
+     * @return true - if the part file is complete, false - if one or more ranges failed,
+     *         null - if the server does not support ranges
+     */
+    private Boolean downloadRanges(URL url, File part, Properties state, File stateFile) throws IOException {
+
+        String validator = state.getProperty(KEY_VALIDATOR);
+        long[][] ranges = parseRanges(state.getProperty(KEY_RANGES));
+
+        if (validator == null || ranges == null || part.length() != parseLength(state.getProperty(KEY_LENGTH))) {
+
+            HttpURLConnection connection = open(url, "HEAD");
+            long length;
+            boolean acceptRanges;
+            String encoding;
+
+            try {
+                if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) return null;
+
+                length = parseLength(connection.getHeaderField("Content-Length"));
+                acceptRanges = "bytes".equalsIgnoreCase(connection.getHeaderField("Accept-Ranges"));
+                validator = getValidator(connection);
+                encoding = connection.getContentEncoding();
+            } finally {
+                close(connection);
+            }
+
+            if (!acceptRanges || validator == null || length < MIN_RANGE_SIZE * 2) {
+                part.delete();
+                state.clear();
+                return null;
+            }
+
+            ranges = splitRanges(length, (int) Math.min(connections, length / MIN_RANGE_SIZE));
+
+            RandomAccessFile file = new RandomAccessFile(part, "rw");
+            try {
+                file.setLength(length);
+            } finally {
+                Utils.closeQuietly(file);
+            }
+
+            state.clear();
+            state.setProperty(KEY_VALIDATOR, validator);
+            state.setProperty(KEY_LENGTH, String.valueOf(length));
+            state.setProperty(KEY_RANGES, formatRanges(ranges));
+            if (encoding != null) state.setProperty(KEY_ENCODING, encoding);
+            writeState(stateFile, state);
+        }
+
+        RangeTask[] tasks = new RangeTask[ranges.length];
+        DexExecutor.Task[] submitted = new DexExecutor.Task[ranges.length];
+        DexExecutor.Priority rangePriority = priority != null ? priority : DexExecutor.getCurrentPriority();
+        for (int i = 0; i < ranges.length; i++) {
+            tasks[i] = new RangeTask(url, part, validator, ranges[i]);
+            if (i > 0) submitted[i] = DexExecutor.getDefault().execute(rangePriority, tasks[i]);
+        }
+
+        // The first range is downloaded by the calling thread, the ranges, which are still waiting
+        // for a pool thread, too. So the download does not wait for the pool, which can be busy with it.
+        tasks[0].run();
+
+        boolean changed = false;
+        boolean completed = true;
+        for (int i = 0; i < ranges.length; i++) {
+            if (submitted[i] != null && !submitted[i].runIfWaiting()) {
+                try {
+                    submitted[i].get();
+                } catch (InterruptedException e) {
+                    cancel();
+                    for (DexExecutor.Task task : submitted) {
+                        if (task != null) task.cancel();
+                    }
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                } catch (ExecutionException ignored) {
+                    // Nothing, the range is not finished and continued on the next attempt
+                }
+            }
+            changed |= tasks[i].changed;
+            completed &= ranges[i][0] > ranges[i][1];
+        }
+
+        if (changed) {
+            // The file on server was replaced, the downloaded ranges are not usable
+            part.delete();
+            stateFile.delete();
+            state.clear();
+            return false;
+        }
+
+        state.setProperty(KEY_RANGES, formatRanges(ranges));
+        writeState(stateFile, state);
+        return completed;
+    }
+
+
+    /**
+     * Downloads one range {@code [range[0], range[1]]} and moves {@code range[0]} forward
+     */
+    private class RangeTask implements Runnable {
+
+        private final URL url;
+        private final File part;
+        private final String validator;
+        private final long[] range;
+        private boolean changed = false;
+
+        RangeTask(URL url, File part, String validator, long[] range) {
+            this.url = url;
+            this.part = part;
+            this.validator = validator;
+            this.range = range;
+        }
+
+        @Override
+        public void run() {
+            if (range[0] > range[1] || isStopped()) return;
+
+            HttpURLConnection connection = null;
+            InputStream input = null;
+            RandomAccessFile file = null;
+
+            try {
+
+                long requestedAt = DexMetrics.start();
+                connection = open(url, "GET");
+                connection.setRequestProperty("Range", "bytes=" + range[0] + "-" + range[1]);
+                connection.setRequestProperty("If-Range", validator);
+
+                int code = connection.getResponseCode();
+                DexMetrics.record(DexMetrics.Stage.DOWNLOAD_FIRST_BYTE, requestedAt, 0);
+                if (code != HttpURLConnection.HTTP_PARTIAL || parseStart(connection.getHeaderField("Content-Range")) != range[0]) {
+                    changed = code == HttpURLConnection.HTTP_OK;
+                    return;
+                }
+
+                input = new ThrottledInputStream(connection.getInputStream());
+                file = new RandomAccessFile(part, "rw");
+                FileChannel channel = file.getChannel();
+
+                byte[] data = new byte[bufferSize];
+                int count;
+                while (range[0] <= range[1] && !isStopped() && (count = input.read(data, 0, (int) Math.min(data.length, range[1] - range[0] + 1))) != -1) {
+                    if (isStopped()) return;
+
+                    ByteBuffer buffer = ByteBuffer.wrap(data, 0, count);
+                    while (buffer.hasRemaining()) {
+                        range[0] += channel.write(buffer, range[0]);
+                    }
+                }
+            } catch (Throwable ignored) {
+                // Nothing, the range is continued on the next attempt
+            } finally {
+                Utils.closeQuietly(file, input);
+                if (connection != null) close(connection);
+            }
+        }
+    }
+
+
+    /**
+     * Decompress the file, which was downloaded in ranges, and hash the decompressed bytes
+     * @param encoding - {@code Content-Encoding} of the transfer
+     * @param digest - digest for the decompressed bytes, or null
+     * @return true - if decompressed, false - if the payload is broken
+     */
+    private boolean inflate(File part, String encoding, MessageDigest digest) throws IOException {
+        File decoded = new File(part.getPath() + Utils.TMP_SUFFIX);
+        InputStream input = null;
+        OutputStream output = null;
+
+        try {
+            input = Compression.decode(new FileInputStream(part), encoding);
+            output = new FileOutputStream(decoded);
+            if (digest != null) output = new DigestOutputStream(output, digest);
+
+            byte[] data = new byte[bufferSize];
+            int count;
+            while ((count = input.read(data)) != -1) {
+                stopIfCancelled();
+                output.write(data, 0, count);
+            }
+        } catch (InterruptedIOException e) {
+            decoded.delete();
+            throw e;
+        } catch (IOException e) {
+            decoded.delete();
+            return false;
+        } finally {
+            Utils.closeQuietly(output, input);
+        }
+
+        return Utils.moveFile(decoded, part);
+    }
+
+    /**
+     * Stream of the response, which waits for the global and own limit of the bandwidth.
+     * The bytes are counted before decompression, as they are sent by the network.
+     */
+    private class ThrottledInputStream extends FilterInputStream {
+
+        ThrottledInputStream(InputStream input) {
+            super(input);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int result = super.read();
+            if (result != -1) throttle(1);
+            return result;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int count = super.read(buffer, offset, length);
+            if (count > 0) throttle(count);
+            return count;
+        }
+
+        private void throttle(int count) throws InterruptedIOException {
+            RateLimiter.getGlobal().acquire(count, Downloader.this);
+
+            RateLimiter limiter = rateLimiter;
+            if (limiter != null) limiter.acquire(count, Downloader.this);
+        }
+    }
+
+    private void stopIfCancelled() throws InterruptedIOException {
+        if (isStopped()) throw new InterruptedIOException("Download cancelled");
+    }
+
+    private boolean isStopped() {
+        return cancelled || Thread.currentThread().isInterrupted();
+    }
+
+    private void updateDigest(MessageDigest digest, File file) throws IOException {
+        long startedAt = DexMetrics.start();
+        InputStream is = new FileInputStream(file);
+        try {
+            byte[] data = new byte[bufferSize];
+            int count;
+            while ((count = is.read(data)) != -1) {
+                digest.update(data, 0, count);
+            }
+            DexMetrics.record(DexMetrics.Stage.HASH, startedAt, file.length());
+        } finally {
+            Utils.closeQuietly(is);
+        }
+    }
+
+    private HttpURLConnection open(URL url, String method) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(connectTimeout);
+        connection.setReadTimeout(readTimeout);
+        connection.setRequestProperty("Accept-Encoding", "identity");
+
+        opened.add(connection);
+        if (cancelled) {
+            close(connection);
+            throw new InterruptedIOException("Download cancelled");
+        }
+        return connection;
+    }
+
+    private void close(HttpURLConnection connection) {
+        opened.remove(connection);
+        connection.disconnect();
+    }
+
+    /**
+     * Strong validator of the response for {@code If-Range}: ETag or Last-Modified
+     */
+    private static String getValidator(HttpURLConnection connection) {
+        String eTag = connection.getHeaderField("ETag");
+        if (eTag != null && !eTag.startsWith("W/")) return eTag;
+        return connection.getHeaderField("Last-Modified");
+    }
+
+    private static long[][] splitRanges(long length, int count) {
+        long[][] ranges = new long[count][];
+        long size = length / count;
+        for (int i = 0; i < count; i++) {
+            long start = i * size;
+            long end = i == count - 1 ? length - 1 : start + size - 1;
+            ranges[i] = new long[] {start, end};
+        }
+        return ranges;
+    }
+
+    /**
+     * Format of ranges: "position-end,position-end"
+     */
+    private static String formatRanges(long[][] ranges) {
+        StringBuilder builder = new StringBuilder();
+        for (long[] range : ranges) {
+            if (builder.length() > 0) builder.append(',');
+            builder.append(range[0]).append('-').append(range[1]);
+        }
+        return builder.toString();
+    }
+
+    private static long[][] parseRanges(String value) {
+        if (value == null || value.isEmpty()) return null;
+
+        try {
+            String[] items = value.split(",");
+            long[][] ranges = new long[items.length][];
+            for (int i = 0; i < items.length; i++) {
+                String[] bounds = items[i].split("-");
+                ranges[i] = new long[] {Long.parseLong(bounds[0]), Long.parseLong(bounds[1])};
+            }
+            return ranges;
+        } catch (Throwable throwable) {
+            return null;
+        }
+    }
+
+    private static long parseLength(String value) {
+        try {
+            return value == null ? -1 : Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Start of "bytes 100-199/1000"
+     */
+    private static long parseStart(String contentRange) {
+        if (contentRange == null) return -1;
+        int from = contentRange.indexOf(' ');
+        int to = contentRange.indexOf('-');
+        return from < 0 || to < from ? -1 : parseLength(contentRange.substring(from + 1, to));
+    }
+
+    /**
+     * Total length of "bytes 100-199/1000" or "bytes &#42;/1000"
+     */
+    private static long parseTotal(String contentRange) {
+        if (contentRange == null) return -1;
+        int from = contentRange.indexOf('/');
+        return from < 0 ? -1 : parseLength(contentRange.substring(from + 1));
+    }
+
+    private static Properties readState(File file) {
+        Properties properties = new Properties();
+        if (!file.exists()) return properties;
+
+        InputStream is = null;
+        try {
+            is = new FileInputStream(file);
+            properties.load(is);
+        } catch (Throwable ignored) {
+            properties.clear();
+        } finally {
+            Utils.closeQuietly(is);
+        }
+        return properties;
+    }
+
+    private static void writeState(File file, Properties properties) throws IOException {
+        if (properties.isEmpty()) {
+            file.delete();
+            return;
+        }
+
+        OutputStream os = new FileOutputStream(file);
+        try {
+            properties.store(os, null);
+        } finally {
+            Utils.closeQuietly(os);
+        }
+    }
+}
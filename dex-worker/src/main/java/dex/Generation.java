@@ -0,0 +1,279 @@
+package dex;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import dalvik.system.DexClassLoader;
+import dalvik.system.InMemoryDexClassLoader;
+
+
+/**
+ * One loaded version of the plugin: the class loader of its dex file and the cached classes and instances.
+ * {@link Dex} publishes one current generation, the new version is loaded and warmed in the new generation
+ * and swapped in atomically, see {@link Dex#hotSwap}.
+ * The replaced generation keeps working for the callers, which acquired it, its cache is cleared
+ * after the last of them released it.
+ * Sample:
+ * <pre>
+ *     try (Generation generation = dex.acquire()) {
+ *         generation.getInstanceClassFromDex("com.example.Class");
+ *     }
+ * </pre>
+ */
+public class Generation implements Closeable {
+
+    private final Dex dex;
+    private final long number;
+    private final File file;
+
+    /**
+     * The slot of the file, which is reserved in {@link DexSlots} until the last reference is released
+     */
+    private final int slot;
+
+    /**
+     * Asset, which is loaded in memory instead of the file, or null
+     */
+    private final String assetName;
+    private volatile ByteBuffer content;
+    private volatile long loadedBytes = 0;
+
+    /**
+     * The reference of {@link Dex} while the generation is current, and one per {@link Dex#acquire()}
+     */
+    private final AtomicInteger references = new AtomicInteger(1);
+    private volatile boolean retired = false;
+    private volatile ClassLoader classLoader = null;
+    final ClassCache cache = new ClassCache(this::loadClass);
+
+
+    /**
+     * @param file - the dex file
+     * @param slot - the reserved slot of the file, or {@link DexSlots#BASE}
+     * @param assetName - the asset to load in memory on API 26+, or null to load the file
+     * @param content - the already read content of the asset, or null to read it on the first use
+     */
+    Generation(Dex dex, long number, File file, int slot, String assetName, ByteBuffer content) {
+        this.dex = dex;
+        this.number = number;
+        this.file = file;
+        this.slot = slot;
+        this.assetName = assetName;
+        this.content = content;
+    }
+
+
+    /**
+     * Returns the number of the generation, it grows with each new generation of the plugin
+     */
+    public long getNumber() {
+        return number;
+    }
+
+    /**
+     * Returns the dex file, which the class loader was created from
+     * @return the file, or null if the dex is loaded in memory from assets
+     */
+    public File getFile() {
+        return isInMemory() ? null : file;
+    }
+
+    /**
+     * Check if the dex is loaded from assets in memory, without the file
+     */
+    public boolean isInMemory() {
+        return assetName != null && Build.VERSION.SDK_INT >= 26;
+    }
+
+    /**
+     * Check if the dex is loaded in memory from the asset {@code assetName}
+     */
+    boolean isInMemory(String assetName) {
+        return isInMemory() && this.assetName.equals(assetName);
+    }
+
+    /**
+     * Check if the class loader is already created
+     */
+    public boolean isLoaded() {
+        return classLoader != null;
+    }
+
+    /**
+     * Check if the generation was replaced by the newer one
+     */
+    public boolean isRetired() {
+        return retired;
+    }
+
+
+    /**
+     * Like {@link Dex#getInstanceClassFromDex(String className)}, but from this generation
+     */
+    public Versioned getInstanceClassFromDex(String className) throws ClassNotFoundException, IllegalAccessException, InstantiationException, FileNotFoundException {
+        return getInstanceClassFromDex(className, false);
+    }
+
+    /**
+     * Like {@link Dex#getInstanceClassFromDex(String className, boolean needNewInstance)}, but from this generation
+     */
+    public Versioned getInstanceClassFromDex(String className, boolean needNewInstance) throws ClassNotFoundException, IllegalAccessException, InstantiationException, FileNotFoundException {
+        dex.touch();
+        return cache.getInstance(className, needNewInstance);
+    }
+
+    /**
+     * Like {@link Dex#newInstance(String className)}, but from this generation
+     */
+    public Versioned newInstance(String className) throws ClassNotFoundException, IllegalAccessException, InstantiationException, FileNotFoundException {
+        dex.touch();
+        return cache.newInstance(className);
+    }
+
+    /**
+     * Like {@link Dex#getClassFromDex(String className)}, but from this generation
+     */
+    public Class getClassFromDex(String className) throws ClassNotFoundException, FileNotFoundException {
+        dex.touch();
+        return loadClass(className);
+    }
+
+
+    /**
+     * Release the generation acquired by {@link Dex#acquire()}, call it once per acquire
+     */
+    @Override
+    public void close() {
+        release();
+    }
+
+
+    /**
+     * Take one more reference
+     * @return true - if taken, false - if the generation is already released
+     */
+    boolean acquire() {
+        for (;;) {
+            int count = references.get();
+            if (count <= 0) return false;
+            if (references.compareAndSet(count, count + 1)) return true;
+        }
+    }
+
+    /**
+     * Drop one reference, the cache and class loader are released with the last one,
+     * {@link DexRegistry} is notified, that the memory is free, and the slot can be rewritten
+     */
+    void release() {
+        if (references.decrementAndGet() == 0) {
+            boolean loaded = classLoader != null;
+            cache.clear();
+            classLoader = null;
+            if (loaded) dex.onUnloaded(this);
+            dex.onReleased(slot);
+        }
+    }
+
+    /**
+     * Drop the reference of {@link Dex}, called after the generation was replaced
+     */
+    void retire() {
+        retired = true;
+        release();
+    }
+
+    /**
+     * Returns the size of the dex, as an estimate of the memory held by the class loader
+     */
+    long getLoadedBytes() {
+        return loadedBytes;
+    }
+
+
+    private Class loadClass(String className) throws ClassNotFoundException, FileNotFoundException {
+        ClassLoader loader = getClassLoader();
+
+        long startedAt = DexMetrics.start();
+        Class clazz = loader.loadClass(className);
+        DexMetrics.record(DexMetrics.Stage.LOAD_CLASS, startedAt, 0);
+        return clazz;
+    }
+
+    /**
+     * Singleton for DexClassLoader of this generation, or InMemoryDexClassLoader if the dex is loaded from assets
+     * in memory, see {@link Dex.Params#setLoadInMemory(boolean)}. The new class loader is reported to {@link Dex},
+     * which registers it in {@link DexRegistry}.
+     * @return  Instance of the DexClassLoader
+     * @throws  FileNotFoundException - if the file was not found
+     * @throws  IllegalStateException - if the generation is already released
+     */
+    ClassLoader getClassLoader() throws FileNotFoundException {
+
+        ClassLoader loader = classLoader;
+        if (loader == null) {
+
+            boolean created = false;
+            synchronized(this) {
+
+                loader = classLoader;
+                if (loader == null) {
+
+                    if (references.get() <= 0) throw new IllegalStateException("Generation " + number + " is released.");
+
+                    loader = isInMemory() ? createInMemoryClassLoader() : createClassLoader();
+                    classLoader = loader;
+                    created = true;
+                }
+            }
+
+            if (created) dex.onLoaded(this);
+        }
+
+        return loader;
+    }
+
+    private ClassLoader createClassLoader() throws FileNotFoundException {
+        if (!file.exists()) throw new FileNotFoundException(file.getPath());
+
+        Dex.Params params = dex.getParams();
+        long startedAt = DexMetrics.start();
+        File codeCacheDir = Utils.getCodeCacheDir(params.context);
+        ClassLoader loader = new DexClassLoader(file.getPath(), codeCacheDir.getAbsolutePath(), null, params.context.getClassLoader());
+        loadedBytes = file.length();
+        DexMetrics.record(DexMetrics.Stage.CLASS_LOADER_INIT, startedAt, loadedBytes);
+        return loader;
+    }
+
+    /**
+     * The asset was verified by {@link Dex#prepareDexFileSync()}, the apk is not changed while the app runs,
+     * so the asset is not hashed again, when the generation is created after the unload
+     */
+    @TargetApi(26)
+    private ClassLoader createInMemoryClassLoader() throws FileNotFoundException {
+        Dex.Params params = dex.getParams();
+
+        ByteBuffer buffer = content;
+        if (buffer == null) {
+            try {
+                buffer = AssetExtractor.getDefault().load(params.context, assetName, null);
+            } catch (Throwable throwable) {
+                FileNotFoundException exception = new FileNotFoundException(assetName);
+                exception.initCause(throwable);
+                throw exception;
+            }
+        }
+        content = null;
+
+        long startedAt = DexMetrics.start();
+        loadedBytes = buffer.remaining();
+        ClassLoader loader = new InMemoryDexClassLoader(buffer, params.context.getClassLoader());
+        DexMetrics.record(DexMetrics.Stage.CLASS_LOADER_INIT, startedAt, loadedBytes);
+        return loader;
+    }
+}
@@ -0,0 +1,262 @@
+package dex;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Bounded pool of instances of the plugin class, which keeps the state of one call and is not thread-safe,
+ * see {@link Dex#getPool(Class type, String className)}. Each borrowed instance is used by one thread
+ * until the lease is closed, then it is reused by the next borrower.
+ * The thread gets back the instance it returned last, if it is still idle. Instances idle for longer than
+ * the idle timeout are dropped. All idle instances are dropped when the new version is swapped in,
+ * the borrowed instances of the old version are dropped on return.
+ * Sample:
+ * <pre>
+ *     InstancePool&lt;IParser&gt; parsers = Dex.getInstance().getPool(IParser.class, "parser.Parser").setMaxSize(4);
+ *     ...
+ *     try (InstancePool.Lease&lt;IParser&gt; lease = parsers.borrow()) {
+ *         lease.get().testIsOk();
+ *     }
+ * </pre>
+ * @param <T> - interface of the plugin class, which is loaded by the application class loader
+ */
+public class InstancePool<T extends Versioned> {
+
+    private final Dex dex;
+    private final Class<T> type;
+    private final String className;
+
+    /**
+     * Guarded by {@code this}. The most recently returned instance is the first
+     */
+    private final ArrayDeque<Idle<T>> idle = new ArrayDeque<>();
+    private int size = 0;
+    private int epoch = 0;
+    private int maxSize = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private long idleTimeoutNanos = TimeUnit.SECONDS.toNanos(60);
+    private boolean threadAffinity = true;
+
+
+    InstancePool(Dex dex, Class<T> type, String className) {
+        this.dex = dex;
+        this.type = type;
+        this.className = className;
+    }
+
+
+    /**
+     * Max number of instances, borrowed and idle. The borrower waits, if all of them are borrowed.
+     * @param maxSize - max number of instances. Sample: {@code 4}
+     */
+    public synchronized InstancePool<T> setMaxSize(int maxSize) {
+        this.maxSize = Math.max(1, maxSize);
+        while (size > this.maxSize && !idle.isEmpty()) {
+            idle.removeLast();
+            size--;
+        }
+        notifyAll();
+        return this;
+    }
+
+    /**
+     * Time, after which the idle instance is dropped
+     * @param idleTimeoutMillis - timeout in milliseconds. Sample: {@code 60000}
+     */
+    public synchronized InstancePool<T> setIdleTimeout(long idleTimeoutMillis) {
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, idleTimeoutMillis));
+        return this;
+    }
+
+    /**
+     * @param threadAffinity - true - the thread gets back the instance it returned last, false - any idle instance
+     */
+    public synchronized InstancePool<T> setThreadAffinity(boolean threadAffinity) {
+        this.threadAffinity = threadAffinity;
+        return this;
+    }
+
+    public synchronized int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Returns number of instances, borrowed and idle
+     */
+    public synchronized int getSize() {
+        return size;
+    }
+
+    public synchronized int getIdleCount() {
+        return idle.size();
+    }
+
+
+    /**
+     * Like {@link #borrow(long timeoutMillis)}, but waits without timeout
+     */
+    public Lease<T> borrow() throws ClassNotFoundException, IllegalAccessException, InstantiationException, FileNotFoundException, InterruptedException {
+        return borrow(-1);
+    }
+
+    /**
+     * Borrow the idle instance or create the new one, if the pool is not full.
+     * The lease must be closed after use, sample: with try-with-resources.
+     * @param timeoutMillis - max time to wait for the instance, if all of them are borrowed, 0 - do not wait, -1 - no timeout
+     * @return  the lease, or null if no instance was returned in time
+     * @throws  FileNotFoundException - if the file was not found
+     * @throws  ClassNotFoundException - if the class was not found
+     * @throws  IllegalAccessException - if the class or its nullary constructor is not public.
+     * @throws  InstantiationException - if the class is abstract or an interface,
+     *          or has no nullary constructor, or if the constructor throws a checked exception.
+     * @throws  InterruptedException - if the thread was interrupted while waiting
+     */
+    public Lease<T> borrow(long timeoutMillis) throws ClassNotFoundException, IllegalAccessException, InstantiationException, FileNotFoundException, InterruptedException {
+        int created;
+        synchronized(this) {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+
+            for (;;) {
+                evictIdle();
+
+                Idle<T> found = takeIdle();
+                if (found != null) return new Lease<>(this, found.instance, epoch);
+                if (size < maxSize) break;
+
+                if (timeoutMillis < 0) {
+                    wait();
+                } else {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0) return null;
+                    TimeUnit.NANOSECONDS.timedWait(this, left);
+                }
+            }
+
+            // The place is taken before the instance is created outside the lock
+            size++;
+            created = epoch;
+        }
+
+        try {
+            return new Lease<>(this, type.cast(dex.newInstance(className)), created);
+        } catch (Throwable throwable) {
+            synchronized(this) {
+                size--;
+                notifyAll();
+            }
+            throw throwable;
+        }
+    }
+
+    /**
+     * Drop all idle instances, the borrowed ones are dropped on return
+     */
+    public synchronized void clear() {
+        epoch++;
+        size -= idle.size();
+        idle.clear();
+        notifyAll();
+    }
+
+
+    /**
+     * Guarded by {@code this}
+     */
+    private Idle<T> takeIdle() {
+        if (idle.isEmpty()) return null;
+
+        if (threadAffinity) {
+            long current = Thread.currentThread().getId();
+            for (Iterator<Idle<T>> iterator = idle.iterator(); iterator.hasNext(); ) {
+                Idle<T> next = iterator.next();
+                if (next.owner == current) {
+                    iterator.remove();
+                    return next;
+                }
+            }
+        }
+
+        return idle.removeFirst();
+    }
+
+    /**
+     * Drop instances idle for longer than the timeout, guarded by {@code this}
+     */
+    private void evictIdle() {
+        long now = System.nanoTime();
+        while (!idle.isEmpty() && now - idle.peekLast().returnedAt > idleTimeoutNanos) {
+            idle.removeLast();
+            size--;
+        }
+    }
+
+    private synchronized void giveBack(T instance, int leaseEpoch, boolean reuse) {
+        // The instance of the old version is dropped
+        if (reuse && leaseEpoch == epoch && size <= maxSize) {
+            idle.addFirst(new Idle<>(instance, Thread.currentThread().getId(), System.nanoTime()));
+        } else {
+            size--;
+        }
+        evictIdle();
+        notifyAll();
+    }
+
+
+    private static class Idle<T> {
+
+        final T instance;
+        /**
+         * Id of the thread, which returned the instance
+         */
+        final long owner;
+        final long returnedAt;
+
+        Idle(T instance, long owner, long returnedAt) {
+            this.instance = instance;
+            this.owner = owner;
+            this.returnedAt = returnedAt;
+        }
+    }
+
+
+    /**
+     * Borrowed instance of {@link InstancePool}, it is returned to the pool when the lease is closed
+     */
+    public static class Lease<T extends Versioned> implements Closeable {
+
+        private final InstancePool<T> pool;
+        private final T instance;
+        private final int epoch;
+        private boolean closed = false;
+
+        Lease(InstancePool<T> pool, T instance, int epoch) {
+            this.pool = pool;
+            this.instance = instance;
+            this.epoch = epoch;
+        }
+
+        public T get() {
+            if (closed) throw new IllegalStateException("Lease is closed");
+            return instance;
+        }
+
+        /**
+         * Drop the instance instead of returning it to the pool, sample: its state is broken after an exception
+         */
+        public void discard() {
+            if (closed) return;
+            closed = true;
+            pool.giveBack(instance, epoch, false);
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            pool.giveBack(instance, epoch, true);
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package dex;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+
+
+/**
+ * Binary delta updates of the dex file. The patch is made at build time by the task
+ * {@code makePatch} of the module {@code dex} and applied here as a stream, without saving it.
+ * <p>
+ * Format of the patch (big-endian):
+ * <pre>
+ * "DXP1"               magic
+ * byte[16]             md5 of the old file
+ * byte[16]             md5 of the new file
+ * long                 length of the new file
+ * commands:
+ *   0, long offset, int length    copy bytes of the old file
+ *   1, int length, byte[length]   add bytes of the patch
+ *   2                             end of the patch
+ * </pre>
+ * The new file is written through {@link DownloadFlight}, so the patch and the download of the same target
+ * do not write the file at once.
+ */
+public class Patcher {
+
+    private static final int MAGIC = 0x44585031; // "DXP1"
+    private static final int OP_COPY = 0;
+    private static final int OP_ADD = 1;
+    private static final int OP_END = 2;
+
+
+    /**
+     * Apply the patch to the old file. The new file is written to {@code "<toFullFileName>.tmp"},
+     * hashed on the way and renamed to {@code toFullFileName} only if the hash is right. Run only in background thread.
+     * @param oldFullFileName - path to the installed file, the caller passes {@code dex.getSlots().getActiveFile()}.
+     *                        The dex loaded in memory has no installed file, so it can not be patched
+     * @param patch - stream of the patch
+     * @param oldMd5 - md5 hash of the installed file, or null to check it by reading the file
+     * @param toFullFileName - path to save the new file
+     * @param md5 - expected hash of the new file, or null to use the hash from the patch
+     * @return boolean result of operation, true - the new file is ready, false - the patch is not applicable or broken.
+     */
+    public static boolean apply(String oldFullFileName, InputStream patch, String oldMd5, String toFullFileName, String md5) {
+        Utils.stopIfMainThread();
+
+        return DownloadFlight.download(null, toFullFileName, md5, new DownloadFlight.Transfer() {
+            @Override
+            public boolean run(String fromUrl, String toFullFileName, String md5) {
+                return applyPatch(oldFullFileName, patch, oldMd5, toFullFileName, md5);
+            }
+
+            @Override
+            public void cancel() {
+                // The stream is read by the caller's thread
+            }
+        });
+    }
+
+
+    private static boolean applyPatch(String oldFullFileName, InputStream patch, String oldMd5, String toFullFileName, String md5) {
+        boolean result = false;
+        File tmp = new File(toFullFileName + Utils.TMP_SUFFIX);
+        RandomAccessFile old = null;
+        OutputStream output = null;
+
+        try {
+
+            DataInputStream input = new DataInputStream(patch);
+            if (input.readInt() != MAGIC) return false;
+
+            byte[] hash = new byte[16];
+            input.readFully(hash);
+            String patchOldMd5 = Utils.toHex(hash);
+            input.readFully(hash);
+            String patchNewMd5 = Utils.toHex(hash);
+            long newLength = input.readLong();
+
+            if (oldMd5 == null) oldMd5 = Utils.getMD5(oldFullFileName);
+            if (!patchOldMd5.equals(oldMd5)) return false;
+            if (md5 != null && !md5.equals(patchNewMd5)) return false;
+
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            old = new RandomAccessFile(oldFullFileName, "r");
+            output = new DigestOutputStream(new FileOutputStream(tmp), digest);
+
+            byte[] buffer = new byte[16 * 1024];
+            int op;
+            while ((op = input.read()) != OP_END) {
+                int length;
+                switch (op) {
+                    case OP_COPY:
+                        old.seek(input.readLong());
+                        length = input.readInt();
+                        for (int count; length > 0; length -= count) {
+                            count = old.read(buffer, 0, Math.min(buffer.length, length));
+                            if (count < 0) throw new EOFException();
+                            output.write(buffer, 0, count);
+                        }
+                        break;
+                    case OP_ADD:
+                        length = input.readInt();
+                        for (int count; length > 0; length -= count) {
+                            count = input.read(buffer, 0, Math.min(buffer.length, length));
+                            if (count < 0) throw new EOFException();
+                            output.write(buffer, 0, count);
+                        }
+                        break;
+                    default:
+                        throw new IOException("Unknown command " + op);
+                }
+            }
+
+            output.close();
+            result = tmp.length() == newLength && patchNewMd5.equals(Utils.toHex(digest.digest()))
+                    && Utils.moveFile(tmp, new File(toFullFileName));
+            if (result) VerificationCache.getInstance().record(new File(toFullFileName), "MD5", patchNewMd5);
+        } catch (Throwable ignored) {
+            // Nothing
+        } finally {
+            Utils.closeQuietly(output, old);
+            if (!result) tmp.delete();
+        }
+
+        return result;
+    }
+
+
+    /**
+     * Download the patch from the installed version to the new one and apply it (sync).
+     * The installed version and hash are sent as parameters {@code fromVersion} and {@code fromMd5}
+     * of {@code patchUrl}, so the server can choose the patch. Run only in background thread.
+     * @param patchUrl - link to the patch
+     * @param oldFullFileName - path to the installed file, see {@link #apply}
+     * @param oldVersion - version of the installed file
+     * @param oldMd5 - md5 hash of the installed file, or null to check it by reading the file
+     * @param toFullFileName - path to save the new file
+     * @param md5 - expected hash of the new file
+     * @return boolean result of operation, true - the new file is ready, false - error.
+     */
+    public static boolean downloadPatch(String patchUrl, String oldFullFileName, int oldVersion, String oldMd5, String toFullFileName, String md5) {
+        Utils.stopIfMainThread();
+
+        return DownloadFlight.download(patchUrl, toFullFileName, md5,
+                new PatchTransfer(patchUrl, oldFullFileName, oldVersion, oldMd5, null));
+    }
+
+
+    /**
+     * Update the file with the patch, and if the patch is not available or not applicable,
+     * download the whole file (sync). Run only in background thread.
+     * @param patchUrl - link to the patch, or null to download the whole file
+     * @param fromUrl - direct link to the whole file
+     * @param oldFullFileName - path to the installed file, see {@link #apply}
+     * @param oldVersion - version of the installed file
+     * @param oldMd5 - md5 hash of the installed file, or null to check it by reading the file
+     * @param toFullFileName - path to save the new file
+     * @param md5 - expected hash of the new file
+     * @return boolean result of operation, true - the new file is ready, false - error.
+     */
+    public static boolean downloadUpdate(String patchUrl, String fromUrl, String oldFullFileName, int oldVersion, String oldMd5, String toFullFileName, String md5) {
+        Utils.stopIfMainThread();
+
+        return DownloadFlight.download(fromUrl, toFullFileName, md5,
+                new PatchTransfer(patchUrl, oldFullFileName, oldVersion, oldMd5, new Downloader()));
+    }
+
+
+    /**
+     * Download and apply the patch, then if it failed, download the whole file with {@code fallback}
+     */
+    private static class PatchTransfer implements DownloadFlight.Transfer {
+
+        private final String patchUrl;
+        private final String oldFullFileName;
+        private final int oldVersion;
+        private final String oldMd5;
+        private final Downloader fallback;
+
+        private volatile boolean cancelled;
+        private volatile HttpURLConnection connection;
+
+
+        PatchTransfer(String patchUrl, String oldFullFileName, int oldVersion, String oldMd5, Downloader fallback) {
+            this.patchUrl = patchUrl;
+            this.oldFullFileName = oldFullFileName;
+            this.oldVersion = oldVersion;
+            this.oldMd5 = oldMd5;
+            this.fallback = fallback;
+        }
+
+
+        @Override
+        public boolean run(String fromUrl, String toFullFileName, String md5) {
+            if (patchUrl != null && patch(toFullFileName, md5)) return true;
+            return !cancelled && fallback != null && fallback.download(fromUrl, toFullFileName, md5);
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+
+            HttpURLConnection connection = this.connection;
+            if (connection != null) connection.disconnect();
+            if (fallback != null) fallback.cancel();
+        }
+
+
+        private boolean patch(String toFullFileName, String md5) {
+            if (!Utils.isExists(oldFullFileName)) return false;
+
+            HttpURLConnection connection = null;
+            InputStream input = null;
+
+            try {
+
+                String oldMd5 = this.oldMd5 != null ? this.oldMd5 : Utils.getMD5(oldFullFileName);
+
+                String query = "fromVersion=" + oldVersion + "&fromMd5=" + URLEncoder.encode(oldMd5, "UTF-8");
+                URL url = new URL(patchUrl + (patchUrl.contains("?") ? "&" : "?") + query);
+                connection = (HttpURLConnection) url.openConnection();
+                connection.setConnectTimeout(15000);
+                connection.setReadTimeout(30000);
+
+                this.connection = connection;
+                if (cancelled || connection.getResponseCode() != HttpURLConnection.HTTP_OK) return false;
+
+                input = new BufferedInputStream(connection.getInputStream(), 16 * 1024);
+                return !cancelled && applyPatch(oldFullFileName, input, oldMd5, toFullFileName, md5);
+            } catch (Throwable ignored) {
+                return false;
+            } finally {
+                this.connection = null;
+                Utils.closeQuietly(input);
+                if (connection != null) connection.disconnect();
+            }
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package dex;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Typed handle of the plugin class, see {@link Dex#getHandle(Class type, String className)}.
+ * The handle keeps the cached instance of the current {@link Generation}, so {@link #get()} is one read
+ * of a volatile field and the call goes directly to the plugin. Each {@link #get()} also marks the plugin
+ * as used, so {@link DexRegistry} does not unload the plugin, which is used only through handles.
+ * After the new version is swapped in, the next {@link #get()} takes the instance of the new generation.
+ * If the plugin can not be loaded, {@link #get()} returns null at once and the load is tried again
+ * only after the retry delay or the next swap.
+ * Sample:
+ * <pre>
+ *     PluginHandle&lt;IParser&gt; parser = Dex.getInstance().getHandle(IParser.class, "parser.Parser");
+ *     ...
+ *     IParser current = parser.get();
+ *     if (current != null) current.testIsOk();
+ * </pre>
+ * @param <T> - interface of the plugin class, which is loaded by the application class loader
+ */
+public class PluginHandle<T extends Versioned> {
+
+    private final Dex dex;
+    private final Class<T> type;
+    private final String className;
+
+    private volatile T current = null;
+    private volatile Throwable error = null;
+    private volatile long retryAt = 0;
+    private volatile long retryDelayNanos = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * Number of the swaps, the instance loaded before the swap is not kept. Written under {@code this}
+     */
+    private volatile int epoch = 0;
+
+
+    PluginHandle(Dex dex, Class<T> type, String className) {
+        this.dex = dex;
+        this.type = type;
+        this.className = className;
+    }
+
+
+    /**
+     * Time after the failed load, while {@link #get()} returns null without a new try
+     * @param retryDelayMillis - delay in milliseconds. Sample: {@code 1000}
+     */
+    public PluginHandle<T> setRetryDelay(long retryDelayMillis) {
+        this.retryDelayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, retryDelayMillis));
+        return this;
+    }
+
+    public Class<T> getType() {
+        return type;
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+
+    /**
+     * Returns the instance of the current version of the plugin class
+     * @return  instance, or null if the plugin is not available, see {@link #getError()}
+     */
+    public T get() {
+        T value = current;
+        if (value != null) {
+            dex.touch();
+            return value;
+        }
+        return resolve();
+    }
+
+    /**
+     * Check if the plugin class can be used now, loads it if needed
+     */
+    public boolean isAvailable() {
+        return get() != null;
+    }
+
+    /**
+     * Returns the error of the last failed load
+     * @return  error, or null if the last load succeeded
+     */
+    public Throwable getError() {
+        return error;
+    }
+
+    /**
+     * Forget the instance and the error, the next {@link #get()} loads the class from the current generation
+     */
+    public synchronized void invalidate() {
+        epoch++;
+        current = null;
+        error = null;
+        retryAt = 0;
+    }
+
+
+    private T resolve() {
+        if (error != null && System.nanoTime() - retryAt < 0) return null;
+
+        int started = epoch;
+        try {
+
+            T value = type.cast(dex.getInstanceClassFromDex(className));
+            synchronized(this) {
+                // The generation was swapped during the load, the next call takes the new one
+                if (epoch == started) {
+                    current = value;
+                    error = null;
+                }
+            }
+            return value;
+        } catch (Throwable throwable) {
+            synchronized(this) {
+                if (epoch == started) {
+                    error = throwable;
+                    retryAt = System.nanoTime() + retryDelayNanos;
+                }
+            }
+            return null;
+        }
+    }
+}
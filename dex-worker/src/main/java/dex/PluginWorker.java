@@ -0,0 +1,456 @@
+package dex;
+
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Runs the plugin over a stream of inputs on a few threads. Each input is processed by {@link Job}
+ * with an instance borrowed from {@link InstancePool}, so the plugin class does not need to be thread-safe.
+ * At most {@code capacity} inputs are queued or processed at the same time, {@link #submit} waits
+ * while the worker is full, so a fast producer is slowed down to the speed of the plugin.
+ * The results are passed to {@link Listener} in the order of completion, or in the order of submit,
+ * if {@link #setOrdered(boolean)} is set.
+ * Sample:
+ * <pre>
+ *     InstancePool&lt;IParser&gt; parsers = Dex.getInstance().getPool(IParser.class, "parser.Parser");
+ *     PluginWorker&lt;IParser, String, Boolean&gt; worker = new PluginWorker&lt;&gt;(parsers, (parser, html) -&gt; parser.testIsOk())
+ *             .setOrdered(true)
+ *             .setListener(result -&gt; Log.d("Parser", result.input + ": " + result.output))
+ *             .start();
+ *     for (String html : pages) worker.submit(html);
+ *     worker.finish();
+ * </pre>
+ * @param <T> - interface of the plugin class
+ * @param <I> - type of the input
+ * @param <O> - type of the output
+ */
+public class PluginWorker<T extends Versioned, I, O> {
+
+    /**
+     * Work with one input
+     */
+    public interface Job<T, I, O> {
+        O process(T plugin, I input) throws Exception;
+    }
+
+    /**
+     * Receives the result of each input. Called on the worker thread, concurrently if the worker is not ordered.
+     */
+    public interface Listener<I, O> {
+        void onResult(Result<I, O> result);
+    }
+
+
+    private final InstancePool<T> pool;
+    private final Job<T, I, O> job;
+    private final LinkedBlockingQueue<Item<I>> queue = new LinkedBlockingQueue<>();
+    private final DexMetrics.Recorder waits = new DexMetrics.Recorder();
+    private final DexMetrics.Recorder calls = new DexMetrics.Recorder();
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * Guarded by {@code this}
+     */
+    private int threads;
+    private int capacity;
+    private boolean ordered = false;
+    private Listener<I, O> listener = null;
+    private Thread[] workers = null;
+    private long submitted = 0;
+    private int inFlight = 0;
+    private boolean finished = false;
+    private long startedAt = 0;
+    private long completedAt = 0;
+    private volatile boolean cancelled = false;
+
+    /**
+     * Results, which wait for the earlier ones in the ordered worker, guarded by itself
+     */
+    private final HashMap<Long, Result<I, O>> pending = new HashMap<>();
+    private long nextToDeliver = 0;
+
+
+    /**
+     * @param pool - pool of the plugin instances
+     * @param job - work with one input
+     */
+    public PluginWorker(InstancePool<T> pool, Job<T, I, O> job) {
+        this.pool = pool;
+        this.job = job;
+        this.threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), pool.getMaxSize()));
+        this.capacity = threads * 4;
+    }
+
+
+    /**
+     * Number of the worker threads, more threads than {@link InstancePool#getMaxSize()} wait for the instances
+     * @param threads - number of threads. Sample: {@code 4}
+     */
+    public synchronized PluginWorker<T, I, O> setThreads(int threads) {
+        stopIfStarted();
+        this.threads = Math.max(1, threads);
+        return this;
+    }
+
+    /**
+     * Max number of inputs, which are queued, processed or wait for the earlier results
+     * @param capacity - max number of inputs. Sample: {@code 16}
+     */
+    public synchronized PluginWorker<T, I, O> setCapacity(int capacity) {
+        stopIfStarted();
+        this.capacity = Math.max(1, capacity);
+        return this;
+    }
+
+    /**
+     * @param ordered - true - results are passed in the order of submit, false - in the order of completion
+     */
+    public synchronized PluginWorker<T, I, O> setOrdered(boolean ordered) {
+        stopIfStarted();
+        this.ordered = ordered;
+        return this;
+    }
+
+    /**
+     * @param listener - listener of the results, or null
+     */
+    public synchronized PluginWorker<T, I, O> setListener(Listener<I, O> listener) {
+        stopIfStarted();
+        this.listener = listener;
+        return this;
+    }
+
+
+    /**
+     * Start the worker threads
+     */
+    public synchronized PluginWorker<T, I, O> start() {
+        stopIfStarted();
+
+        startedAt = System.nanoTime();
+        DexExecutor.NamedThreadFactory factory = new DexExecutor.NamedThreadFactory("dex-plugin");
+        workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = factory.newThread(this::work);
+            workers[i].start();
+        }
+        return this;
+    }
+
+    /**
+     * Like {@link #offer(Object input, long timeoutMillis)}, but waits without timeout
+     */
+    public void submit(I input) throws InterruptedException {
+        offer(input, -1);
+    }
+
+    /**
+     * Queue the input, wait while the worker is full
+     * @param input - the input
+     * @param timeoutMillis - max time to wait, 0 - do not wait, -1 - no timeout
+     * @return  true - if the input is queued, false - if the worker was full until the timeout
+     * @throws  InterruptedException - if the thread was interrupted while waiting
+     * @throws  IllegalStateException - if the worker is not started, finished or cancelled
+     */
+    public boolean offer(I input, long timeoutMillis) throws InterruptedException {
+        synchronized(this) {
+            if (workers == null) throw new IllegalStateException("Worker is not started");
+
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            while (inFlight >= capacity && !finished) {
+                if (timeoutMillis < 0) {
+                    wait();
+                } else {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0) return false;
+                    TimeUnit.NANOSECONDS.timedWait(this, left);
+                }
+            }
+
+            if (finished) throw new IllegalStateException("Worker is finished");
+
+            inFlight++;
+            queue.add(new Item<>(submitted++, input));
+        }
+        return true;
+    }
+
+    /**
+     * Stop accepting new inputs, the queued inputs are processed, then the threads stop
+     */
+    public synchronized void finish() {
+        if (finished || workers == null) return;
+
+        finished = true;
+        for (int i = 0; i < workers.length; i++) {
+            queue.add(new Item<>(-1, null));
+        }
+        notifyAll();
+    }
+
+    /**
+     * Stop at once, the queued inputs are dropped and the results are not passed any more
+     */
+    public synchronized void cancel() {
+        cancelled = true;
+        finished = true;
+        queue.clear();
+
+        if (workers != null) {
+            for (Thread worker : workers) {
+                worker.interrupt();
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * Wait until the threads stopped after {@link #finish()} or {@link #cancel()}
+     * @param timeoutMillis - max time to wait, -1 - no timeout
+     * @return  true - if all threads stopped
+     * @throws  InterruptedException - if the thread was interrupted while waiting
+     */
+    public boolean awaitTermination(long timeoutMillis) throws InterruptedException {
+        Thread[] current;
+        synchronized(this) {
+            if (workers == null) return true;
+            current = workers;
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        for (Thread worker : current) {
+            if (timeoutMillis < 0) {
+                worker.join();
+            } else {
+                long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (left <= 0 && worker.isAlive()) return false;
+                worker.join(Math.max(1, left));
+            }
+            if (worker.isAlive()) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the statistics of the worker
+     * @return snapshot of the counters
+     */
+    public synchronized Stats getStats() {
+        long endedAt = inFlight == 0 && completedAt != 0 ? completedAt : System.nanoTime();
+        return new Stats(submitted, inFlight, failed.get(), startedAt == 0 ? 0 : endedAt - startedAt,
+                waits.snapshot(DexMetrics.Stage.PLUGIN_WAIT), calls.snapshot(DexMetrics.Stage.PLUGIN_CALL));
+    }
+
+
+    private void work() {
+        try {
+            while (!cancelled) {
+                Item<I> item = queue.take();
+                if (item.index < 0) return;
+
+                complete(process(item));
+            }
+        } catch (InterruptedException ignored) {
+            // Cancelled
+        }
+    }
+
+    private Result<I, O> process(Item<I> item) {
+        long startedAt = System.nanoTime();
+        long waitNanos = startedAt - item.submittedAt;
+        waits.add(waitNanos, 0);
+        DexMetrics.record(DexMetrics.Stage.PLUGIN_WAIT, item.measuredAt, 0);
+
+        long measuredAt = DexMetrics.start();
+        O output = null;
+        Throwable error = null;
+
+        try (InstancePool.Lease<T> lease = pool.borrow()) {
+            try {
+                output = job.process(lease.get(), item.input);
+            } catch (Throwable throwable) {
+                // The state of the instance can be broken
+                lease.discard();
+                throw throwable;
+            }
+        } catch (Throwable throwable) {
+            error = throwable;
+            failed.incrementAndGet();
+        }
+
+        long callNanos = System.nanoTime() - startedAt;
+        calls.add(callNanos, 0);
+        DexMetrics.record(DexMetrics.Stage.PLUGIN_CALL, measuredAt, 0);
+
+        return new Result<>(item.index, item.input, output, error, waitNanos, callNanos);
+    }
+
+    private void complete(Result<I, O> result) {
+        if (!ordered) {
+            deliver(result);
+            release();
+            return;
+        }
+
+        synchronized(pending) {
+            pending.put(result.index, result);
+            for (Result<I, O> next; (next = pending.remove(nextToDeliver)) != null; nextToDeliver++) {
+                deliver(next);
+                release();
+            }
+        }
+    }
+
+    private void deliver(Result<I, O> result) {
+        if (cancelled || listener == null) return;
+
+        try {
+            listener.onResult(result);
+        } catch (Throwable ignored) { /* Nothing */ }
+    }
+
+    private synchronized void release() {
+        inFlight--;
+        completedAt = System.nanoTime();
+        notifyAll();
+    }
+
+    /**
+     * Guarded by {@code this}
+     */
+    private void stopIfStarted() {
+        if (workers != null) throw new IllegalStateException("Worker is already started");
+    }
+
+
+    private static class Item<I> {
+
+        /**
+         * Number of the input in the order of submit, -1 stops the thread
+         */
+        final long index;
+        final I input;
+        final long submittedAt = System.nanoTime();
+        final long measuredAt = DexMetrics.start();
+
+        Item(long index, I input) {
+            this.index = index;
+            this.input = input;
+        }
+    }
+
+
+    /**
+     * Result of one input of {@link PluginWorker}
+     */
+    public static class Result<I, O> {
+
+        /**
+         * Number of the input in the order of submit, from 0
+         */
+        public final long index;
+        public final I input;
+
+        /**
+         * Output of {@link Job}, or null if it failed
+         */
+        public final O output;
+
+        /**
+         * Error of {@link Job} or of the instance of the plugin, or null
+         */
+        public final Throwable error;
+
+        /**
+         * Time from submit to the start of the call
+         */
+        public final long waitNanos;
+
+        /**
+         * Time of the call, with borrowing of the instance
+         */
+        public final long callNanos;
+
+        Result(long index, I input, O output, Throwable error, long waitNanos, long callNanos) {
+            this.index = index;
+            this.input = input;
+            this.output = output;
+            this.error = error;
+            this.waitNanos = waitNanos;
+            this.callNanos = callNanos;
+        }
+
+        public boolean isSuccessful() {
+            return error == null;
+        }
+
+        /**
+         * Time from submit to the end of the call
+         */
+        public long getLatencyNanos() {
+            return waitNanos + callNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "Result{index=" + index + ", waitNanos=" + waitNanos + ", callNanos=" + callNanos
+                    + (error != null ? ", error=" + error : "") + "}";
+        }
+    }
+
+
+    /**
+     * Snapshot of the counters of {@link PluginWorker}
+     */
+    public static class Stats {
+
+        public final long submitted;
+        public final int inFlight;
+        public final long failed;
+
+        /**
+         * Time from the start to the last result, or to now if inputs are in flight
+         */
+        public final long elapsedNanos;
+
+        /**
+         * Time from submit to the start of the call of each input
+         */
+        public final DexMetrics.StageSnapshot waits;
+
+        /**
+         * Time of the call of each input
+         */
+        public final DexMetrics.StageSnapshot calls;
+
+        Stats(long submitted, int inFlight, long failed, long elapsedNanos, DexMetrics.StageSnapshot waits, DexMetrics.StageSnapshot calls) {
+            this.submitted = submitted;
+            this.inFlight = inFlight;
+            this.failed = failed;
+            this.elapsedNanos = elapsedNanos;
+            this.waits = waits;
+            this.calls = calls;
+        }
+
+        public long getCompleted() {
+            return calls.count;
+        }
+
+        /**
+         * Completed inputs per second since the start
+         */
+        public double getItemsPerSecond() {
+            return elapsedNanos == 0 ? 0 : calls.count * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "Stats{submitted=" + submitted + ", completed=" + getCompleted() + ", failed=" + failed
+                    + ", inFlight=" + inFlight + ", itemsPerSecond=" + (long) getItemsPerSecond()
+                    + ", waits=" + waits + ", calls=" + calls + "}";
+        }
+    }
+}
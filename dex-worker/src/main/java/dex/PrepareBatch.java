@@ -0,0 +1,121 @@
+package dex;
+
+import android.os.Handler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Preparing of a few plugins in one parallel pass, see {@link DexRegistry#prepareAll}.
+ * A few tasks of {@link DexExecutor#getDefault()} take the next plugin until all are prepared, so no more than
+ * {@code parallelism} plugins are copied and verified at the same time and no task waits for another one.
+ * One callback is posted after the last plugin.
+ */
+public class PrepareBatch {
+
+    private final DexRegistry registry;
+    private final List<String> ids;
+    private final PrepareReport.Entry[] entries;
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicInteger remaining;
+    private final Handler handler;
+    private final ToDoWithDataCallback<PrepareReport> callback;
+    private final long startedAt = System.nanoTime();
+    private final List<DexExecutor.Task> tasks = new ArrayList<>();
+    private volatile PrepareReport report = null;
+    private volatile boolean cancelled = false;
+
+
+    PrepareBatch(DexRegistry registry, List<String> ids, Handler handler, ToDoWithDataCallback<PrepareReport> callback) {
+        this.registry = registry;
+        this.ids = new ArrayList<>(ids);
+        this.entries = new PrepareReport.Entry[ids.size()];
+        this.remaining = new AtomicInteger(ids.size());
+        this.handler = handler;
+        this.callback = callback;
+    }
+
+
+    /**
+     * Cancel the batch. Plugins, which are not started yet, are not prepared, the callback is not called.
+     */
+    public void cancel() {
+        cancelled = true;
+        synchronized(tasks) {
+            for (DexExecutor.Task task : tasks) {
+                task.cancel();
+            }
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public boolean isDone() {
+        return report != null;
+    }
+
+    /**
+     * Returns the result of the finished batch
+     * @return report, or null if the batch is not finished
+     */
+    public PrepareReport getReport() {
+        return report;
+    }
+
+
+    void start(DexExecutor.Priority priority, int parallelism) {
+        if (ids.isEmpty()) {
+            finish();
+            return;
+        }
+
+        int workers = Math.max(1, Math.min(parallelism, ids.size()));
+        synchronized(tasks) {
+            for (int i = 0; i < workers; i++) {
+                tasks.add(DexExecutor.getDefault().execute(priority, this::work));
+            }
+        }
+    }
+
+    private void work() {
+        int index;
+        while ((index = next.getAndIncrement()) < ids.size()) {
+            if (cancelled) return;
+
+            entries[index] = prepare(ids.get(index));
+            if (remaining.decrementAndGet() == 0) finish();
+        }
+    }
+
+    private PrepareReport.Entry prepare(String id) {
+        long startedAt = System.nanoTime();
+
+        try {
+
+            Dex dex = registry.get(id);
+            if (dex == null) throw new IllegalArgumentException("Plugin " + id + " is not registered");
+
+            boolean prepared = dex.prepareDexFileSync();
+            if (prepared && !dex.getParams().preloadClasses.isEmpty()) dex.prewarm(null, null);
+
+            return new PrepareReport.Entry(id, prepared, System.nanoTime() - startedAt, null);
+        } catch (Throwable throwable) {
+            return new PrepareReport.Entry(id, false, System.nanoTime() - startedAt, throwable);
+        }
+    }
+
+    private void finish() {
+        PrepareReport result = new PrepareReport(Arrays.asList(entries), System.nanoTime() - startedAt);
+        report = result;
+
+        if (cancelled || handler == null || callback == null) return;
+        handler.post(() -> {
+            if (!cancelled) callback.todo(result);
+        });
+    }
+}
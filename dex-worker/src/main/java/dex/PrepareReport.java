@@ -0,0 +1,99 @@
+package dex;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * Result of {@link DexRegistry#prepareAll}: result and time of preparing of each plugin
+ */
+public class PrepareReport {
+
+    private final List<Entry> entries;
+    private final long totalNanos;
+
+
+    PrepareReport(List<Entry> entries, long totalNanos) {
+        this.entries = Collections.unmodifiableList(new ArrayList<>(entries));
+        this.totalNanos = totalNanos;
+    }
+
+
+    /**
+     * Returns entries in the order of the requested ids
+     */
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Returns the wall-clock time of the whole batch
+     */
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    /**
+     * Checks if all plugins are prepared
+     */
+    public boolean isSuccessful() {
+        for (Entry entry : entries) {
+            if (!entry.prepared) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns ids of the plugins, which are not prepared
+     */
+    public List<String> getFailedIds() {
+        List<String> ids = new ArrayList<>();
+        for (Entry entry : entries) {
+            if (!entry.prepared) ids.add(entry.id);
+        }
+        return ids;
+    }
+
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("PrepareReport{totalNanos=").append(totalNanos);
+        for (Entry entry : entries) {
+            builder.append(", ").append(entry);
+        }
+        return builder.append('}').toString();
+    }
+
+
+    public static class Entry {
+
+        /**
+         * Id of the plugin in {@link DexRegistry}
+         */
+        public final String id;
+        public final boolean prepared;
+
+        /**
+         * Time of {@link Dex#prepareDexFileSync()} of the plugin
+         */
+        public final long nanos;
+
+        /**
+         * Error of preparing, or null
+         */
+        public final Throwable error;
+
+        Entry(String id, boolean prepared, long nanos, Throwable error) {
+            this.id = id;
+            this.prepared = prepared;
+            this.nanos = nanos;
+            this.error = error;
+        }
+
+        @Override
+        public String toString() {
+            return id + "{prepared=" + prepared + ", nanos=" + nanos + (error != null ? ", error=" + error : "") + "}";
+        }
+    }
+}
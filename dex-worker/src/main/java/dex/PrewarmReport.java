@@ -0,0 +1,89 @@
+package dex;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * Result of {@link Dex#prewarm}: timings of loading and instantiation of each preloaded class
+ */
+public class PrewarmReport {
+
+    private final List<Entry> entries = new ArrayList<>();
+    private long totalNanos = 0;
+
+
+    PrewarmReport() {}
+
+
+    void add(Entry entry) {
+        entries.add(entry);
+        totalNanos += entry.loadNanos + entry.instantiateNanos;
+    }
+
+    /**
+     * Returns entries in the order the classes were loaded
+     */
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    /**
+     * Checks if all classes were loaded
+     */
+    public boolean isSuccessful() {
+        for (Entry entry : entries) {
+            if (entry.error != null) return false;
+        }
+        return true;
+    }
+
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("PrewarmReport{totalNanos=").append(totalNanos);
+        for (Entry entry : entries) {
+            builder.append(", ").append(entry);
+        }
+        return builder.append('}').toString();
+    }
+
+
+    public static class Entry {
+
+        public final String className;
+
+        /**
+         * Time of loading the class, including creation of the class loader for the first class
+         */
+        public final long loadNanos;
+
+        /**
+         * Time of creating the instance, 0 if the class does not implement {@link Versioned}
+         */
+        public final long instantiateNanos;
+
+        /**
+         * Error of loading, or null
+         */
+        public final Throwable error;
+
+        Entry(String className, long loadNanos, long instantiateNanos, Throwable error) {
+            this.className = className;
+            this.loadNanos = loadNanos;
+            this.instantiateNanos = instantiateNanos;
+            this.error = error;
+        }
+
+        @Override
+        public String toString() {
+            return className + "{loadNanos=" + loadNanos + ", instantiateNanos=" + instantiateNanos
+                    + (error != null ? ", error=" + error : "") + "}";
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package dex;
+
+import java.io.Closeable;
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+/**
+ * Token bucket for the bandwidth of downloads. The bucket is refilled with {@code bytesPerSecond} tokens
+ * per second and holds at most one second of tokens, so the short burst after a pause is limited too.
+ * The reader takes the tokens for each read buffer and waits if there are not enough of them.
+ * The rate can be changed at any time, the waiting readers take the new rate at once.
+ * Sample:
+ * <pre>
+ *     RateLimiter.getGlobal().setBytesPerSecond(256 * 1024);
+ *     ...
+ *     try (RateLimiter.Boost boost = RateLimiter.getGlobal().boost()) {
+ *         // The user waits for the update, it is downloaded at full speed
+ *     }
+ * </pre>
+ */
+public class RateLimiter {
+
+    /**
+     * Rate without the limit
+     */
+    public static final long UNLIMITED = 0;
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private static RateLimiter global;
+    private final static Object lockObject = new Object();
+
+    /**
+     * Guarded by {@code this}
+     */
+    private long bytesPerSecond;
+    private int boosts = 0;
+    private long tokens = 0;
+    private long refilledAt = System.nanoTime();
+
+    /**
+     * The limit is set and not boosted, written under {@code this}. The unlimited reader does not take the lock,
+     * so the parallel connections are not serialized
+     */
+    private volatile boolean limited;
+
+
+    /**
+     * Returns the limiter of all downloads, which is unlimited by default
+     * @return instance of RateLimiter
+     */
+    public static RateLimiter getGlobal() {
+
+        if (global == null) {
+
+            synchronized(lockObject) {
+
+                if (global == null) {
+                    global = new RateLimiter(UNLIMITED);
+                }
+            }
+        }
+
+        return global;
+    }
+
+
+    /**
+     * @param bytesPerSecond - max rate, or {@link #UNLIMITED}
+     */
+    public RateLimiter(long bytesPerSecond) {
+        this.bytesPerSecond = Math.max(UNLIMITED, bytesPerSecond);
+        this.tokens = this.bytesPerSecond;
+        this.limited = this.bytesPerSecond != UNLIMITED;
+    }
+
+
+    /**
+     * Change the max rate, the waiting readers take the new rate at once
+     * @param bytesPerSecond - max rate, or {@link #UNLIMITED}
+     */
+    public synchronized RateLimiter setBytesPerSecond(long bytesPerSecond) {
+        refill();
+        this.bytesPerSecond = Math.max(UNLIMITED, bytesPerSecond);
+        tokens = Math.min(tokens, this.bytesPerSecond);
+        updateLimited();
+        notifyAll();
+        return this;
+    }
+
+    public synchronized long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Lift the limit until the returned boost is closed, sample: while the user waits for the download.
+     * The limit is back after all boosts were closed.
+     * @return boost, which must be closed
+     */
+    public synchronized Boost boost() {
+        boosts++;
+        updateLimited();
+        notifyAll();
+        return new Boost(this);
+    }
+
+    public synchronized boolean isBoosted() {
+        return boosts > 0;
+    }
+
+
+    /**
+     * Take the tokens for the read bytes, wait if there are not enough of them.
+     * The read larger than the bucket is allowed once the bucket is full, the debt is paid by the next reads.
+     * @param bytes - number of read bytes
+     * @param downloader - the reading download, its {@link Downloader#cancel()} stops the wait, or null
+     * @throws InterruptedIOException - if the thread was interrupted or the download was cancelled while waiting
+     */
+    void acquire(int bytes, Downloader downloader) throws InterruptedIOException {
+        if (!limited) return;
+
+        synchronized(this) {
+            waitTokens(bytes, downloader);
+        }
+    }
+
+    /**
+     * Wake up the waiting readers, so the cancelled ones stop
+     */
+    synchronized void wakeUp() {
+        notifyAll();
+    }
+
+    /**
+     * Guarded by {@code this}
+     */
+    private void waitTokens(int bytes, Downloader downloader) throws InterruptedIOException {
+        for (;;) {
+            if (bytesPerSecond == UNLIMITED || boosts > 0) return;
+            if (downloader != null && downloader.isCancelled()) throw new InterruptedIOException("Download cancelled");
+
+            refill();
+            long needed = Math.min(bytes, bytesPerSecond);
+            if (tokens >= needed) {
+                tokens -= bytes;
+                return;
+            }
+
+            long waitNanos = (needed - tokens) * NANOS_PER_SECOND / bytesPerSecond;
+            try {
+                wait(Math.max(1, waitNanos / 1000000), 0);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Download cancelled");
+            }
+        }
+    }
+
+    /**
+     * Add the tokens for the time since the last refill, guarded by {@code this}
+     */
+    private void refill() {
+        long now = System.nanoTime();
+        if (bytesPerSecond == UNLIMITED) {
+            refilledAt = now;
+            return;
+        }
+
+        long elapsed = Math.min(now - refilledAt, NANOS_PER_SECOND);
+        long added = elapsed * bytesPerSecond / NANOS_PER_SECOND;
+        if (added <= 0) return;
+
+        tokens = Math.min(bytesPerSecond, tokens + added);
+        // The rest of the nanoseconds, which did not make a whole token, is kept for the next refill
+        refilledAt = elapsed == NANOS_PER_SECOND ? now : refilledAt + added * NANOS_PER_SECOND / bytesPerSecond;
+    }
+
+    private void updateLimited() {
+        limited = bytesPerSecond != UNLIMITED && boosts == 0;
+    }
+
+    private synchronized void release() {
+        boosts--;
+        updateLimited();
+        // Tokens are not saved up while boosted
+        tokens = Math.min(tokens, bytesPerSecond);
+        refilledAt = System.nanoTime();
+    }
+
+
+    /**
+     * Boost of {@link RateLimiter}, the limit is back when it is closed
+     */
+    public static class Boost implements Closeable {
+
+        private final RateLimiter limiter;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        Boost(RateLimiter limiter) {
+            this.limiter = limiter;
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) limiter.release();
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package dex;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Tree hash of the file: SHA-256 of each chunk and the Merkle root over them.
+ * The chunks are memory mapped and hashed in parallel, so the large file is verified on all cores.
+ * The leaf is {@code SHA-256(0x00 || chunk)}, the node is {@code SHA-256(0x01 || left || right)},
+ * the last node of the odd level is moved to the next level as is.
+ * The chunk hashes of the file on server tell, which chunks of the partial download are already valid,
+ * see {@link #findValidChunks(File)}.
+ */
+public class TreeHash {
+
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    private static final String ALGORITHM = "SHA-256";
+    private static final byte LEAF = 0;
+    private static final byte NODE = 1;
+
+    private static ExecutorService executor;
+    private final static Object lockObject = new Object();
+
+    public final int chunkSize;
+    public final long length;
+    private final byte[][] chunks;
+    private final byte[] root;
+
+
+    private TreeHash(int chunkSize, long length, byte[][] chunks) throws NoSuchAlgorithmException {
+        this.chunkSize = chunkSize;
+        this.length = length;
+        this.chunks = chunks;
+        this.root = computeRoot(chunks);
+    }
+
+
+    /**
+     * Like {@link #compute(File file, int chunkSize)}
+     * with {@code chunkSize = DEFAULT_CHUNK_SIZE}
+     */
+    public static TreeHash compute(File file) throws IOException {
+        return compute(file, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Hash the file by chunks in parallel. Run only in background thread.
+     * @param file - the file
+     * @param chunkSize - size of the chunk in bytes. Sample: {@code 1048576}
+     * @return tree hash of the file
+     * @throws IOException - if the file can not be read
+     */
+    public static TreeHash compute(File file, int chunkSize) throws IOException {
+        if (chunkSize <= 0) throw new IllegalArgumentException("chunkSize must be positive");
+
+        long startedAt = DexMetrics.start();
+        long length = file.length();
+        int count = getChunkCount(length, chunkSize);
+
+        try {
+            TreeHash tree = new TreeHash(chunkSize, length, hashChunks(file, length, chunkSize, count, null));
+            DexMetrics.record(DexMetrics.Stage.HASH, startedAt, length);
+            return tree;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Tree hash of the file, which is not on disk, sample: from the manifest on server
+     * @param chunkSize - size of the chunk in bytes
+     * @param length - length of the file
+     * @param chunkHashes - hex SHA-256 of each chunk, see {@link #getChunkHashes()}
+     * @return tree hash of the file
+     */
+    public static TreeHash of(int chunkSize, long length, List<String> chunkHashes) {
+        if (chunkHashes.size() != getChunkCount(length, chunkSize)) throw new IllegalArgumentException("Wrong number of chunks");
+
+        byte[][] chunks = new byte[chunkHashes.size()][];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = fromHex(chunkHashes.get(i));
+        }
+
+        try {
+            return new TreeHash(chunkSize, length, chunks);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+    /**
+     * Returns the Merkle root
+     * @return String result of operation. Sample: {@code "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08"}
+     */
+    public String getRoot() {
+        return Utils.toHex(root);
+    }
+
+    public int getChunkCount() {
+        return chunks.length;
+    }
+
+    /**
+     * Returns hex SHA-256 of each chunk
+     */
+    public List<String> getChunkHashes() {
+        List<String> hashes = new ArrayList<>(chunks.length);
+        for (byte[] chunk : chunks) {
+            hashes.add(Utils.toHex(chunk));
+        }
+        return Collections.unmodifiableList(hashes);
+    }
+
+    /**
+     * Check, which chunks of the file have the same hash as in this tree, sample: the partial download,
+     * which was written in ranges. Chunks beyond the end of the file are not valid. Run only in background thread.
+     * @param file - the file to check
+     * @return valid flag for each chunk of this tree
+     * @throws IOException - if the file can not be read
+     */
+    public boolean[] findValidChunks(File file) throws IOException {
+        boolean[] valid = new boolean[chunks.length];
+        long available = Math.min(file.length(), length);
+
+        // Only the chunks, which are already written up to the end, are read
+        boolean[] skip = new boolean[chunks.length];
+        for (int i = 0; i < chunks.length; i++) {
+            skip[i] = Math.min((long) (i + 1) * chunkSize, length) > available;
+        }
+
+        byte[][] hashes = hashChunks(file, length, chunkSize, chunks.length, skip);
+        for (int i = 0; i < chunks.length; i++) {
+            valid[i] = hashes[i] != null && Arrays.equals(hashes[i], chunks[i]);
+        }
+        return valid;
+    }
+
+
+    @Override
+    public boolean equals(Object object) {
+        if (this == object) return true;
+        if (!(object instanceof TreeHash)) return false;
+
+        TreeHash another = (TreeHash) object;
+        return chunkSize == another.chunkSize && length == another.length && Arrays.equals(root, another.root);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(root);
+    }
+
+    @Override
+    public String toString() {
+        return "TreeHash{root=" + getRoot() + ", chunkSize=" + chunkSize + ", length=" + length + ", chunks=" + chunks.length + "}";
+    }
+
+
+    /**
+     * Returns name of the algorithm for {@link VerificationCache}
+     */
+    static String getAlgorithm(int chunkSize) {
+        return ALGORITHM + "-TREE-" + chunkSize;
+    }
+
+    private static int getChunkCount(long length, int chunkSize) {
+        // The empty file has one empty chunk
+        return (int) Math.max(1, (length + chunkSize - 1) / chunkSize);
+    }
+
+    /**
+     * Hash the chunks on the pool of {@link #getExecutor()}, each chunk is mapped separately
+     * @param skip - chunks, which are not hashed, or null
+     * @return hash of each chunk, null for the skipped
+     */
+    private static byte[][] hashChunks(File file, long length, int chunkSize, int count, boolean[] skip) throws IOException {
+        byte[][] hashes = new byte[count][];
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+
+        try {
+
+            FileChannel channel = input.getChannel();
+
+            if (count == 1) {
+                if (skip == null || !skip[0]) hashes[0] = hashChunk(channel, 0, length);
+                return hashes;
+            }
+
+            List<Future<byte[]>> futures = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                if (skip != null && skip[i]) {
+                    futures.add(null);
+                    continue;
+                }
+
+                long offset = (long) i * chunkSize;
+                long size = Math.min(chunkSize, length - offset);
+                futures.add(getExecutor().submit(() -> hashChunk(channel, offset, size)));
+            }
+
+            try {
+                for (int i = 0; i < count; i++) {
+                    Future<byte[]> future = futures.get(i);
+                    if (future != null) hashes[i] = future.get();
+                }
+            } catch (InterruptedException e) {
+                cancel(futures);
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } catch (ExecutionException e) {
+                cancel(futures);
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) throw (IOException) cause;
+                throw new IOException(cause);
+            }
+
+            return hashes;
+        } finally {
+            Utils.closeQuietly(input);
+        }
+    }
+
+    private static byte[] hashChunk(FileChannel channel, long offset, long size) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        digest.update(LEAF);
+
+        if (size > 0) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+            digest.update(mapped);
+        }
+
+        return digest.digest();
+    }
+
+    private static byte[] computeRoot(byte[][] chunks) throws NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance(ALGORITHM);
+        byte[][] level = chunks;
+
+        while (level.length > 1) {
+            byte[][] next = new byte[(level.length + 1) / 2][];
+            for (int i = 0; i < level.length / 2; i++) {
+                digest.update(NODE);
+                digest.update(level[2 * i]);
+                digest.update(level[2 * i + 1]);
+                next[i] = digest.digest();
+            }
+            if (level.length % 2 == 1) next[next.length - 1] = level[level.length - 1];
+            level = next;
+        }
+
+        return level[0];
+    }
+
+    private static void cancel(List<Future<byte[]>> futures) {
+        for (Future<byte[]> future : futures) {
+            if (future != null) future.cancel(true);
+        }
+    }
+
+    /**
+     * Pool of the hashing, one thread per core. It is separate from {@link DexExecutor},
+     * so the task of {@link DexExecutor} can wait for the chunks without taking its threads.
+     */
+    private static ExecutorService getExecutor() {
+
+        if (executor == null) {
+
+            synchronized(lockObject) {
+
+                if (executor == null) {
+                    int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+                    ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                            new LinkedBlockingQueue<>(), new DexExecutor.NamedThreadFactory("dex-hash"));
+                    pool.allowCoreThreadTimeOut(true);
+                    executor = pool;
+                }
+            }
+        }
+
+        return executor;
+    }
+
+    private static byte[] fromHex(String hex) {
+        if (hex.length() % 2 != 0) throw new IllegalArgumentException("Wrong hex " + hex);
+
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+}
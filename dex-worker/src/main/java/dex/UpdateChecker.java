@@ -0,0 +1,357 @@
+package dex;
+
+import android.content.Context;
+import android.os.Handler;
+
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Properties;
+
+
+/**
+ * Check of updates of the plugin by the small manifest on server, sample:
+ * <pre>
+ *     {"version": 2, "size": 1024, "md5": "a1aeae662d801c6e1853614d213e9063", "url": "http://example.com/parser.dex",
+ *      "patchUrl": "http://example.com/parser.patch"}
+ * </pre>
+ * The manifest is requested with {@code If-None-Match}/{@code If-Modified-Since} of the last response,
+ * which are saved with the manifest in {@code "<fileName>.manifest"} in the dex directory.
+ * If the manifest was not changed, the check costs one 304 response without body.
+ * The dex file is downloaded only if the manifest has the newer version than the installed one.
+ * If the manifest has {@code patchUrl}, the patch from the installed file is tried first, see {@link Patcher}.
+ */
+public class UpdateChecker {
+
+    public static final String MANIFEST_SUFFIX = ".manifest";
+
+    private static final String KEY_ETAG = "etag";
+    private static final String KEY_LAST_MODIFIED = "lastModified";
+    private static final String KEY_VERSION = "version";
+    private static final String KEY_SIZE = "size";
+    private static final String KEY_MD5 = "md5";
+    private static final String KEY_URL = "url";
+    private static final String KEY_PATCH_URL = "patchUrl";
+
+    private static final int MAX_MANIFEST_SIZE = 64 * 1024;
+
+    private final Dex dex;
+    private final String manifestUrl;
+    private int connectTimeout = 15000;
+    private int readTimeout = 30000;
+
+
+    /**
+     * Result of {@link #check()}
+     */
+    public enum Status {
+        /**
+         * The installed version is the latest one
+         */
+        UP_TO_DATE,
+        /**
+         * The newer version was downloaded to {@code params.downloadFileName}, it can be installed by {@link Dex#hotSwap}
+         */
+        DOWNLOADED,
+        /**
+         * The manifest or the file could not be downloaded
+         */
+        FAILED
+    }
+
+
+    /**
+     * @param dex - the plugin to update
+     * @param manifestUrl - direct link to the manifest
+     */
+    public UpdateChecker(Dex dex, String manifestUrl) {
+        this.dex = dex;
+        this.manifestUrl = manifestUrl;
+    }
+
+
+    public UpdateChecker setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+        return this;
+    }
+
+    public UpdateChecker setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+        return this;
+    }
+
+
+    /**
+     * Check update (async), see {@link #check()}.
+     * The check runs in {@link DexExecutor#getDefault()} with {@link DexExecutor.Priority#BACKGROUND}.
+     * @param handler - handler for work with in UI Thread
+     * @param callback - callback for the result
+     * @return handle of the task, which can be cancelled
+     */
+    public DexExecutor.Task checkAsync(Handler handler, ToDoWithDataCallback<Result> callback) {
+        return DexExecutor.getDefault().execute(DexExecutor.Priority.BACKGROUND, () -> {
+
+            Result result = check();
+            if (Thread.currentThread().isInterrupted()) return;
+
+            if (handler != null && callback != null) handler.post(() -> callback.todo(result));
+        });
+    }
+
+    /**
+     * Check update (sync): request the manifest and download the file, if its version is newer
+     * than the installed one. Run only in background thread.
+     * @return result of the check
+     */
+    public Result check() {
+        Utils.stopIfMainThread();
+
+        Manifest manifest = fetchManifest();
+        if (manifest == null) return new Result(Status.FAILED, null);
+        if (!isNewer(manifest)) return new Result(Status.UP_TO_DATE, manifest);
+
+        Dex.Params params = dex.getParams();
+        String path = Utils.getFileFullName(params.context, params.downloadFileName);
+        File downloaded = new File(path);
+
+        // The file could be downloaded by the previous check, but not installed
+        boolean ready = downloaded.exists() && (manifest.size <= 0 || downloaded.length() == manifest.size)
+                && manifest.md5 != null && manifest.md5.equals(Utils.getMD5(downloaded));
+
+        // The same file can be downloading by Utils.subscribeDownload, the check joins it
+        if (ready || download(manifest, path)) return new Result(Status.DOWNLOADED, manifest);
+        return new Result(Status.FAILED, manifest);
+    }
+
+    /**
+     * Download the update with the patch from the installed file, if the manifest has it.
+     * The dex loaded in memory has no installed file, it is updated by the whole file
+     */
+    private boolean download(Manifest manifest, String path) {
+        File active = dex.getSlots().getActiveFile();
+        DexMeta meta = manifest.patchUrl != null && active.exists() ? dex.getInstalledMeta() : null;
+        if (meta == null) return DownloadFlight.download(manifest.url, path, manifest.md5);
+
+        return Patcher.downloadUpdate(manifest.patchUrl, manifest.url, active.getPath(), meta.version, meta.md5, path, manifest.md5);
+    }
+
+    /**
+     * Check if the manifest has the newer version than the installed file
+     */
+    public boolean isNewer(Manifest manifest) {
+        int installed = dex.getInstalledVersion();
+        if (installed == DexMeta.UNKNOWN_VERSION) installed = dex.getParams().fileVersion;
+        return manifest.version > installed;
+    }
+
+
+    /**
+     * Request the manifest (sync) with the validators of the last response. Run only in background thread.
+     * @return the new manifest, the saved one if it was not changed, or null if it could not be downloaded
+     */
+    public Manifest fetchManifest() {
+        File stateFile = getStateFile();
+        Properties state = readState(stateFile);
+        Manifest saved = Manifest.from(state);
+
+        HttpURLConnection connection = null;
+        InputStream input = null;
+
+        try {
+
+            connection = (HttpURLConnection) new URL(manifestUrl).openConnection();
+            connection.setConnectTimeout(connectTimeout);
+            connection.setReadTimeout(readTimeout);
+            connection.setUseCaches(false);
+
+            if (saved != null) {
+                String eTag = state.getProperty(KEY_ETAG);
+                String lastModified = state.getProperty(KEY_LAST_MODIFIED);
+                if (eTag != null) connection.setRequestProperty("If-None-Match", eTag);
+                if (lastModified != null) connection.setRequestProperty("If-Modified-Since", lastModified);
+            }
+
+            int code = connection.getResponseCode();
+            if (code == HttpURLConnection.HTTP_NOT_MODIFIED && saved != null) return saved;
+            if (code != HttpURLConnection.HTTP_OK) return null;
+
+            input = connection.getInputStream();
+            Manifest manifest = Manifest.parse(readText(input));
+
+            state.clear();
+            manifest.store(state);
+            String eTag = connection.getHeaderField("ETag");
+            String lastModified = connection.getHeaderField("Last-Modified");
+            if (eTag != null) state.setProperty(KEY_ETAG, eTag);
+            if (lastModified != null) state.setProperty(KEY_LAST_MODIFIED, lastModified);
+            writeState(stateFile, state);
+
+            return manifest;
+        } catch (Throwable throwable) {
+            return null;
+        } finally {
+            Utils.closeQuietly(input);
+            if (connection != null) connection.disconnect();
+        }
+    }
+
+    /**
+     * Remove the saved manifest and validators, so the next check downloads the manifest
+     */
+    public void clear() {
+        getStateFile().delete();
+    }
+
+
+    private File getStateFile() {
+        Dex.Params params = dex.getParams();
+        return new File(params.context.getDir("dex", Context.MODE_PRIVATE), params.fileName + MANIFEST_SUFFIX);
+    }
+
+    private static String readText(InputStream input) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int count;
+        while ((count = input.read(buffer)) != -1) {
+            output.write(buffer, 0, count);
+            if (output.size() > MAX_MANIFEST_SIZE) throw new IOException("Manifest is too large");
+        }
+        return output.toString("UTF-8");
+    }
+
+    private static Properties readState(File file) {
+        Properties properties = new Properties();
+        if (!file.exists()) return properties;
+
+        InputStream is = null;
+        try {
+            is = new FileInputStream(file);
+            properties.load(is);
+        } catch (Throwable ignored) {
+            properties.clear();
+        } finally {
+            Utils.closeQuietly(is);
+        }
+        return properties;
+    }
+
+    private static void writeState(File file, Properties properties) {
+        File tmp = new File(file.getPath() + Utils.TMP_SUFFIX);
+
+        OutputStream os = null;
+        try {
+            os = new FileOutputStream(tmp);
+            properties.store(os, null);
+            os.close();
+            Utils.moveFile(tmp, file);
+        } catch (Throwable ignored) {
+            tmp.delete();
+        } finally {
+            Utils.closeQuietly(os);
+        }
+    }
+
+
+    /**
+     * Result of {@link #check()}
+     */
+    public static class Result {
+
+        public final Status status;
+
+        /**
+         * The manifest, or null if it could not be downloaded
+         */
+        public final Manifest manifest;
+
+        Result(Status status, Manifest manifest) {
+            this.status = status;
+            this.manifest = manifest;
+        }
+
+        @Override
+        public String toString() {
+            return "Result{status=" + status + ", manifest=" + manifest + "}";
+        }
+    }
+
+
+    /**
+     * Description of the latest dex file on server
+     */
+    public static class Manifest {
+
+        public final int version;
+
+        /**
+         * Size of the file in bytes, or -1
+         */
+        public final long size;
+        public final String md5;
+        public final String url;
+
+        /**
+         * Link to the patch from the installed version, or null
+         */
+        public final String patchUrl;
+
+        public Manifest(int version, long size, String md5, String url) {
+            this(version, size, md5, url, null);
+        }
+
+        public Manifest(int version, long size, String md5, String url, String patchUrl) {
+            this.version = version;
+            this.size = size;
+            this.md5 = md5;
+            this.url = url;
+            this.patchUrl = patchUrl;
+        }
+
+        static Manifest parse(String json) throws Exception {
+            JSONObject object = new JSONObject(json);
+            return new Manifest(
+                    object.getInt(KEY_VERSION),
+                    object.optLong(KEY_SIZE, -1),
+                    object.has(KEY_MD5) ? object.getString(KEY_MD5) : null,
+                    object.getString(KEY_URL),
+                    object.has(KEY_PATCH_URL) ? object.getString(KEY_PATCH_URL) : null);
+        }
+
+        static Manifest from(Properties properties) {
+            try {
+                String url = properties.getProperty(KEY_URL);
+                if (url == null) return null;
+
+                return new Manifest(
+                        Integer.parseInt(properties.getProperty(KEY_VERSION)),
+                        Long.parseLong(properties.getProperty(KEY_SIZE, "-1")),
+                        properties.getProperty(KEY_MD5),
+                        url,
+                        properties.getProperty(KEY_PATCH_URL));
+            } catch (Throwable throwable) {
+                return null;
+            }
+        }
+
+        void store(Properties properties) {
+            properties.setProperty(KEY_VERSION, String.valueOf(version));
+            properties.setProperty(KEY_SIZE, String.valueOf(size));
+            if (md5 != null) properties.setProperty(KEY_MD5, md5);
+            properties.setProperty(KEY_URL, url);
+            if (patchUrl != null) properties.setProperty(KEY_PATCH_URL, patchUrl);
+        }
+
+        @Override
+        public String toString() {
+            return "Manifest{version=" + version + ", size=" + size + ", md5=" + md5 + ", url=" + url + ", patchUrl=" + patchUrl + "}";
+        }
+    }
+}
@@ -5,23 +5,25 @@ import android.content.ContextWrapper;
 import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
+import android.system.Os;
+import android.system.OsConstants;
 
-import java.io.BufferedInputStream;
 import java.io.Closeable;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.math.BigInteger;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.security.MessageDigest;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 
 public class Utils {
 
+    static final String TMP_SUFFIX = ".tmp";
 
     public static <T extends Versioned> void safelyWorkWithClass(T obj, ToDoWithDataCallback<T> success, ToDoInterface failure) {
         try {
@@ -47,39 +49,44 @@ public class Utils {
     }
 
 
+    /**
+     * Like {@link #copyAssets(Context context, String nameAssets, String path, String md5)}
+     * with {@code md5 = null} for copying without checking md5
+     */
+    public static boolean copyAssets(Context context, String nameAssets, String path) {
+        return copyAssets(context, nameAssets, path, null);
+    }
+
     /**
      * Get result copy dex file from assets. Run only in background thread.
+     * The file is written to {@code "<path>.tmp"} and hashed on the way, then renamed to {@code path}
+     * only if the hash is equal to {@code md5}. Gzip compressed asset, or asset {@code "<nameAssets>.gz"},
+     * is decompressed on the way, the hash is checked for the decompressed file.
+     * The copy is made by {@link AssetExtractor#getDefault()}.
      * @param context - Context for method getDir
      * @param nameAssets - File name with extension. Sample: "file.dex"
      * @param path - File path. Sample: "/data/user/0/package/project"
+     * @param md5 - expected hash of the file in assets, or null
      * @return boolean result of operation. Sample: {@code true}
      */
-    public static boolean copyAssets(Context context, String nameAssets, String path) {
-        Utils.stopIfMainThread();
+    public static boolean copyAssets(Context context, String nameAssets, String path, String md5) {
+        return AssetExtractor.getDefault().extract(context, nameAssets, path, md5);
+    }
 
-        boolean result = false;
-        InputStream is = null;
-        OutputStream os = null;
 
+    /**
+     * Open the asset {@code nameAssets}, or its gzip compressed variant {@code "<nameAssets>.gz"}
+     * @param context - Context for method getAssets
+     * @param nameAssets - File name with extension. Sample: "file.dex"
+     * @return stream of the asset, compressed or not
+     * @throws IOException - if neither of the assets exists
+     */
+    static InputStream openAssets(Context context, String nameAssets) throws IOException {
         try {
-
-            is = context.getAssets().open(nameAssets);
-            os = new FileOutputStream(path);
-            byte[] buffer = new byte[1024];
-            int length;
-
-            while ((length = is.read(buffer)) > 0) {
-                os.write(buffer, 0, length);
-            }
-
-            result = true;
-        } catch (Throwable ignored) {
-            // Nothing
-        } finally {
-            Utils.closeQuietly(os, is);
+            return context.getAssets().open(nameAssets);
+        } catch (FileNotFoundException e) {
+            return context.getAssets().open(nameAssets + Compression.GZIP_SUFFIX);
         }
-
-        return result;
     }
 
 
@@ -114,14 +121,42 @@ public class Utils {
 
     /**
      * Get md5 hash from file. Run only in background thread.
+     * The file, which was not changed since the last hashing, is not read again, see {@link VerificationCache}
      * @param file - File that md5 hash need to check
      * @return String result of operation. Sample: {@code "74f8d316c95b4d0b4702a76930f4e127"}
      */
     public static String getMD5(File file) {
         stopIfMainThread();
+        return VerificationCache.getInstance().getDigest(file, "MD5", Utils::computeMD5);
+    }
+
+    /**
+     * Get the Merkle root of SHA-256 chunks of the file, the chunks are hashed in parallel. Run only in background thread.
+     * The file, which was not changed since the last hashing, is not read again, see {@link VerificationCache}
+     * @param file - File that hash need to check
+     * @return String result of operation, or empty string if the file can not be read. See {@link TreeHash#getRoot()}
+     */
+    public static String getTreeHash(File file) {
+        stopIfMainThread();
+        return VerificationCache.getInstance().getDigest(file, TreeHash.getAlgorithm(TreeHash.DEFAULT_CHUNK_SIZE), f -> {
+            try {
+                return TreeHash.compute(f).getRoot();
+            } catch (Throwable throwable) {
+                return "";
+            }
+        });
+    }
+
+    /**
+     * Get md5 hash from file by reading the whole file
+     * @param file - File that md5 hash need to check
+     * @return String result of operation, or empty string if the file can not be read
+     */
+    static String computeMD5(File file) {
 
         String result = "";
         InputStream is = null;
+        long startedAt = DexMetrics.start();
 
         try {
 
@@ -134,10 +169,8 @@ public class Utils {
                 digest.update(buffer, 0, read);
             }
 
-            byte[] md5sum = digest.digest();
-            BigInteger bigInt = new BigInteger(1, md5sum);
-            String output = bigInt.toString(16);
-            result = String.format("%32s", output).replace(' ', '0');
+            result = toHex(digest.digest());
+            DexMetrics.record(DexMetrics.Stage.HASH, startedAt, file.length());
         } catch (Throwable ignored) {
             // Nothing
         } finally {
@@ -149,17 +182,45 @@ public class Utils {
 
 
     /**
-     * Download file (async) by url in {@code fromUrl} to file by path in {@code toFullFileName}
+     * Download file (async) by url in {@code fromUrl} to file by path in {@code toFullFileName}.
+     * The download runs in {@link DexExecutor#getDefault()} with {@link DexExecutor.Priority#BACKGROUND}.
+     * If the same url is already downloading to the same file, the callbacks are subscribed to it, see {@link DownloadFlight}.
+     * The download of another url to the same file starts after the running one. The caller of the same url and file
+     * with another md5 is not subscribed, its {@code failure} is called at once.
+     * Callbacks are not called if the download was cancelled.
+     * @param fromUrl - direct link to file download file
+     * @param toFullFileName - path to download and save the file
+     * @param md5 - expected hash of the downloading file, or null
+     * @param handler - handler for work with in UI Thread
+     * @param success - callback for success download
+     * @param failure - callback for failure download
+     * @return subscription to the download, which can be cancelled
+     */
+    public static DownloadFlight.Subscription subscribeDownload(String fromUrl, String toFullFileName, String md5, Handler handler, ToDoInterface success, ToDoInterface failure) {
+        return DownloadFlight.subscribe(fromUrl, toFullFileName, md5, handler, success, failure);
+    }
+
+    /**
+     * Download file (async) by url in {@code fromUrl} to file by path in {@code toFullFileName}.
+     * The task runs {@link #downloadFile(String, String, String)} in {@link DexExecutor#getDefault()} with
+     * {@link DexExecutor.Priority#BACKGROUND}, so the same download in progress is joined, see {@link DownloadFlight}.
+     * Callbacks are not called if the task was cancelled.
      * @param fromUrl - direct link to file download file
      * @param toFullFileName - path to download and save the file
+     * @param md5 - expected hash of the downloading file, or null
      * @param handler - handler for work with in UI Thread
      * @param success - callback for success download
      * @param failure - callback for failure download
+     * @return handle of the task, which can be cancelled
+     * @deprecated the task holds a pool thread while it waits for the joined download,
+     *             use {@link #subscribeDownload} instead
      */
-    public static void downloadFileAsync(String fromUrl, String toFullFileName, String md5, Handler handler, ToDoInterface success, ToDoInterface failure) {
-        Utils.runInNewThread(() -> {
+    @Deprecated
+    public static DexExecutor.Task downloadFileAsync(String fromUrl, String toFullFileName, String md5, Handler handler, ToDoInterface success, ToDoInterface failure) {
+        return DexExecutor.getDefault().execute(DexExecutor.Priority.BACKGROUND, () -> {
 
             Boolean result = Utils.downloadFile(fromUrl, toFullFileName, md5);
+            if (Thread.currentThread().isInterrupted()) return;
 
             handler.post(() -> {
                 if (result) {
@@ -189,40 +250,90 @@ public class Utils {
      * @return boolean result of operation, true - successfully downloaded, false - download error.
      */
     public static boolean downloadFile(String fromUrl, String toFullFileName, String md5) {
+        return downloadFile(fromUrl, toFullFileName, md5, 1);
+    }
 
-        boolean result = false;
-        InputStream input = null;
-        OutputStream output = null;
-        int count;
 
-        try {
+    /**
+     * Download file (sync) by url in {@code fromUrl} to file by path in {@code toFullFileName}.
+     * Unfinished download is continued on the next call, see {@link Downloader}
+     * @param fromUrl - direct link to file download file
+     * @param toFullFileName - path to download and save the file
+     * @param md5 - expected hash of the downloading file
+     * @param connections - number of parallel connections, used if the server supports ranges
+     * @return boolean result of operation, true - successfully downloaded, false - download error.
+     */
+    public static boolean downloadFile(String fromUrl, String toFullFileName, String md5, int connections) {
+        return DownloadFlight.download(fromUrl, toFullFileName, md5, connections);
+    }
 
-            if (isExists(toFullFileName)) new File(toFullFileName).delete();
 
-            URL url = new URL(fromUrl);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.connect();
+    /**
+     * Hex string of the hash
+     * @param hash - bytes of the hash
+     * @return String result of operation. Sample: {@code "74f8d316c95b4d0b4702a76930f4e127"}
+     */
+    public static String toHex(byte[] hash) {
+        BigInteger bigInt = new BigInteger(1, hash);
+        String output = bigInt.toString(16);
+        int length = hash.length * 2;
+        StringBuilder builder = new StringBuilder(length);
+        for (int i = output.length(); i < length; i++) builder.append('0');
+        return builder.append(output).toString();
+    }
 
-            input = new BufferedInputStream(connection.getInputStream());
-            output = new FileOutputStream(toFullFileName, true);
 
-            byte []data = new byte[1024];
-            while ((count = input.read(data)) != -1) {
-                output.write(data, 0, count);
-            }
+    /**
+     * Rename file {@code from} to {@code to}, replacing {@code to} if it exists
+     * @param from - file to rename
+     * @param to - new file
+     * @return true - if renamed, false otherwise
+     */
+    public static boolean moveFile(File from, File to) {
+        if (from.renameTo(to)) return true;
+        return to.delete() && from.renameTo(to);
+    }
 
-            connection.disconnect();
-            result = true;
+    /**
+     * Flush the content of the file to the disk
+     * @param file - the written file
+     * @return true - if flushed, false otherwise
+     */
+    public static boolean syncFile(File file) {
+        FileOutputStream os = null;
+        try {
+            os = new FileOutputStream(file, true);
+            os.getFD().sync();
+            return true;
         } catch (Throwable throwable) {
-            if (isExists(toFullFileName)) new File(toFullFileName).delete();
+            return false;
         } finally {
-            closeQuietly(output, input);
+            closeQuietly(os);
         }
+    }
 
-        if (md5 != null && result) {
-            return md5.equals(Utils.getMD5(toFullFileName));
-        } else {
-            return result;
+    /**
+     * Flush the entries of the directory to the disk, so the renamed file is not lost after a power cut.
+     * The directory can not be opened by java streams, so it works only on API 21+
+     * @param dir - the directory of the renamed file
+     * @return true - if flushed, false otherwise
+     */
+    public static boolean syncDir(File dir) {
+        if (Build.VERSION.SDK_INT < 21) return false;
+
+        FileDescriptor fd = null;
+        try {
+            fd = Os.open(dir.getPath(), OsConstants.O_RDONLY, 0);
+            Os.fsync(fd);
+            return true;
+        } catch (Throwable throwable) {
+            return false;
+        } finally {
+            if (fd != null) {
+                try {
+                    Os.close(fd);
+                } catch (Throwable ignored) { }
+            }
         }
     }
 
@@ -238,13 +349,17 @@ public class Utils {
      *  @return boolean result of operation, true - method run in main thread, false - method run in background thread.
      */
     public static boolean isInUiThread() {
-        return Thread.currentThread().equals(Looper.getMainLooper().getThread());
+        // There is no main looper in the unit tests on JVM
+        Looper mainLooper = Looper.getMainLooper();
+        return mainLooper != null && Thread.currentThread().equals(mainLooper.getThread());
     }
 
     /**
      * Starting a new thread for executable code
      * @param runnable - executable code.
+     * @deprecated use bounded {@link DexExecutor#getDefault()}
      */
+    @Deprecated
     public static void runInNewThread(Runnable runnable) {
         new Thread(runnable).start();
     }
@@ -0,0 +1,325 @@
+package dex;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Cache of the file hashes, keyed by the identity of the file: absolute path, size, modification time
+ * and hash algorithm. The hashes are saved in the one index {@code ".verify"} in the private directory
+ * of the app, set by {@link #setDirectory}, so the file, which was not changed, is not hashed again
+ * after the restart. Nothing is written next to the hashed files. Any change of size or modification time
+ * makes the full hashing. Without the directory the files are always hashed.
+ */
+public class VerificationCache {
+
+    static final String INDEX_NAME = ".verify";
+
+    /**
+     * The file modified so short before the lookup, could be changed again with the same
+     * modification time. Its hash is not trusted yet, like racily clean entries of git index.
+     * The hash recorded by this process from its own write stream is trusted at once, see {@link #record}.
+     */
+    private static final long RACY_MILLIS = 2000;
+
+    private static VerificationCache instance;
+    private final static Object lockObject = new Object();
+
+    /**
+     * The directory of the index, or null if it is not set, and the loaded index, or null if it is not loaded yet.
+     * Guarded by {@code this}
+     */
+    private File dir;
+    private HashMap<String, Entry> index;
+    private volatile boolean enabled = true;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong bytesSkipped = new AtomicLong();
+    private final AtomicLong bytesHashed = new AtomicLong();
+
+
+    /**
+     * Computes the hash of the file on the cache miss
+     */
+    public interface Hasher {
+        String hash(File file);
+    }
+
+
+    /**
+     * Singleton for VerificationCache
+     * @return instance of VerificationCache
+     */
+    public static VerificationCache getInstance() {
+
+        if (instance == null) {
+
+            synchronized(lockObject) {
+
+                if (instance == null) {
+                    instance = new VerificationCache();
+                }
+            }
+        }
+
+        return instance;
+    }
+
+
+    /**
+     * Private constructor
+     */
+    private VerificationCache() {}
+
+
+    public VerificationCache setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        return this;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Set the private directory of the app for the index, sample: {@code context.getDir("dex", Context.MODE_PRIVATE)}.
+     * It is set by {@link Dex} with its params
+     * @param dir - the directory, or null to stop caching
+     */
+    public synchronized VerificationCache setDirectory(File dir) {
+        if (dir == null ? this.dir != null : !dir.equals(this.dir)) {
+            this.dir = dir;
+            index = null;
+        }
+        return this;
+    }
+
+    public synchronized File getDirectory() {
+        return dir;
+    }
+
+
+    /**
+     * Returns the hash of the file from the cache, or computes and saves it. Run only in background thread.
+     * @param file - the file
+     * @param algorithm - name of the hash algorithm. Sample: "MD5"
+     * @param hasher - computes the hash, if the file is not in cache or was changed
+     * @return hash of the file, or empty string if it can not be computed
+     */
+    public String getDigest(File file, String algorithm, Hasher hasher) {
+        long size = file.length();
+        long modified = file.lastModified();
+
+        if (enabled) {
+            Entry entry;
+            synchronized(this) {
+                HashMap<String, Entry> index = getIndex();
+                entry = index != null ? index.get(key(file, algorithm)) : null;
+            }
+
+            if (entry != null && entry.size == size && entry.modified == modified && !entry.isRacy(System.currentTimeMillis())) {
+                hits.incrementAndGet();
+                bytesSkipped.addAndGet(size);
+                return entry.digest;
+            }
+        }
+
+        misses.incrementAndGet();
+        bytesHashed.addAndGet(size);
+        String digest = hasher.hash(file);
+
+        // The file could be changed while it was hashed
+        if (digest != null && !digest.isEmpty() && file.length() == size && file.lastModified() == modified) {
+            record(file, algorithm, digest, size, modified, false);
+        }
+
+        return digest;
+    }
+
+    /**
+     * Save the hash of the file, which was computed while the file was written. The file was written
+     * by this process, so its hash is trusted even right after the modification, and the download
+     * checked by md5 is not read again before it is installed
+     * @param file - the file, already on its final path
+     * @param algorithm - name of the hash algorithm. Sample: "MD5"
+     * @param digest - hash of the file
+     */
+    public void record(File file, String algorithm, String digest) {
+        record(file, algorithm, digest, file.length(), file.lastModified(), true);
+    }
+
+    /**
+     * Remove the hashes of the file, which is replaced or removed. Its next hash is computed again,
+     * even if the new file has the same size and modification time
+     * @param file - the file
+     */
+    public void invalidate(File file) {
+        synchronized(this) {
+            HashMap<String, Entry> index = getIndex();
+            if (index == null) return;
+            String prefix = file.getAbsolutePath() + '\t';
+
+            boolean changed = false;
+            for (Iterator<String> iterator = index.keySet().iterator(); iterator.hasNext(); ) {
+                if (iterator.next().startsWith(prefix)) {
+                    iterator.remove();
+                    changed = true;
+                }
+            }
+
+            if (changed) writeIndex(dir, index);
+        }
+    }
+
+    /**
+     * Returns the counters of the cache
+     * @return snapshot of the counters
+     */
+    public Stats getStats() {
+        return new Stats(hits.get(), misses.get(), bytesSkipped.get(), bytesHashed.get());
+    }
+
+
+    private void record(File file, String algorithm, String digest, long size, long modified, boolean written) {
+        if (!enabled || !file.exists()) return;
+
+        // The path with the separators of the index is not cached
+        String path = file.getAbsolutePath();
+        if (path.indexOf('\t') >= 0 || path.indexOf('\n') >= 0) return;
+
+        synchronized(this) {
+            HashMap<String, Entry> index = getIndex();
+            if (index == null) return;
+
+            index.put(key(file, algorithm), new Entry(size, modified, digest, written));
+            writeIndex(dir, index);
+        }
+    }
+
+    private static String key(File file, String algorithm) {
+        return file.getAbsolutePath() + '\t' + algorithm;
+    }
+
+    /**
+     * Returns the loaded index, or null if the directory is not set, guarded by {@code this}
+     */
+    private HashMap<String, Entry> getIndex() {
+        if (dir == null) return null;
+        if (index == null) index = readIndex(dir);
+        return index;
+    }
+
+    /**
+     * Format of the line: absolute path, algorithm, size, modified, digest, separated by tabs
+     */
+    private static HashMap<String, Entry> readIndex(File dir) {
+        HashMap<String, Entry> index = new HashMap<>();
+        File file = new File(dir, INDEX_NAME);
+        if (!file.exists()) return index;
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] items = line.split("\t");
+                if (items.length != 5) continue;
+                index.put(items[0] + '\t' + items[1], new Entry(Long.parseLong(items[2]), Long.parseLong(items[3]), items[4], false));
+            }
+        } catch (Throwable ignored) {
+            index.clear();
+        } finally {
+            Utils.closeQuietly(reader);
+        }
+
+        return index;
+    }
+
+    private static void writeIndex(File dir, HashMap<String, Entry> index) {
+        File file = new File(dir, INDEX_NAME);
+        File tmp = new File(dir, INDEX_NAME + Utils.TMP_SUFFIX);
+
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+            for (Map.Entry<String, Entry> item : index.entrySet()) {
+                Entry entry = item.getValue();
+                writer.write(item.getKey() + '\t' + entry.size + '\t' + entry.modified + '\t' + entry.digest + '\n');
+            }
+            writer.close();
+            Utils.moveFile(tmp, file);
+        } catch (Throwable ignored) {
+            tmp.delete();
+        } finally {
+            Utils.closeQuietly(writer);
+        }
+    }
+
+
+    private static class Entry {
+
+        final long size;
+        final long modified;
+        final String digest;
+
+        /**
+         * The hash was computed from the write stream of this process, it is not saved in the index,
+         * so after the restart the entry is checked like the hashed one
+         */
+        final boolean written;
+
+        Entry(long size, long modified, String digest, boolean written) {
+            this.size = size;
+            this.modified = modified;
+            this.digest = digest;
+            this.written = written;
+        }
+
+        /**
+         * Check if the file was modified too short before now, the hash from the write stream is never racy
+         * @param now - current time in milliseconds
+         */
+        boolean isRacy(long now) {
+            return !written && now - modified < RACY_MILLIS;
+        }
+    }
+
+
+    /**
+     * Snapshot of the counters of {@link VerificationCache}
+     */
+    public static class Stats {
+
+        public final long hits;
+        public final long misses;
+
+        /**
+         * Bytes, which were not read thanks to the cache
+         */
+        public final long bytesSkipped;
+        public final long bytesHashed;
+
+        Stats(long hits, long misses, long bytesSkipped, long bytesHashed) {
+            this.hits = hits;
+            this.misses = misses;
+            this.bytesSkipped = bytesSkipped;
+            this.bytesHashed = bytesHashed;
+        }
+
+        @Override
+        public String toString() {
+            return "Stats{hits=" + hits + ", misses=" + misses
+                    + ", bytesSkipped=" + bytesSkipped + ", bytesHashed=" + bytesHashed + "}";
+        }
+    }
+}
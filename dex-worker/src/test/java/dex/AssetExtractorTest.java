@@ -0,0 +1,145 @@
+package dex;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class AssetExtractorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private byte[] data;
+    private File assetsDir;
+    private TestContext context;
+    private final AssetExtractor extractor = new AssetExtractor();
+
+
+    @Before
+    public void setUp() throws Exception {
+        data = new byte[100 * 1024];
+        new Random(24).nextBytes(data);
+
+        context = new TestContext(folder);
+        assetsDir = context.getAssetsDir();
+    }
+
+    @After
+    public void tearDown() {
+        DexRegistry.getInstance().unregister("asset-in-memory");
+        VerificationCache.getInstance().setDirectory(null);
+    }
+
+
+    @Test
+    public void mapsAssetStoredWithoutCompression() throws Exception {
+        Files.write(new File(assetsDir, "plugin.dex").toPath(), data);
+
+        ByteBuffer buffer = extractor.load(context, "plugin.dex", md5(data));
+
+        assertTrue(buffer.isDirect());
+        assertArrayEquals(data, toArray(buffer));
+
+        AssetExtractor.Stats stats = extractor.getStats();
+        assertEquals(1, stats.loaded);
+        assertEquals(data.length, stats.bytes);
+    }
+
+    @Test
+    public void readsGzipAssetIntoWritableHeapBuffer() throws Exception {
+        writeGzip(new File(assetsDir, "plugin.dex" + Compression.GZIP_SUFFIX), data);
+
+        ByteBuffer buffer = extractor.load(context, "plugin.dex", md5(data));
+
+        // InMemoryDexClassLoader reads the backing array of the heap buffer
+        assertTrue(buffer.hasArray());
+        assertFalse(buffer.isReadOnly());
+        assertEquals(data.length, buffer.remaining());
+        assertArrayEquals(data, toArray(buffer));
+    }
+
+    @Test
+    public void rejectsAssetWithWrongHash() throws Exception {
+        Files.write(new File(assetsDir, "plugin.dex").toPath(), data);
+
+        try {
+            extractor.load(context, "plugin.dex", "00000000000000000000000000000000");
+            fail();
+        } catch (IOException expected) {
+            assertEquals(0, extractor.getStats().loaded);
+        }
+    }
+
+    @Test
+    public void extractsAssetWithoutHeapCopy() throws Exception {
+        Files.write(new File(assetsDir, "plugin.dex").toPath(), data);
+        File target = new File(folder.getRoot(), "extracted.dex");
+
+        assertTrue(extractor.extract(context, "plugin.dex", target.getPath(), md5(data)));
+        assertArrayEquals(data, Files.readAllBytes(target.toPath()));
+
+        // The same file is not copied again
+        assertTrue(extractor.extract(context, "plugin.dex", target.getPath(), md5(data)));
+
+        AssetExtractor.Stats stats = extractor.getStats();
+        assertEquals(1, stats.extracted);
+        assertEquals(1, stats.zeroCopied);
+        assertEquals(1, stats.skipped);
+    }
+
+    @Test
+    public void preparesAssetInMemoryOnce() throws Exception {
+        Files.write(new File(assetsDir, "plugin.dex").toPath(), data);
+        Dex dex = DexRegistry.getInstance().register("asset-in-memory",
+                new Dex.Params(context, "plugin.dex", 1, md5(data), "downloaded.dex").setLoadInMemory(true));
+
+        long loaded = AssetExtractor.getDefault().getStats().loaded;
+
+        assertTrue(dex.prepareDexFileSync());
+        assertFalse(dex.getSlots().getFile(DexSlots.BASE).exists());
+
+        // The asset is not read and hashed again
+        assertTrue(dex.prepareDexFileSync());
+        assertEquals(loaded + 1, AssetExtractor.getDefault().getStats().loaded);
+    }
+
+
+    private String md5(byte[] data) throws Exception {
+        File file = folder.newFile();
+        Files.write(file.toPath(), data);
+        return Utils.computeMD5(file);
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] content = new byte[buffer.remaining()];
+        buffer.duplicate().get(content);
+        return content;
+    }
+
+    private static void writeGzip(File file, byte[] data) throws IOException {
+        OutputStream os = new GZIPOutputStream(new FileOutputStream(file));
+        try {
+            os.write(data);
+        } finally {
+            os.close();
+        }
+    }
+}
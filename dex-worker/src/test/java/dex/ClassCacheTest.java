@@ -0,0 +1,149 @@
+package dex;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class ClassCacheTest {
+
+    private static final int THREADS = 16;
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+
+
+    public static class Plugin implements Versioned {
+
+        @Override
+        public int getVersion() {
+            return 1;
+        }
+    }
+
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+
+    @Test
+    public void loadsClassOnce() throws Exception {
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+
+        ClassCache cache = new ClassCache(className -> {
+            loads.incrementAndGet();
+            await(release);
+            return Plugin.class;
+        });
+
+        List<Future<Class>> results = race(() -> cache.getLoadedClass(Plugin.class.getName()), release);
+
+        for (Future<Class> result : results) {
+            assertSame(Plugin.class, result.get(10, TimeUnit.SECONDS));
+        }
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void sharesInstance() throws Exception {
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+
+        ClassCache cache = new ClassCache(className -> {
+            loads.incrementAndGet();
+            await(release);
+            return Plugin.class;
+        });
+
+        List<Future<Versioned>> results = race(() -> cache.getInstance(Plugin.class.getName(), false), release);
+
+        Versioned first = results.get(0).get(10, TimeUnit.SECONDS);
+        for (Future<Versioned> result : results) {
+            assertSame(first, result.get(10, TimeUnit.SECONDS));
+        }
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void propagatesException() throws Exception {
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+
+        ClassCache cache = new ClassCache(className -> {
+            loads.incrementAndGet();
+            await(release);
+            throw new ClassNotFoundException(className);
+        });
+
+        List<Future<Class>> results = race(() -> cache.getLoadedClass("missing.Plugin"), release);
+
+        for (Future<Class> result : results) {
+            try {
+                result.get(10, TimeUnit.SECONDS);
+                fail("ClassNotFoundException expected");
+            } catch (ExecutionException e) {
+                assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof ClassNotFoundException);
+            }
+        }
+
+        // The failed load is not cached, the next call loads again
+        int failedLoads = loads.get();
+        try {
+            cache.getLoadedClass("missing.Plugin");
+            fail("ClassNotFoundException expected");
+        } catch (ClassNotFoundException expected) {
+            assertEquals(failedLoads + 1, loads.get());
+        }
+    }
+
+
+    /**
+     * Start all threads at once, the load is released after all of them called the cache
+     */
+    private <T> List<Future<T>> race(Callable<T> call, CountDownLatch release) throws InterruptedException {
+        CountDownLatch ready = new CountDownLatch(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+
+        List<Future<T>> results = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            results.add(executor.submit(() -> {
+                ready.countDown();
+                start.await();
+                return call.call();
+            }));
+        }
+
+        assertTrue(ready.await(10, TimeUnit.SECONDS));
+        start.countDown();
+
+        // The callers are inside the cache, waiting for the first one
+        Thread.sleep(200);
+        release.countDown();
+        return results;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package dex;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class DexMetricsTest {
+
+    private final DexMetrics metrics = DexMetrics.getInstance();
+
+
+    @Before
+    public void setUp() {
+        metrics.reset();
+    }
+
+    @After
+    public void tearDown() {
+        metrics.setEnabled(false).setListener(null).reset();
+    }
+
+
+    @Test
+    public void countsDurationsInPowerOfTwoBuckets() {
+        DexMetrics.Recorder recorder = new DexMetrics.Recorder();
+        recorder.add(0, 0);
+        recorder.add(1, 10);
+        recorder.add(3, 20);
+        recorder.add(1000, 30);
+
+        DexMetrics.StageSnapshot snapshot = recorder.snapshot(DexMetrics.Stage.HASH);
+        assertEquals(4, snapshot.count);
+        assertEquals(1004, snapshot.totalNanos);
+        assertEquals(1000, snapshot.maxNanos);
+        assertEquals(60, snapshot.bytes);
+        assertEquals(251, snapshot.getMeanNanos());
+
+        long[] expected = new long[64];
+        expected[0] = 1;
+        expected[1] = 1;
+        expected[2] = 1;
+        expected[10] = 1;
+        assertArrayEquals(expected, snapshot.getHistogram());
+
+        // The upper bound of the bucket, but never more than the max
+        assertEquals(1, snapshot.getPercentileNanos(50));
+        assertEquals(3, snapshot.getPercentileNanos(75));
+        assertEquals(1000, snapshot.getPercentileNanos(99));
+    }
+
+    @Test
+    public void recordsNothingWhenDisabled() {
+        List<DexMetrics.Stage> measured = new ArrayList<>();
+        metrics.setListener((stage, nanos, bytes) -> measured.add(stage));
+
+        long startedAt = DexMetrics.start();
+        assertEquals(DexMetrics.NOT_STARTED, startedAt);
+        DexMetrics.record(DexMetrics.Stage.DOWNLOAD, startedAt, 100);
+
+        assertEquals(0, metrics.getSnapshot().get(DexMetrics.Stage.DOWNLOAD).count);
+        assertTrue(measured.isEmpty());
+    }
+
+    @Test
+    public void recordsAndNotifiesListenerWhenEnabled() {
+        List<Long> bytes = new ArrayList<>();
+        metrics.setEnabled(true).setListener((stage, nanos, processed) -> {
+            assertEquals(DexMetrics.Stage.ASSET_COPY, stage);
+            bytes.add(processed);
+        });
+
+        DexMetrics.record(DexMetrics.Stage.ASSET_COPY, DexMetrics.start(), 4096);
+        DexMetrics.record(DexMetrics.Stage.ASSET_COPY, DexMetrics.start(), 1024);
+
+        DexMetrics.StageSnapshot snapshot = metrics.getSnapshot().get(DexMetrics.Stage.ASSET_COPY);
+        assertEquals(2, snapshot.count);
+        assertEquals(5120, snapshot.bytes);
+        assertEquals(2, bytes.size());
+        assertEquals(0, metrics.getSnapshot().get(DexMetrics.Stage.DOWNLOAD).count);
+    }
+
+    @Test
+    public void failingListenerDoesNotBreakMeasuredCode() {
+        metrics.setEnabled(true).setListener((stage, nanos, bytes) -> {
+            throw new IllegalStateException("listener");
+        });
+
+        DexMetrics.record(DexMetrics.Stage.LOAD_CLASS, DexMetrics.start(), 0);
+
+        assertEquals(1, metrics.getSnapshot().get(DexMetrics.Stage.LOAD_CLASS).count);
+    }
+}
@@ -0,0 +1,98 @@
+package dex;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+
+public class DexPrepareTest {
+
+    private static final String ASSET_MD5 = "00000000000000000000000000000000";
+    private static final byte[] INSTALLED = {'d', 'e', 'x', '2'};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Dex dex;
+    private File installed;
+
+
+    @Before
+    public void setUp() throws Exception {
+        TestContext context = new TestContext(folder);
+
+        // No entry class, the version of the installed file can not be loaded
+        dex = DexRegistry.getInstance().register("prepare", new Dex.Params(context, "plugin.dex", 5, ASSET_MD5, "downloaded.dex"));
+        installed = dex.getSlots().getFile(DexSlots.BASE);
+        write(installed, INSTALLED);
+    }
+
+    @After
+    public void tearDown() {
+        DexRegistry.getInstance().unregister("prepare");
+        VerificationCache.getInstance().setDirectory(null);
+    }
+
+
+    @Test
+    public void keepsInstalledFileOfUnknownVersion() throws Exception {
+        assertTrue(dex.prepareDexFileSync());
+
+        assertArrayEquals(INSTALLED, Files.readAllBytes(installed.toPath()));
+
+        DexMeta meta = dex.getInstalledMeta();
+        assertNotNull(meta);
+        assertEquals(DexMeta.UNKNOWN_VERSION, meta.version);
+
+        // The saved metadata is used the next time
+        assertTrue(dex.prepareDexFileSync());
+        assertArrayEquals(INSTALLED, Files.readAllBytes(installed.toPath()));
+    }
+
+    @Test
+    public void replacesOlderInstalledFile() throws Exception {
+        DexMeta.of(installed, 4, null, null).write(installed);
+
+        // There are no assets in the test, so copying the newer version fails
+        assertFalse(dex.prepareDexFileSync());
+    }
+
+    @Test
+    public void verifiesInstalledFileByTreeHash() throws Exception {
+        dex.getParams().setVerifyInstalled(true).setIntegrity(Dex.Integrity.TREE);
+        DexMeta.of(installed, 5, null, null).withTreeHash(Utils.getTreeHash(installed)).write(installed);
+
+        assertTrue(dex.prepareDexFileSync());
+
+        // Other bytes with the same size and modification time, the file is checked by the tree root
+        long modified = installed.lastModified();
+        write(installed, new byte[] {'d', 'e', 'x', '3'});
+        assertTrue(installed.setLastModified(modified));
+
+        assertFalse(dex.prepareDexFileSync());
+    }
+
+
+    private static void write(File file, byte[] data) throws IOException {
+        OutputStream os = new FileOutputStream(file);
+        try {
+            os.write(data);
+        } finally {
+            os.close();
+        }
+    }
+}
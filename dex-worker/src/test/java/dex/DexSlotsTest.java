@@ -0,0 +1,156 @@
+package dex;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class DexSlotsTest {
+
+    private static final String FILE_NAME = "parser.dex";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+
+    @Test
+    public void activatesFreeSlot() throws Exception {
+        DexSlots slots = new DexSlots(folder.getRoot(), FILE_NAME, 2);
+        assertEquals(DexSlots.BASE, slots.getActiveSlot());
+        assertEquals(DexSlots.NONE, slots.getPreviousSlot());
+
+        int slot = slots.getFreeSlot();
+        assertEquals(0, slot);
+        write(slots.getFile(slot), "v2");
+
+        assertTrue(slots.activate(slot));
+        assertEquals(slot, slots.getActiveSlot());
+        assertEquals(DexSlots.BASE, slots.getPreviousSlot());
+        assertEquals(slots.getFile(slot), slots.getActiveFile());
+
+        // The journal is read after the restart
+        DexSlots reopened = new DexSlots(folder.getRoot(), FILE_NAME, 2);
+        assertEquals(slot, reopened.getActiveSlot());
+        assertEquals(DexSlots.BASE, reopened.getPreviousSlot());
+    }
+
+    @Test
+    public void freeSlotIsNeverActiveOrPrevious() throws Exception {
+        DexSlots slots = new DexSlots(folder.getRoot(), FILE_NAME, 2);
+        assertTrue(slots.activate(0));
+        assertTrue(slots.activate(1));
+        assertEquals(0, slots.getPreviousSlot());
+
+        // All slots are taken, the previous one is removed from the journal before it is rewritten
+        assertEquals(0, slots.getFreeSlot());
+        assertEquals(1, slots.getActiveSlot());
+        assertEquals(DexSlots.NONE, slots.getPreviousSlot());
+        assertFalse(slots.canRollback());
+    }
+
+    @Test
+    public void reservedSlotIsNotFree() throws Exception {
+        DexSlots slots = new DexSlots(folder.getRoot(), FILE_NAME, 2);
+
+        // Two installs at the same time get their own slots
+        assertEquals(0, slots.getFreeSlot());
+        assertEquals(1, slots.getFreeSlot());
+        assertEquals(DexSlots.NONE, slots.getFreeSlot());
+
+        slots.release(0);
+        assertEquals(0, slots.getFreeSlot());
+    }
+
+    @Test
+    public void slotOfUsedGenerationIsNotReused() throws Exception {
+        DexSlots slots = new DexSlots(folder.getRoot(), FILE_NAME, 2);
+        assertTrue(slots.activate(0));
+        assertEquals(0, slots.acquireActiveSlot());
+
+        int slot = slots.getFreeSlot();
+        assertEquals(1, slot);
+        assertTrue(slots.activate(slot));
+        slots.release(slot);
+
+        // The previous slot is still loaded, it is not removed from the journal
+        assertEquals(DexSlots.NONE, slots.getFreeSlot());
+        assertEquals(0, slots.getPreviousSlot());
+
+        slots.release(0);
+        assertEquals(0, slots.getFreeSlot());
+    }
+
+    @Test
+    public void rollsBackToPreviousSlot() throws Exception {
+        DexSlots slots = new DexSlots(folder.getRoot(), FILE_NAME, 2);
+        write(slots.getFile(DexSlots.BASE), "v1");
+        write(slots.getFile(0), "v2");
+        assertTrue(slots.activate(0));
+
+        assertTrue(slots.canRollback());
+        assertTrue(slots.rollback());
+        assertEquals(DexSlots.BASE, slots.getActiveSlot());
+        assertEquals(DexSlots.NONE, slots.getPreviousSlot());
+
+        assertFalse(slots.canRollback());
+        assertFalse(slots.rollback());
+    }
+
+    @Test
+    public void rollsBackToMissingBaseOnlyInMemory() throws Exception {
+        DexSlots slots = new DexSlots(folder.getRoot(), FILE_NAME, 2);
+        write(slots.getFile(0), "v2");
+        assertTrue(slots.activate(0));
+
+        assertFalse(slots.canRollback());
+        assertFalse(slots.rollback());
+        assertEquals(0, slots.getActiveSlot());
+
+        assertTrue(slots.rollback(true));
+        assertEquals(DexSlots.BASE, slots.getActiveSlot());
+    }
+
+    @Test
+    public void ignoresTornJournal() throws Exception {
+        DexSlots slots = new DexSlots(folder.getRoot(), FILE_NAME, 2);
+        assertTrue(slots.activate(0));
+
+        // The crash before the rename left the new journal in the temporary file, the old one is used
+        File journal = new File(folder.getRoot(), FILE_NAME + DexSlots.JOURNAL_SUFFIX);
+        write(new File(journal.getPath() + Utils.TMP_SUFFIX), "active=1\nprevious=0\n");
+        DexSlots reopened = new DexSlots(folder.getRoot(), FILE_NAME, 2);
+        assertEquals(0, reopened.getActiveSlot());
+        assertEquals(DexSlots.BASE, reopened.getPreviousSlot());
+
+        // The broken journal falls back to the base slot
+        write(journal, "active=");
+        reopened = new DexSlots(folder.getRoot(), FILE_NAME, 2);
+        assertEquals(DexSlots.BASE, reopened.getActiveSlot());
+        assertEquals(DexSlots.NONE, reopened.getPreviousSlot());
+
+        // The slot out of range, sample: the number of slots was reduced
+        write(journal, "active=5\nprevious=0\n");
+        reopened = new DexSlots(folder.getRoot(), FILE_NAME, 2);
+        assertEquals(DexSlots.BASE, reopened.getActiveSlot());
+        assertEquals(0, reopened.getPreviousSlot());
+    }
+
+
+    private static void write(File file, String text) throws IOException {
+        OutputStream os = new FileOutputStream(file);
+        try {
+            os.write(text.getBytes("UTF-8"));
+        } finally {
+            os.close();
+        }
+    }
+}
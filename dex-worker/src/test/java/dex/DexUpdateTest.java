@@ -0,0 +1,189 @@
+package dex;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+public class DexUpdateTest {
+
+    private static final String WRONG_MD5 = "00000000000000000000000000000000";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Dex dex;
+    private File downloaded;
+
+
+    @Before
+    public void setUp() throws Exception {
+        TestContext context = new TestContext(folder);
+
+        dex = DexRegistry.getInstance().register("update", new Dex.Params(context, "plugin.dex", 1, WRONG_MD5, "downloaded.dex"));
+        downloaded = new File(context.getDexDir(), "downloaded.dex");
+        write(downloaded, "v2");
+    }
+
+    @After
+    public void tearDown() {
+        DexRegistry.getInstance().unregister("update");
+        VerificationCache.getInstance().setDirectory(null);
+    }
+
+
+    @Test
+    public void updateRejectsWrongMd5() throws Exception {
+        assertFalse(dex.updateOldDex(2, WRONG_MD5));
+        assertNotInstalled();
+    }
+
+    @Test
+    public void hotSwapRejectsWrongMd5() throws Exception {
+        assertFalse(dex.hotSwapSync(2, WRONG_MD5));
+        assertNotInstalled();
+    }
+
+    @Test
+    public void updateInstallsRightMd5() throws Exception {
+        String md5 = Utils.computeMD5(downloaded);
+
+        assertTrue(dex.updateOldDex(2, md5));
+
+        DexSlots slots = dex.getSlots();
+        assertEquals(0, slots.getActiveSlot());
+        assertFalse(downloaded.exists());
+        assertEquals(2, dex.getInstalledVersion());
+        assertEquals(md5, dex.getInstalledMeta().md5);
+    }
+
+    @Test
+    public void hotSwapLoadsFromSlot() throws Exception {
+        String md5 = Utils.computeMD5(downloaded);
+
+        assertTrue(dex.hotSwapSync(2, md5));
+
+        DexSlots slots = dex.getSlots();
+        assertEquals(0, slots.getActiveSlot());
+        assertFalse(downloaded.exists());
+
+        // The class loader was created from the slot, not from the moved download
+        try (Generation generation = dex.acquire()) {
+            assertEquals(slots.getFile(0), generation.getFile());
+            assertTrue(generation.getFile().exists());
+        }
+    }
+
+    @Test
+    public void hotSwapRemovesSlotWhichCanNotBeLoaded() throws Exception {
+        String md5 = Utils.computeMD5(downloaded);
+        dex.getParams().setEntryClass("dex.MissingEntryClass");
+
+        assertFalse(dex.hotSwapSync(2, md5));
+
+        DexSlots slots = dex.getSlots();
+        assertEquals(DexSlots.BASE, slots.getActiveSlot());
+        assertEquals(DexSlots.NONE, slots.getPreviousSlot());
+        assertFalse(slots.getFile(0).exists());
+        assertFalse(new File(slots.getFile(0).getPath() + DexMeta.META_SUFFIX).exists());
+    }
+
+    @Test
+    public void hotSwapKeepsSlotOfUsedGeneration() throws Exception {
+        assertTrue(dex.hotSwapSync(2, Utils.computeMD5(downloaded)));
+
+        try (Generation held = dex.acquire()) {
+            File file = held.getFile();
+
+            write(downloaded, "v3");
+            assertTrue(dex.hotSwapSync(3, Utils.computeMD5(downloaded)));
+
+            // The only free slot is the previous one, which is still used
+            write(downloaded, "v4");
+            assertFalse(dex.hotSwapSync(4, Utils.computeMD5(downloaded)));
+            assertEquals("v2", read(file));
+            assertTrue(downloaded.exists());
+        }
+
+        assertTrue(dex.hotSwapSync(4, Utils.computeMD5(downloaded)));
+        try (Generation generation = dex.acquire()) {
+            assertEquals("v4", read(generation.getFile()));
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void hotSwapsWhileOtherThreadAcquires() throws Exception {
+        AtomicBoolean done = new AtomicBoolean(false);
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread acquirer = new Thread(() -> {
+            try {
+                while (!done.get()) {
+                    dex.unload();
+                    try (Generation generation = dex.acquire()) {
+                        generation.getFile();
+                    }
+                }
+            } catch (Throwable throwable) {
+                error.set(throwable);
+            }
+        });
+        acquirer.setDaemon(true);
+        acquirer.start();
+
+        try {
+            for (int i = 0; i < 100; i++) {
+                write(downloaded, "v" + (i + 2));
+                dex.hotSwapSync(i + 2, Utils.computeMD5(downloaded));
+            }
+        } finally {
+            done.set(true);
+            acquirer.join();
+        }
+
+        assertNull(error.get());
+        dex.unload();
+        try (Generation generation = dex.acquire()) {
+            assertEquals(dex.getSlots().getActiveFile(), generation.getFile());
+        }
+    }
+
+
+    /**
+     * Nothing was moved or activated, the download is kept
+     */
+    private void assertNotInstalled() {
+        DexSlots slots = dex.getSlots();
+        assertEquals(DexSlots.BASE, slots.getActiveSlot());
+        assertEquals(DexSlots.NONE, slots.getPreviousSlot());
+        assertFalse(slots.getFile(0).exists());
+        assertTrue(downloaded.exists());
+    }
+
+    private static String read(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), "UTF-8");
+    }
+
+    private static void write(File file, String text) throws IOException {
+        OutputStream os = new FileOutputStream(file);
+        try {
+            os.write(text.getBytes("UTF-8"));
+        } finally {
+            os.close();
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package dex;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class DownloadFlightTest {
+
+    private static final String URL = "http://127.0.0.1/plugin.dex";
+    private static final String MD5 = "a1aeae662d801c6e1853614d213e9063";
+    private static final String OTHER_MD5 = "00000000000000000000000000000000";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+
+    /**
+     * Transfer, which runs until it is released
+     */
+    private static class BlockingTransfer implements DownloadFlight.Transfer {
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch ended = new CountDownLatch(1);
+        final AtomicInteger runs = new AtomicInteger();
+        final boolean stopOnCancel;
+        volatile boolean cancelled;
+
+        BlockingTransfer(boolean stopOnCancel) {
+            this.stopOnCancel = stopOnCancel;
+        }
+
+        @Override
+        public boolean run(String fromUrl, String toFullFileName, String md5) {
+            runs.incrementAndGet();
+            started.countDown();
+            try {
+                release.await();
+                return !cancelled;
+            } catch (InterruptedException e) {
+                return false;
+            } finally {
+                ended.countDown();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            if (stopOnCancel) release.countDown();
+        }
+    }
+
+
+    @Test
+    public void coalescesSameTarget() throws Exception {
+        String path = newPath();
+        BlockingTransfer first = new BlockingTransfer(true);
+        BlockingTransfer second = new BlockingTransfer(true);
+
+        DownloadFlight.Subscription one = DownloadFlight.subscribe(URL, path, MD5, first, null, null, null);
+        assertTrue(first.started.await(10, TimeUnit.SECONDS));
+        DownloadFlight.Subscription two = DownloadFlight.subscribe(URL, path, null, second, null, null, null);
+        assertTrue(DownloadFlight.isInFlight(URL, path));
+
+        first.release.countDown();
+
+        assertTrue(one.await());
+        assertTrue(two.await());
+        assertEquals(1, first.runs.get());
+        assertEquals(0, second.runs.get());
+        assertTrue(awaitLanded(path));
+    }
+
+    @Test
+    public void cancelsWithLastSubscriber() throws Exception {
+        String path = newPath();
+        BlockingTransfer transfer = new BlockingTransfer(true);
+
+        DownloadFlight.Subscription one = DownloadFlight.subscribe(URL, path, MD5, transfer, null, null, null);
+        DownloadFlight.Subscription two = DownloadFlight.subscribe(URL, path, MD5, new BlockingTransfer(true), null, null, null);
+        assertTrue(transfer.started.await(10, TimeUnit.SECONDS));
+
+        assertTrue(one.cancel());
+        assertFalse(transfer.cancelled);
+
+        assertTrue(two.cancel());
+        assertTrue(transfer.cancelled);
+
+        assertFalse(one.await());
+        assertFalse(two.await());
+        assertTrue(awaitLanded(path));
+    }
+
+    @Test
+    public void chainsAfterCancel() throws Exception {
+        String path = newPath();
+
+        // The cancelled transfer keeps writing until it is released
+        BlockingTransfer cancelled = new BlockingTransfer(false);
+        DownloadFlight.Subscription old = DownloadFlight.subscribe(URL, path, MD5, cancelled, null, null, null);
+        assertTrue(cancelled.started.await(10, TimeUnit.SECONDS));
+        assertTrue(old.cancel());
+
+        BlockingTransfer next = new BlockingTransfer(true);
+        DownloadFlight.Subscription subscription = DownloadFlight.subscribe(URL, path, MD5, next, null, null, null);
+        next.release.countDown();
+
+        // The next flight does not write the file together with the cancelled one
+        assertFalse(next.started.await(200, TimeUnit.MILLISECONDS));
+
+        cancelled.release.countDown();
+        assertTrue(subscription.await());
+        assertEquals(1, next.runs.get());
+        assertEquals(0, cancelled.ended.getCount());
+        assertTrue(awaitLanded(path));
+    }
+
+    @Test
+    public void rejectsOtherMd5() throws Exception {
+        String path = newPath();
+        BlockingTransfer transfer = new BlockingTransfer(true);
+        BlockingTransfer other = new BlockingTransfer(true);
+
+        DownloadFlight.Subscription subscription = DownloadFlight.subscribe(URL, path, MD5, transfer, null, null, null);
+
+        DownloadFlight.Subscription otherMd5 = DownloadFlight.subscribe(URL, path, OTHER_MD5, other, null, null, null);
+        assertFalse(otherMd5.await());
+
+        transfer.release.countDown();
+        assertTrue(subscription.await());
+        assertEquals(0, other.runs.get());
+        assertTrue(awaitLanded(path));
+    }
+
+    @Test
+    public void runsOtherUrlAfterRunningFlight() throws Exception {
+        String path = newPath();
+        String otherUrl = URL + "?v=2";
+        BlockingTransfer transfer = new BlockingTransfer(true);
+        BlockingTransfer other = new BlockingTransfer(true);
+
+        DownloadFlight.Subscription subscription = DownloadFlight.subscribe(URL, path, MD5, transfer, null, null, null);
+        assertTrue(transfer.started.await(10, TimeUnit.SECONDS));
+
+        DownloadFlight.Subscription otherSubscription = DownloadFlight.subscribe(otherUrl, path, null, other, null, null, null);
+        other.release.countDown();
+        assertTrue(DownloadFlight.isInFlight(URL, path));
+        assertTrue(DownloadFlight.isInFlight(otherUrl, path));
+
+        // The flight of the other url does not write the file together with the running one
+        assertFalse(other.started.await(200, TimeUnit.MILLISECONDS));
+
+        transfer.release.countDown();
+        assertTrue(subscription.await());
+        assertTrue(otherSubscription.await());
+        assertEquals(1, transfer.runs.get());
+        assertEquals(1, other.runs.get());
+        assertTrue(awaitLanded(URL, path));
+        assertTrue(awaitLanded(otherUrl, path));
+    }
+
+
+    private String newPath() {
+        return new File(folder.getRoot(), "plugin.dex").getPath();
+    }
+
+    /**
+     * The flight is removed after its task ended, which is a bit later than the result is delivered
+     */
+    private static boolean awaitLanded(String path) throws InterruptedException {
+        return awaitLanded(URL, path);
+    }
+
+    private static boolean awaitLanded(String url, String path) throws InterruptedException {
+        for (int i = 0; i < 100 && DownloadFlight.isInFlight(url, path); i++) {
+            Thread.sleep(50);
+        }
+        return !DownloadFlight.isInFlight(url, path);
+    }
+}
@@ -0,0 +1,199 @@
+package dex;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+public class DownloaderTest {
+
+    private static final int SIZE = 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private byte[] data;
+    private String md5;
+    private TestServer server;
+    private File target;
+
+
+    @Before
+    public void setUp() throws Exception {
+        data = new byte[SIZE];
+        new Random(42).nextBytes(data);
+        md5 = Utils.toHex(MessageDigest.getInstance("MD5").digest(data));
+
+        server = new TestServer(data);
+        target = new File(folder.getRoot(), "plugin.dex");
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+
+    @Test
+    public void downloadsWithOneConnection() throws Exception {
+        assertTrue(new Downloader().download(server.getUrl("plugin.dex"), target.getPath(), md5));
+
+        assertArrayEquals(data, Files.readAllBytes(target.toPath()));
+        assertNoPartFiles();
+
+        List<String> ranges = server.getRanges();
+        assertEquals(1, ranges.size());
+        assertNull(ranges.get(0));
+    }
+
+    @Test
+    public void downloadsRangesInParallel() throws Exception {
+        Downloader downloader = new Downloader().setConnections(4);
+        assertTrue(downloader.download(server.getUrl("plugin.dex"), target.getPath(), md5));
+
+        assertArrayEquals(data, Files.readAllBytes(target.toPath()));
+        assertNoPartFiles();
+
+        List<String> ranges = server.getRanges();
+        assertEquals(4, ranges.size());
+        for (String range : ranges) {
+            assertTrue(range, range.startsWith("bytes="));
+        }
+    }
+
+    @Test
+    public void resumesFromPartFile() throws Exception {
+        int downloaded = SIZE / 3;
+        write(new File(target.getPath() + Downloader.PART_SUFFIX), data, downloaded);
+
+        Properties state = new Properties();
+        state.setProperty("validator", TestServer.ETAG);
+        OutputStream os = new FileOutputStream(target.getPath() + Downloader.PART_SUFFIX + Downloader.STATE_SUFFIX);
+        try {
+            state.store(os, null);
+        } finally {
+            os.close();
+        }
+
+        assertTrue(new Downloader().download(server.getUrl("plugin.dex"), target.getPath(), md5));
+
+        assertArrayEquals(data, Files.readAllBytes(target.toPath()));
+        assertNoPartFiles();
+
+        List<String> ranges = server.getRanges();
+        assertEquals(1, ranges.size());
+        assertEquals("bytes=" + downloaded + "-", ranges.get(0));
+    }
+
+    @Test
+    public void fallsBackToOneTransferWithoutRanges() throws Exception {
+        server.setAcceptRanges(false);
+
+        Downloader downloader = new Downloader().setConnections(4);
+        assertTrue(downloader.download(server.getUrl("plugin.dex"), target.getPath(), md5));
+
+        assertArrayEquals(data, Files.readAllBytes(target.toPath()));
+        assertNoPartFiles();
+
+        List<String> ranges = server.getRanges();
+        assertEquals(1, ranges.size());
+        assertNull(ranges.get(0));
+    }
+
+    @Test
+    public void restartsWhenServerIgnoresRange() throws Exception {
+        server.setAcceptRanges(false);
+        writeBrokenPart(TestServer.ETAG);
+
+        assertTrue(new Downloader().download(server.getUrl("plugin.dex"), target.getPath(), md5));
+
+        assertArrayEquals(data, Files.readAllBytes(target.toPath()));
+        assertEquals(md5, Utils.computeMD5(target));
+        assertNoPartFiles();
+    }
+
+    @Test
+    public void restartsWhenIfRangeDoesNotMatch() throws Exception {
+        writeBrokenPart("\"old\"");
+
+        assertTrue(new Downloader().download(server.getUrl("plugin.dex"), target.getPath(), md5));
+
+        assertArrayEquals(data, Files.readAllBytes(target.toPath()));
+        assertEquals(md5, Utils.computeMD5(target));
+        assertNoPartFiles();
+
+        // The range was asked for, the server sent the whole file instead
+        List<String> ranges = server.getRanges();
+        assertEquals(1, ranges.size());
+        assertEquals("bytes=" + SIZE / 3 + "-", ranges.get(0));
+    }
+
+    @Test
+    public void deletesFileWithWrongHash() throws Exception {
+        String wrongMd5 = "00000000000000000000000000000000";
+
+        assertFalse(new Downloader().download(server.getUrl("plugin.dex"), target.getPath(), wrongMd5));
+
+        assertFalse(target.exists());
+        assertNoPartFiles();
+    }
+
+    @Test
+    public void deletesRangesWithWrongHash() throws Exception {
+        String wrongMd5 = "00000000000000000000000000000000";
+
+        assertFalse(new Downloader().setConnections(4).download(server.getUrl("plugin.dex"), target.getPath(), wrongMd5));
+
+        assertFalse(target.exists());
+        assertNoPartFiles();
+    }
+
+
+    private void assertNoPartFiles() {
+        assertFalse(new File(target.getPath() + Downloader.PART_SUFFIX).exists());
+        assertFalse(new File(target.getPath() + Downloader.PART_SUFFIX + Downloader.STATE_SUFFIX).exists());
+    }
+
+    /**
+     * Part file of the first third with other bytes than on the server, as if the file has changed
+     */
+    private void writeBrokenPart(String validator) throws IOException {
+        write(new File(target.getPath() + Downloader.PART_SUFFIX), new byte[SIZE / 3], SIZE / 3);
+
+        Properties state = new Properties();
+        state.setProperty("validator", validator);
+        OutputStream os = new FileOutputStream(target.getPath() + Downloader.PART_SUFFIX + Downloader.STATE_SUFFIX);
+        try {
+            state.store(os, null);
+        } finally {
+            os.close();
+        }
+    }
+
+    private static void write(File file, byte[] data, int length) throws IOException {
+        OutputStream os = new FileOutputStream(file);
+        try {
+            os.write(data, 0, length);
+        } finally {
+            os.close();
+        }
+    }
+}
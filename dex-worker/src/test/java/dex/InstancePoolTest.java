@@ -0,0 +1,129 @@
+package dex;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+
+public class InstancePoolTest {
+
+    private final AtomicInteger created = new AtomicInteger();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    private InstancePool<Versioned> pool;
+
+
+    @Before
+    public void setUp() {
+        // The plugin is not loaded, each instance is created by the test
+        Dex dex = new Dex("pool", DexRegistry.getInstance()) {
+            @Override
+            public Versioned newInstance(String className) {
+                created.incrementAndGet();
+                return new ClassCacheTest.Plugin();
+            }
+        };
+        pool = new InstancePool<>(dex, Versioned.class, ClassCacheTest.Plugin.class.getName()).setMaxSize(4);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+
+    @Test
+    public void reusesReturnedInstance() throws Exception {
+        Versioned first;
+        try (InstancePool.Lease<Versioned> lease = pool.borrow()) {
+            first = lease.get();
+        }
+        try (InstancePool.Lease<Versioned> lease = pool.borrow()) {
+            assertSame(first, lease.get());
+        }
+
+        assertEquals(1, created.get());
+        assertEquals(1, pool.getSize());
+        assertEquals(1, pool.getIdleCount());
+    }
+
+    @Test
+    public void clearDiscardsOldEpoch() throws Exception {
+        InstancePool.Lease<Versioned> borrowed = pool.borrow();
+        pool.borrow().close();
+        assertEquals(2, pool.getSize());
+        assertEquals(1, pool.getIdleCount());
+
+        // The new version is swapped in
+        pool.clear();
+        assertEquals(1, pool.getSize());
+        assertEquals(0, pool.getIdleCount());
+
+        // The instance of the old version is dropped on return
+        borrowed.close();
+        assertEquals(0, pool.getSize());
+        assertEquals(0, pool.getIdleCount());
+
+        try (InstancePool.Lease<Versioned> lease = pool.borrow()) {
+            assertNotNull(lease.get());
+        }
+        assertEquals(3, created.get());
+    }
+
+    @Test
+    public void evictsIdleInstances() throws Exception {
+        pool.setIdleTimeout(50);
+
+        Versioned first;
+        try (InstancePool.Lease<Versioned> lease = pool.borrow()) {
+            first = lease.get();
+        }
+        Thread.sleep(200);
+
+        try (InstancePool.Lease<Versioned> lease = pool.borrow()) {
+            assertNotSame(first, lease.get());
+        }
+        assertEquals(2, created.get());
+        assertEquals(1, pool.getSize());
+    }
+
+    @Test
+    public void waitsAtMaxSize() throws Exception {
+        pool.setMaxSize(1);
+
+        InstancePool.Lease<Versioned> borrowed = pool.borrow();
+        assertNull(pool.borrow(100));
+
+        Future<Versioned> waiting = executor.submit(() -> {
+            try (InstancePool.Lease<Versioned> lease = pool.borrow()) {
+                return lease.get();
+            }
+        });
+        try {
+            waiting.get(200, TimeUnit.MILLISECONDS);
+            fail("The borrower is expected to wait");
+        } catch (TimeoutException expected) {
+            // Nothing
+        }
+
+        Versioned instance = borrowed.get();
+        borrowed.close();
+        assertSame(instance, waiting.get(10, TimeUnit.SECONDS));
+        assertEquals(1, created.get());
+        assertEquals(1, pool.getSize());
+    }
+}
@@ -0,0 +1,104 @@
+package dex;
+
+import android.content.Context;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+public class PluginHandleTest {
+
+    private static final String ASSET_MD5 = "00000000000000000000000000000000";
+    private static final String PLUGIN = ClassCacheTest.Plugin.class.getName();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final DexRegistry registry = DexRegistry.getInstance();
+    private Dex handled;
+    private Dex first;
+    private Dex second;
+
+
+    @Before
+    public void setUp() throws Exception {
+        TestContext context = new TestContext(folder);
+        handled = register(context, "handle-handled");
+        first = register(context, "handle-first");
+        second = register(context, "handle-second");
+    }
+
+    @After
+    public void tearDown() {
+        registry.setMaxLoaded(Integer.MAX_VALUE);
+        registry.unregister("handle-handled");
+        registry.unregister("handle-first");
+        registry.unregister("handle-second");
+        VerificationCache.getInstance().setDirectory(null);
+    }
+
+
+    @Test
+    public void returnsCachedInstanceUntilInvalidated() {
+        PluginHandle<Versioned> handle = handled.getHandle(Versioned.class, PLUGIN);
+
+        Versioned plugin = handle.get();
+        assertNotNull(plugin);
+        assertSame(plugin, handle.get());
+        assertTrue(handle.isAvailable());
+
+        handle.invalidate();
+
+        // Loaded again from the current generation, which keeps its instance
+        assertSame(plugin, handle.get());
+        assertNull(handle.getError());
+    }
+
+    @Test
+    public void keepsErrorOfMissingClass() {
+        PluginHandle<Versioned> handle = handled.getHandle(Versioned.class, PLUGIN + "Missing");
+
+        assertFalse(handle.isAvailable());
+        assertTrue(handle.getError() instanceof ClassNotFoundException);
+    }
+
+    @Test
+    public void pluginUsedThroughHandleSurvivesOtherPlugins() throws Exception {
+        registry.setMaxLoaded(2);
+        PluginHandle<Versioned> handle = handled.getHandle(Versioned.class, PLUGIN);
+
+        Versioned plugin = handle.get();
+        assertNotNull(plugin);
+
+        first.getInstanceClassFromDex(PLUGIN);
+
+        // Only the handle uses the plugin, so the first one is now the least recently used
+        assertSame(plugin, handle.get());
+
+        second.getInstanceClassFromDex(PLUGIN);
+
+        assertEquals(2, registry.getLoadedCount());
+        assertTrue(handled.isLoaded());
+        assertFalse(first.isLoaded());
+        assertSame(plugin, handle.get());
+    }
+
+
+    private Dex register(Context context, String id) throws Exception {
+        Dex dex = registry.register(id, new Dex.Params(context, id + ".dex", 1, ASSET_MD5, id + "-downloaded.dex"));
+        Files.write(dex.getSlots().getFile(DexSlots.BASE).toPath(), new byte[] {'d', 'e', 'x'});
+        return dex;
+    }
+}
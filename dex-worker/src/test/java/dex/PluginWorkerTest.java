@@ -0,0 +1,134 @@
+package dex;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class PluginWorkerTest {
+
+    private InstancePool<Versioned> pool;
+
+
+    @Before
+    public void setUp() {
+        // The plugin is not loaded, each instance is created by the test
+        Dex dex = new Dex("worker", DexRegistry.getInstance()) {
+            @Override
+            public Versioned newInstance(String className) {
+                return new ClassCacheTest.Plugin();
+            }
+        };
+        pool = new InstancePool<>(dex, Versioned.class, ClassCacheTest.Plugin.class.getName()).setMaxSize(4);
+    }
+
+
+    @Test
+    public void deliversInSubmitOrder() throws Exception {
+        int count = 50;
+        List<Integer> outputs = Collections.synchronizedList(new ArrayList<Integer>());
+
+        // The earlier inputs are processed longer, so they complete after the later ones
+        PluginWorker<Versioned, Integer, Integer> worker = new PluginWorker<Versioned, Integer, Integer>(pool, (plugin, input) -> {
+            Thread.sleep((count - input) % 7);
+            return input;
+        })
+                .setThreads(4)
+                .setOrdered(true)
+                .setListener(result -> outputs.add(result.output))
+                .start();
+
+        for (int i = 0; i < count; i++) {
+            worker.submit(i);
+        }
+        worker.finish();
+        assertTrue(worker.awaitTermination(10000));
+
+        assertEquals(count, outputs.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(i, (int) outputs.get(i));
+        }
+        assertEquals(count, worker.getStats().getCompleted());
+    }
+
+    @Test
+    public void offerWaitsWhileFull() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        PluginWorker<Versioned, Integer, Integer> worker = new PluginWorker<Versioned, Integer, Integer>(pool, (plugin, input) -> {
+            release.await();
+            return input;
+        })
+                .setThreads(1)
+                .setCapacity(2)
+                .start();
+
+        assertTrue(worker.offer(0, 0));
+        assertTrue(worker.offer(1, 0));
+        assertFalse(worker.offer(2, 100));
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Boolean> blocked = executor.submit(() -> worker.offer(3, -1));
+            try {
+                blocked.get(200, TimeUnit.MILLISECONDS);
+                fail("The producer is expected to wait");
+            } catch (TimeoutException expected) {
+                // Nothing
+            }
+
+            release.countDown();
+            assertTrue(blocked.get(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+
+        worker.finish();
+        assertTrue(worker.awaitTermination(10000));
+        assertEquals(3, worker.getStats().submitted);
+    }
+
+    @Test
+    public void cancelStopsAtOnce() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        List<Long> delivered = Collections.synchronizedList(new ArrayList<Long>());
+
+        PluginWorker<Versioned, Integer, Integer> worker = new PluginWorker<Versioned, Integer, Integer>(pool, (plugin, input) -> {
+            started.countDown();
+            Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+            return input;
+        })
+                .setThreads(2)
+                .setListener(result -> delivered.add(result.index))
+                .start();
+
+        for (int i = 0; i < 4; i++) {
+            worker.submit(i);
+        }
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        worker.cancel();
+        assertTrue(worker.awaitTermination(10000));
+        assertTrue(delivered.isEmpty());
+
+        try {
+            worker.offer(5, 0);
+            fail("IllegalStateException expected");
+        } catch (IllegalStateException expected) {
+            // Nothing
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package dex;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+public class PrepareBatchTest {
+
+    private static final String ASSET_MD5 = "00000000000000000000000000000000";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final DexRegistry registry = DexRegistry.getInstance();
+
+
+    @Before
+    public void setUp() throws Exception {
+        TestContext context = new TestContext(folder);
+        File dexDir = context.getDexDir();
+
+        // Installed, its version is not known, so the file is kept
+        Files.write(new File(dexDir, "installed.dex").toPath(), new byte[] {'d', 'e', 'x'});
+        registry.register("batch-installed", new Dex.Params(context, "installed.dex", 1, ASSET_MD5, "installed-downloaded.dex"));
+
+        // Not installed, and there are no assets to copy it from
+        registry.register("batch-missing-file", new Dex.Params(context, "missing.dex", 1, ASSET_MD5, "missing-downloaded.dex"));
+    }
+
+    @After
+    public void tearDown() {
+        registry.unregister("batch-installed");
+        registry.unregister("batch-missing-file");
+        VerificationCache.getInstance().setDirectory(null);
+    }
+
+
+    @Test
+    public void reportsEachPluginInRequestedOrder() throws Exception {
+        List<String> ids = Arrays.asList("batch-missing-file", "batch-unregistered", "batch-installed");
+
+        PrepareReport report = await(registry.prepareAll(ids, 2, null, null));
+
+        List<PrepareReport.Entry> entries = report.getEntries();
+        assertEquals(3, entries.size());
+        for (int i = 0; i < ids.size(); i++) {
+            assertEquals(ids.get(i), entries.get(i).id);
+        }
+
+        assertFalse(entries.get(0).prepared);
+        assertNull(entries.get(0).error);
+
+        assertFalse(entries.get(1).prepared);
+        assertTrue(entries.get(1).error instanceof IllegalArgumentException);
+
+        assertTrue(entries.get(2).prepared);
+        assertNull(entries.get(2).error);
+
+        assertFalse(report.isSuccessful());
+        assertEquals(Arrays.asList("batch-missing-file", "batch-unregistered"), report.getFailedIds());
+        assertTrue(report.getTotalNanos() >= entries.get(2).nanos);
+    }
+
+    @Test
+    public void reportsSuccessWhenAllPrepared() throws Exception {
+        PrepareReport report = await(registry.prepareAll(Collections.singletonList("batch-installed"), 4, null, null));
+
+        assertTrue(report.isSuccessful());
+        assertTrue(report.getFailedIds().isEmpty());
+    }
+
+    @Test
+    public void finishesEmptyBatchAtOnce() {
+        PrepareBatch batch = registry.prepareAll(Collections.<String>emptyList(), 4, null, null);
+
+        assertTrue(batch.isDone());
+        assertTrue(batch.getReport().getEntries().isEmpty());
+        assertTrue(batch.getReport().isSuccessful());
+    }
+
+
+    private static PrepareReport await(PrepareBatch batch) throws InterruptedException {
+        for (int i = 0; i < 200 && !batch.isDone(); i++) {
+            Thread.sleep(50);
+        }
+        assertNotNull(batch.getReport());
+        return batch.getReport();
+    }
+}
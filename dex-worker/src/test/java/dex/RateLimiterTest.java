@@ -0,0 +1,118 @@
+package dex;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class RateLimiterTest {
+
+    private static final int CHUNK = 8 * 1024;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+
+    @Test
+    public void limitsThroughput() throws Exception {
+        RateLimiter limiter = new RateLimiter(100 * 1024);
+
+        // The full bucket is taken at once, the rest is read at the rate
+        long startedAt = System.nanoTime();
+        acquire(limiter, 250 * 1024);
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+
+        assertTrue("elapsed " + millis, millis >= 1200);
+        assertTrue("elapsed " + millis, millis < 5000);
+    }
+
+    @Test
+    public void unlimitedDoesNotWait() throws Exception {
+        RateLimiter limiter = new RateLimiter(RateLimiter.UNLIMITED);
+
+        long startedAt = System.nanoTime();
+        acquire(limiter, 64 * 1024 * 1024);
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+
+        assertTrue("elapsed " + millis, millis < 1000);
+    }
+
+    @Test
+    public void boostWakesWaiterUntilClosed() throws Exception {
+        RateLimiter limiter = new RateLimiter(1000);
+        limiter.acquire(1000, null);
+
+        Future<?> waiting = executor.submit(() -> {
+            limiter.acquire(1000, null);
+            return null;
+        });
+        assertBlocked(waiting);
+
+        RateLimiter.Boost boost = limiter.boost();
+        assertTrue(limiter.isBoosted());
+        waiting.get(1, TimeUnit.SECONDS);
+        acquire(limiter, 1024 * 1024);
+
+        boost.close();
+        assertFalse(limiter.isBoosted());
+
+        // The tokens were not saved up while boosted
+        long startedAt = System.nanoTime();
+        limiter.acquire(500, null);
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+        assertTrue("elapsed " + millis, millis >= 300);
+    }
+
+    @Test
+    public void cancelWakesWaiter() throws Exception {
+        RateLimiter limiter = new RateLimiter(1000);
+        limiter.acquire(1000, null);
+
+        Downloader downloader = new Downloader().setRateLimiter(limiter);
+        Future<?> waiting = executor.submit(() -> {
+            limiter.acquire(1000, downloader);
+            return null;
+        });
+        assertBlocked(waiting);
+
+        downloader.cancel();
+        try {
+            waiting.get(1, TimeUnit.SECONDS);
+            fail("InterruptedIOException expected");
+        } catch (ExecutionException e) {
+            assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof InterruptedIOException);
+        }
+    }
+
+
+    private static void acquire(RateLimiter limiter, int bytes) throws InterruptedIOException {
+        for (int left = bytes; left > 0; left -= CHUNK) {
+            limiter.acquire(Math.min(CHUNK, left), null);
+        }
+    }
+
+    private static void assertBlocked(Future<?> future) throws Exception {
+        try {
+            future.get(200, TimeUnit.MILLISECONDS);
+            fail("The reader is expected to wait for tokens");
+        } catch (TimeoutException expected) {
+            // Nothing
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package dex;
+
+import android.content.ContextWrapper;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+
+/**
+ * Context of the app in the temporary folder: {@code getDir} returns {@code "app_dex"}, the code cache
+ * is {@code "code_cache"} and the assets are served from {@code "assets"}. The gzip asset is compressed
+ * in the apk, so it has no descriptor. The classes are loaded by the class loader of the tests,
+ * so the test classes can be used as plugin classes.
+ */
+class TestContext extends ContextWrapper {
+
+    private final File dexDir;
+    private final File codeCacheDir;
+    private final File assetsDir;
+    private final AssetManager assets = new AssetManager() {
+        @Override
+        public InputStream open(String fileName) throws IOException {
+            return new FileInputStream(getAsset(fileName));
+        }
+
+        @Override
+        public AssetFileDescriptor openFd(String fileName) throws IOException {
+            if (fileName.endsWith(Compression.GZIP_SUFFIX)) throw new FileNotFoundException(fileName);
+            return new AssetFileDescriptor(getAsset(fileName));
+        }
+    };
+
+
+    TestContext(TemporaryFolder folder) throws IOException {
+        super(null);
+        dexDir = folder.newFolder("app_dex");
+        codeCacheDir = folder.newFolder("code_cache");
+        assetsDir = folder.newFolder("assets");
+    }
+
+
+    @Override
+    public File getDir(String name, int mode) {
+        return dexDir;
+    }
+
+    @Override
+    public File getCodeCacheDir() {
+        return codeCacheDir;
+    }
+
+    @Override
+    public AssetManager getAssets() {
+        return assets;
+    }
+
+    @Override
+    public ClassLoader getClassLoader() {
+        return TestContext.class.getClassLoader();
+    }
+
+    File getDexDir() {
+        return dexDir;
+    }
+
+    File getAssetsDir() {
+        return assetsDir;
+    }
+
+
+    private File getAsset(String fileName) throws FileNotFoundException {
+        File file = new File(assetsDir, fileName);
+        if (!file.exists()) throw new FileNotFoundException(fileName);
+        return file;
+    }
+}
@@ -0,0 +1,122 @@
+package dex;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+
+
+/**
+ * HTTP server on the loopback interface, which serves one file with {@code ETag} and byte ranges
+ * and records the {@code Range} headers of the requests. Byte ranges can be turned off,
+ * then every request gets the whole file with 200. The request with the same {@code If-None-Match}
+ * gets 304 without body.
+ */
+class TestServer {
+
+    static final String ETAG = "\"test\"";
+    static final String LAST_MODIFIED = "Thu, 01 Jan 2026 00:00:00 GMT";
+
+    private final HttpServer server;
+    private final byte[] data;
+    private final List<String> ranges = Collections.synchronizedList(new ArrayList<String>());
+    private final List<String> conditions = Collections.synchronizedList(new ArrayList<String>());
+    private volatile boolean acceptRanges = true;
+
+
+    TestServer(byte[] data) throws IOException {
+        this.data = data;
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 16);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+
+    String getUrl(String fileName) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/" + fileName;
+    }
+
+    /**
+     * Returns the {@code Range} headers of the GET requests, null for the request of the whole file
+     */
+    List<String> getRanges() {
+        synchronized(ranges) {
+            return new ArrayList<>(ranges);
+        }
+    }
+
+    /**
+     * Returns {@code "<If-None-Match>|<If-Modified-Since>"} of the GET requests, null for the request without them
+     */
+    List<String> getConditions() {
+        synchronized(conditions) {
+            return new ArrayList<>(conditions);
+        }
+    }
+
+    /**
+     * @param acceptRanges - false to ignore {@code Range} and send no {@code Accept-Ranges}
+     */
+    TestServer setAcceptRanges(boolean acceptRanges) {
+        this.acceptRanges = acceptRanges;
+        return this;
+    }
+
+    void stop() {
+        server.stop(0);
+    }
+
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            exchange.getResponseHeaders().set("ETag", ETAG);
+            exchange.getResponseHeaders().set("Last-Modified", LAST_MODIFIED);
+            if (acceptRanges) exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+
+            long start = 0;
+            long end = data.length - 1;
+            int code = 200;
+
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+            if (acceptRanges && range != null && range.startsWith("bytes=") && (ifRange == null || ETAG.equals(ifRange))) {
+                String[] bounds = range.substring("bytes=".length()).split("-", -1);
+                start = Long.parseLong(bounds[0]);
+                if (!bounds[1].isEmpty()) end = Math.min(end, Long.parseLong(bounds[1]));
+                code = 206;
+                exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + data.length);
+            }
+
+            long length = end - start + 1;
+            if ("HEAD".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Content-Length", String.valueOf(length));
+                exchange.sendResponseHeaders(code, -1);
+                return;
+            }
+
+            String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+            String ifModifiedSince = exchange.getRequestHeaders().getFirst("If-Modified-Since");
+            conditions.add(ifNoneMatch == null && ifModifiedSince == null ? null : ifNoneMatch + "|" + ifModifiedSince);
+            if (ETAG.equals(ifNoneMatch)) {
+                exchange.sendResponseHeaders(304, -1);
+                return;
+            }
+
+            ranges.add(range);
+            exchange.sendResponseHeaders(code, length);
+            OutputStream os = exchange.getResponseBody();
+            os.write(data, (int) start, (int) length);
+            os.close();
+        } finally {
+            exchange.close();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package dex;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class TreeHashTest {
+
+    /**
+     * SHA-256 of {@code 0x00 || chunk} for the chunks "abcd", "efgh", "ij"
+     */
+    private static final String[] CHUNKS = {
+            "b4768f09ca070169db2f5962745531650515dbd00ea5bf393cd88fec601d598a",
+            "3aac0bdbaff34540d716868ea9c743cd667dfbb1b46d30f9bbbec7ed16415e44",
+            "54e62ec3b5438e8e41c0ba6348b48f5e24bf8d6c19cd2c0e682011565d98b27d"
+    };
+
+    /**
+     * {@code SHA-256(0x01 || SHA-256(0x01 || chunk0 || chunk1) || chunk2)}, the odd chunk is moved up as is
+     */
+    private static final String ROOT = "2a5b33d54d89d05737a7dd798d9862d55951564aafb5460691ad8a7a9ab6c678";
+
+    /**
+     * {@code SHA-256(0x00)}, the empty file has one empty chunk
+     */
+    private static final String EMPTY_ROOT = "6e340b9cffb37a989ca544e6bb780a2c78901d3fb33738768511a30617afa01d";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+
+    @Test
+    public void matchesKnownVector() throws Exception {
+        File file = write("abcdefghij");
+
+        TreeHash tree = TreeHash.compute(file, 4);
+
+        assertEquals(3, tree.getChunkCount());
+        assertEquals(Arrays.asList(CHUNKS), tree.getChunkHashes());
+        assertEquals(ROOT, tree.getRoot());
+        assertEquals(tree, TreeHash.of(4, 10, Arrays.asList(CHUNKS)));
+    }
+
+    @Test
+    public void hashesEmptyFile() throws Exception {
+        TreeHash tree = TreeHash.compute(write(""), 4);
+
+        assertEquals(1, tree.getChunkCount());
+        assertEquals(EMPTY_ROOT, tree.getRoot());
+    }
+
+    @Test
+    public void findsValidChunksOfPartialFile() throws Exception {
+        TreeHash expected = TreeHash.of(4, 10, Arrays.asList(CHUNKS));
+
+        // The second chunk is broken, the last one is not written yet
+        boolean[] valid = expected.findValidChunks(write("abcdXXXXi"));
+
+        assertTrue(valid[0]);
+        assertFalse(valid[1]);
+        assertFalse(valid[2]);
+    }
+
+
+    private File write(String text) throws IOException {
+        File file = new File(folder.getRoot(), "plugin.dex");
+        OutputStream os = new FileOutputStream(file);
+        try {
+            os.write(text.getBytes("UTF-8"));
+        } finally {
+            os.close();
+        }
+        return file;
+    }
+}
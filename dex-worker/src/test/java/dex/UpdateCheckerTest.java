@@ -0,0 +1,136 @@
+package dex;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+public class UpdateCheckerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private byte[] data;
+    private TestServer dexServer;
+    private TestServer manifestServer;
+    private File dexDir;
+    private Dex dex;
+
+
+    @Before
+    public void setUp() throws Exception {
+        data = new byte[64 * 1024];
+        new Random(17).nextBytes(data);
+        dexServer = new TestServer(data);
+
+        TestContext context = new TestContext(folder);
+        dexDir = context.getDexDir();
+        dex = DexRegistry.getInstance().register("update-checker", new Dex.Params(context, "plugin.dex", 1, "00000000000000000000000000000000", "downloaded.dex"));
+    }
+
+    @After
+    public void tearDown() {
+        DexRegistry.getInstance().unregister("update-checker");
+        VerificationCache.getInstance().setDirectory(null);
+        dexServer.stop();
+        if (manifestServer != null) manifestServer.stop();
+    }
+
+
+    @Test
+    public void downloadsNewerVersionAndSavesValidators() throws Exception {
+        UpdateChecker checker = newChecker(2);
+
+        UpdateChecker.Result result = checker.check();
+
+        assertEquals(UpdateChecker.Status.DOWNLOADED, result.status);
+        assertEquals(2, result.manifest.version);
+        assertArrayEquals(data, Files.readAllBytes(new File(dexDir, "downloaded.dex").toPath()));
+
+        Properties state = readState();
+        assertEquals(TestServer.ETAG, state.getProperty("etag"));
+        assertEquals(TestServer.LAST_MODIFIED, state.getProperty("lastModified"));
+        assertEquals("2", state.getProperty("version"));
+    }
+
+    @Test
+    public void skipsSameOrOlderVersion() throws Exception {
+        UpdateChecker.Result result = newChecker(1).check();
+
+        assertEquals(UpdateChecker.Status.UP_TO_DATE, result.status);
+        assertTrue(dexServer.getRanges().isEmpty());
+    }
+
+    @Test
+    public void usesSavedManifestOnNotModified() throws Exception {
+        newChecker(2).fetchManifest();
+
+        // The validators are read back from <fileName>.manifest by the new checker, like after a restart
+        UpdateChecker.Manifest manifest = new UpdateChecker(dex, manifestServer.getUrl("manifest.json")).fetchManifest();
+
+        assertEquals(2, manifest.version);
+        assertEquals(dexServer.getUrl("plugin.dex"), manifest.url);
+
+        List<String> conditions = manifestServer.getConditions();
+        assertEquals(2, conditions.size());
+        assertNull(conditions.get(0));
+        assertEquals(TestServer.ETAG + "|" + TestServer.LAST_MODIFIED, conditions.get(1));
+
+        // Only the first request got the body, the second one got 304
+        assertEquals(1, manifestServer.getRanges().size());
+    }
+
+    @Test
+    public void downloadsManifestAgainAfterClear() throws Exception {
+        UpdateChecker checker = newChecker(2);
+        checker.fetchManifest();
+        checker.clear();
+
+        assertEquals(2, checker.fetchManifest().version);
+
+        List<String> conditions = manifestServer.getConditions();
+        assertEquals(2, conditions.size());
+        assertNull(conditions.get(1));
+    }
+
+
+    private UpdateChecker newChecker(int version) throws Exception {
+        String md5 = Utils.computeMD5(writeTemp(data));
+        String json = "{\"version\": " + version + ", \"size\": " + data.length + ", \"md5\": \"" + md5 + "\""
+                + ", \"url\": \"" + dexServer.getUrl("plugin.dex") + "\"}";
+        manifestServer = new TestServer(json.getBytes("UTF-8"));
+        return new UpdateChecker(dex, manifestServer.getUrl("manifest.json"));
+    }
+
+    private File writeTemp(byte[] data) throws Exception {
+        File file = folder.newFile();
+        Files.write(file.toPath(), data);
+        return file;
+    }
+
+    private Properties readState() throws Exception {
+        Properties state = new Properties();
+        InputStream is = new FileInputStream(new File(dexDir, "plugin.dex" + UpdateChecker.MANIFEST_SUFFIX));
+        try {
+            state.load(is);
+        } finally {
+            is.close();
+        }
+        return state;
+    }
+}
@@ -0,0 +1,163 @@
+package dex;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class VerificationCacheTest {
+
+    private static final String ALGORITHM = "MD5";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final VerificationCache cache = VerificationCache.getInstance();
+    private final AtomicInteger hashed = new AtomicInteger();
+    private final VerificationCache.Hasher hasher = file -> {
+        hashed.incrementAndGet();
+        return Utils.computeMD5(file);
+    };
+
+    private File indexDir;
+    private File file;
+
+
+    @Before
+    public void setUp() throws Exception {
+        indexDir = folder.newFolder("dex");
+        file = new File(folder.newFolder("files"), "plugin.dex");
+        cache.setEnabled(true).setDirectory(indexDir);
+    }
+
+    @After
+    public void tearDown() {
+        cache.setDirectory(null);
+    }
+
+
+    @Test
+    public void reusesHashOfUnchangedFile() throws Exception {
+        writeOld(file, "v1");
+
+        String digest = cache.getDigest(file, ALGORITHM, hasher);
+        assertEquals(digest, cache.getDigest(file, ALGORITHM, hasher));
+        assertEquals(1, hashed.get());
+
+        // The index is in the private directory, not next to the file
+        assertTrue(new File(indexDir, VerificationCache.INDEX_NAME).exists());
+        assertFalse(new File(file.getParentFile(), VerificationCache.INDEX_NAME).exists());
+    }
+
+    @Test
+    public void rehashesRacyCleanEntry() throws Exception {
+        // The file is modified right now, it could be changed again within the same modification time
+        write(file, "v1");
+        cache.getDigest(file, ALGORITHM, hasher);
+        cache.getDigest(file, ALGORITHM, hasher);
+        assertEquals(2, hashed.get());
+
+        // The same file is trusted once it is old enough
+        assertTrue(file.setLastModified(System.currentTimeMillis() - 60000));
+        cache.getDigest(file, ALGORITHM, hasher);
+        cache.getDigest(file, ALGORITHM, hasher);
+        assertEquals(3, hashed.get());
+    }
+
+    @Test
+    public void trustsHashRecordedWhileWriting() throws Exception {
+        // The download was hashed on its way to disk, it is not read again right after the write
+        write(file, "v1");
+        cache.record(file, ALGORITHM, Utils.computeMD5(file));
+
+        assertEquals(Utils.computeMD5(file), cache.getDigest(file, ALGORITHM, hasher));
+        assertEquals(0, hashed.get());
+
+        // After the restart the index entry is checked like the hashed one
+        cache.setDirectory(null).setDirectory(indexDir);
+        cache.getDigest(file, ALGORITHM, hasher);
+        assertEquals(1, hashed.get());
+    }
+
+    @Test
+    public void rehashesChangedFile() throws Exception {
+        writeOld(file, "v1");
+        String first = cache.getDigest(file, ALGORITHM, hasher);
+
+        writeOld(file, "v2 with another size");
+        String second = cache.getDigest(file, ALGORITHM, hasher);
+
+        assertEquals(2, hashed.get());
+        assertFalse(first.equals(second));
+        assertEquals(Utils.computeMD5(file), second);
+    }
+
+    @Test
+    public void rehashesInvalidatedFile() throws Exception {
+        writeOld(file, "v1");
+        long modified = file.lastModified();
+        cache.getDigest(file, ALGORITHM, hasher);
+
+        // Replaced with the same size and modification time, only invalidate() tells the cache
+        writeOld(file, "v2");
+        assertTrue(file.setLastModified(modified));
+        cache.invalidate(file);
+
+        assertEquals(Utils.computeMD5(file), cache.getDigest(file, ALGORITHM, hasher));
+        assertEquals(2, hashed.get());
+    }
+
+    @Test
+    public void readsIndexAfterRestart() throws Exception {
+        writeOld(file, "v1");
+        String digest = cache.getDigest(file, ALGORITHM, hasher);
+
+        // The loaded index is dropped, like after the restart of the app
+        cache.setDirectory(null);
+        cache.setDirectory(indexDir);
+
+        assertEquals(digest, cache.getDigest(file, ALGORITHM, hasher));
+        assertEquals(1, hashed.get());
+    }
+
+    @Test
+    public void hashesAlwaysWithoutDirectory() throws Exception {
+        cache.setDirectory(null);
+        writeOld(file, "v1");
+
+        cache.getDigest(file, ALGORITHM, hasher);
+        cache.getDigest(file, ALGORITHM, hasher);
+        assertEquals(2, hashed.get());
+        assertFalse(new File(file.getParentFile(), VerificationCache.INDEX_NAME).exists());
+    }
+
+
+    /**
+     * Write the file and set its modification time to the past, so its hash is trusted
+     */
+    private static void writeOld(File file, String text) throws IOException {
+        write(file, text);
+        assertTrue(file.setLastModified(System.currentTimeMillis() - 60000));
+    }
+
+    private static void write(File file, String text) throws IOException {
+        OutputStream os = new FileOutputStream(file);
+        try {
+            os.write(text.getBytes("UTF-8"));
+        } finally {
+            os.close();
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package patch;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.zip.GZIPInputStream;
+
+
+/**
+ * Makes the binary patch from the old dex file to the new one, which is applied by {@code dex.Patcher}.
+ * Usage: MakePatch old.dex new.dex out.patch, files "*.gz" are decompressed before.
+ * <p>
+ * Matching blocks are found with a rolling hash of {@link #WINDOW} bytes over the old file
+ * and extended in both directions, the rest of the new file is added to the patch as is.
+ */
+public class MakePatch {
+
+    private static final int MAGIC = 0x44585031; // "DXP1"
+    private static final int OP_COPY = 0;
+    private static final int OP_ADD = 1;
+    private static final int OP_END = 2;
+
+    private static final int WINDOW = 32;
+    private static final int STEP = 4;
+    private static final long BASE = 1000003;
+
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 3) {
+            System.err.println("Usage: MakePatch old.dex new.dex out.patch");
+            System.exit(1);
+        }
+
+        byte[] oldBytes = read(new File(args[0]));
+        byte[] newBytes = read(new File(args[1]));
+        File out = new File(args[2]);
+        if (out.getParentFile() != null) out.getParentFile().mkdirs();
+
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(out)))) {
+            write(oldBytes, newBytes, output);
+        }
+
+        System.out.println("Patch " + out + ": " + out.length() + " bytes, new file " + newBytes.length + " bytes");
+    }
+
+
+    static void write(byte[] oldBytes, byte[] newBytes, DataOutputStream output) throws IOException {
+        output.writeInt(MAGIC);
+        output.write(md5(oldBytes));
+        output.write(md5(newBytes));
+        output.writeLong(newBytes.length);
+
+        HashMap<Long, Integer> index = index(oldBytes);
+        long power = power();
+
+        int literalStart = 0;
+        int position = 0;
+        long hash = newBytes.length >= WINDOW ? hash(newBytes, 0) : 0;
+
+        while (position + WINDOW <= newBytes.length) {
+
+            Integer candidate = index.get(hash);
+            if (candidate != null && equal(oldBytes, candidate, newBytes, position, WINDOW)) {
+
+                int oldStart = candidate;
+                int newStart = position;
+                while (oldStart > 0 && newStart > literalStart && oldBytes[oldStart - 1] == newBytes[newStart - 1]) {
+                    oldStart--;
+                    newStart--;
+                }
+
+                int length = position - newStart + WINDOW;
+                while (oldStart + length < oldBytes.length && newStart + length < newBytes.length
+                        && oldBytes[oldStart + length] == newBytes[newStart + length]) {
+                    length++;
+                }
+
+                writeAdd(output, newBytes, literalStart, newStart);
+                output.write(OP_COPY);
+                output.writeLong(oldStart);
+                output.writeInt(length);
+
+                position = newStart + length;
+                literalStart = position;
+                if (position + WINDOW <= newBytes.length) hash = hash(newBytes, position);
+                continue;
+            }
+
+            if (position + WINDOW < newBytes.length) {
+                hash = (hash - (newBytes[position] & 0xff) * power) * BASE + (newBytes[position + WINDOW] & 0xff);
+            }
+            position++;
+        }
+
+        writeAdd(output, newBytes, literalStart, newBytes.length);
+        output.write(OP_END);
+    }
+
+
+    private static byte[] read(File file) throws IOException {
+        if (!file.getName().endsWith(".gz")) return Files.readAllBytes(file.toPath());
+
+        try (InputStream input = new GZIPInputStream(new FileInputStream(file))) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[16 * 1024];
+            int count;
+            while ((count = input.read(buffer)) != -1) {
+                output.write(buffer, 0, count);
+            }
+            return output.toByteArray();
+        }
+    }
+
+    /**
+     * Hashes of the old file windows, which start at every {@link #STEP} bytes
+     */
+    private static HashMap<Long, Integer> index(byte[] bytes) {
+        HashMap<Long, Integer> index = new HashMap<>();
+        for (int i = 0; i + WINDOW <= bytes.length; i += STEP) {
+            index.putIfAbsent(hash(bytes, i), i);
+        }
+        return index;
+    }
+
+    private static long hash(byte[] bytes, int from) {
+        long hash = 0;
+        for (int i = from; i < from + WINDOW; i++) {
+            hash = hash * BASE + (bytes[i] & 0xff);
+        }
+        return hash;
+    }
+
+    /**
+     * BASE ^ (WINDOW - 1)
+     */
+    private static long power() {
+        long power = 1;
+        for (int i = 1; i < WINDOW; i++) power *= BASE;
+        return power;
+    }
+
+    private static boolean equal(byte[] a, int aFrom, byte[] b, int bFrom, int length) {
+        if (aFrom + length > a.length || bFrom + length > b.length) return false;
+        for (int i = 0; i < length; i++) {
+            if (a[aFrom + i] != b[bFrom + i]) return false;
+        }
+        return true;
+    }
+
+    private static void writeAdd(DataOutputStream output, byte[] bytes, int from, int to) throws IOException {
+        if (to <= from) return;
+        output.write(OP_ADD);
+        output.writeInt(to - from);
+        output.write(bytes, from, to - from);
+    }
+
+    private static byte[] md5(byte[] bytes) throws IOException {
+        try {
+            return MessageDigest.getInstance("MD5").digest(bytes);
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+}
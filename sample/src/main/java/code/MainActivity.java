@@ -11,6 +11,8 @@ import android.widget.Toast;
 
 import dex.Versioned;
 import dex.Dex;
+import dex.PluginHandle;
+import dex.UpdateChecker;
 import dex.Utils;
 
 
@@ -19,14 +21,15 @@ public class MainActivity extends AppCompatActivity {
     public static final String TAG = MainActivity.class.getSimpleName();
     public static final int LAYOUT = R.layout.activity_main;
 
-    private static final int VERSION_ON_SERVER = 2;
-    private static final String URL = "http://arget.com.ua/OTHER/parser.dex";
-    private static final String MD5_DEX_ON_SERVER = "a1aeae662d801c6e1853614d213e9063";
+    // Sample: {"version": 2, "size": 1024, "md5": "a1aeae662d801c6e1853614d213e9063", "url": "http://arget.com.ua/OTHER/parser.dex"}
+    private static final String MANIFEST_URL = "http://arget.com.ua/OTHER/parser.json";
 
     private static final String DOWNLOADED_FILE_NAME = "downloaded.dex";
     private static final String FILE_NAME = "parser.dex";
     private static final String CLASS_NAME = "parser.Parser";
 
+    private PluginHandle<IParser> parser;
+
 
     @SuppressLint("StaticFieldLeak")
     @Override
@@ -36,13 +39,18 @@ public class MainActivity extends AppCompatActivity {
 
         // Init params for Dex
         int dexVersion = 1; // Version dex file, which located in assets
-        Dex.Params params = new Dex.Params(MainActivity.this, FILE_NAME, dexVersion, BuildConfig.MD5_DEX_ASSETS, DOWNLOADED_FILE_NAME);
+        Dex.Params params = new Dex.Params(MainActivity.this, FILE_NAME, dexVersion, BuildConfig.MD5_DEX_ASSETS, DOWNLOADED_FILE_NAME)
+                .setEntryClass(CLASS_NAME)
+                .setPreloadClasses(CLASS_NAME);
         Handler handler = new Handler(Looper.getMainLooper());
 
         // Prepare dex file
         Dex.getInstance(params)
            .prepareDexFile(handler, null, null);
 
+        // Handle follows the updated versions, no lookup on each use
+        parser = Dex.getInstance().getHandle(IParser.class, CLASS_NAME);
+
         findViewById(R.id.btn_check).setOnClickListener(v -> checkVersionDex());
     }
 
@@ -50,43 +58,40 @@ public class MainActivity extends AppCompatActivity {
     private void checkVersionDex() { Log.d(TAG, "checkVersionDex()");
         Utils.safelyWorkWithClass(getVersioned(),
                 obj -> {
-                    int currentVersion = obj.getVersion();
-                    if (currentVersion < VERSION_ON_SERVER) {
-                        showToast("has a new version = " + String.valueOf(VERSION_ON_SERVER) + " (current = " + String.valueOf(currentVersion) + ")", false);
-                        loadDexFromServer();
-                    } else {
-                        showToast("latest version is installed (current = " + String.valueOf(currentVersion) + ")", false);
-                    }
+                    showToast("current version = " + String.valueOf(obj.getVersion()), false);
+                    checkUpdate();
                 },
                 () -> showToast("error get version", false));
     }
 
 
-    private void loadDexFromServer() { Log.d(TAG, "loadDexFromServer() Start download");
-
-        String path = Utils.getFileFullName(MainActivity.this, DOWNLOADED_FILE_NAME);
-        showToast("start download url = " + URL, false);
-        Utils.downloadFileAsync(URL, path, MD5_DEX_ON_SERVER, new Handler(Looper.getMainLooper()),
-                () -> {
-                    showToast("success download", false);
+    private void checkUpdate() { Log.d(TAG, "checkUpdate() Start check");
 
-                    Dex.getInstance()
-                       .reset()
-                       .updateOldDex();
-
-                    checkVersionDex();
-                },
-                () -> showToast("error download", false));
+        Handler handler = new Handler(Looper.getMainLooper());
+        new UpdateChecker(Dex.getInstance(), MANIFEST_URL)
+                .checkAsync(handler, result -> {
+                    switch (result.status) {
+                        case UP_TO_DATE:
+                            showToast("latest version is installed", false);
+                            break;
+                        case DOWNLOADED:
+                            showToast("success download version = " + String.valueOf(result.manifest.version), false);
+                            Dex.getInstance()
+                               .hotSwap(handler, result.manifest.version, result.manifest.md5,
+                                       this::checkVersionDex,
+                                       () -> showToast("error update", false));
+                            break;
+                        default:
+                            showToast("error check update", false);
+                            break;
+                    }
+                });
     }
 
 
     @Nullable
     public Versioned getVersioned() {
-        try {
-            return Dex.getInstance().getInstanceClassFromDex(CLASS_NAME);
-        } catch (Throwable ignored) {
-            return null;
-        }
+        return parser.get();
     }
 
 